@@ -0,0 +1,89 @@
+package org.langzhaozhi.dat;
+
+import java.nio.IntBuffer;
+import java.util.function.IntPredicate;
+
+/**
+ * <p>AC自动机的状态数据，同DAT数组下标完全一一对应，全部是int段：每个状态的深度、failure状态、输出链(沿failure链不包括自己的第一个数据状态)。</p>
+ * <p>既可以在堆上构造，也可以由<code>DoubleArrayTrieFile</code>随DAT一起持久化，加载时直接整段读入或者内存映象，启动时不再需要bfs构造。
+ * 堆上的<code>DoubleArrayTrieAhoCorasick</code>和内存映象的<code>MappedDoubleArrayTrie</code>共用这里的构造</p>
+ */
+final class AhoCorasickStates {
+    final IntBuffer mDepthBuffer;
+    final IntBuffer mFailureBuffer;
+    final IntBuffer mOutputLinkBuffer;
+
+    AhoCorasickStates(IntBuffer aDepthBuffer, IntBuffer aFailureBuffer, IntBuffer aOutputLinkBuffer) {
+        this.mDepthBuffer = aDepthBuffer;
+        this.mFailureBuffer = aFailureBuffer;
+        this.mOutputLinkBuffer = aOutputLinkBuffer;
+    }
+
+    /**
+     * bfs建立failure表和输出链，只用int数组：父子关系来自aChildIndex，bfs队列也直接是一个int数组
+     * @param aHasValue 下标处是否数据节点
+     */
+    static AhoCorasickStates construct(IntBuffer aBaseBuffer, IntBuffer aCheckBuffer, ChildIndex aChildIndex, IntPredicate aHasValue) {
+        int datArrayLength = aCheckBuffer.limit();
+        int [] childStart = aChildIndex.mChildStartArray;
+        int [] children = aChildIndex.mChildArray;
+        //虚根是第0层，即深度为0, 虚根的failure指向自己: 数组初始化已经都是0了
+        int [] depthArray = new int [ datArrayLength ];
+        int [] failureArray = new int [ datArrayLength ];
+        int [] outputLinkArray = new int [ datArrayLength ];
+        IntBuffer failureBuffer = IntBuffer.wrap( failureArray );
+        //每个节点恰好入队一次
+        int [] queue = new int [ children.length + 1 ];
+        int queueHead = 0;
+        int queueTail = 0;
+        queue[ queueTail++ ] = 0;
+        while (queueHead < queueTail) {
+            int parentState = queue[ queueHead++ ];
+            int parentBase = aBaseBuffer.get( parentState );
+            for (int i = childStart[ parentState ], iend = childStart[ parentState + 1 ]; i < iend; ++i) {
+                int childState = children[ i ];
+                depthArray[ childState ] = depthArray[ parentState ] + 1;
+                if (parentState != 0) {
+                    //深度为1的节点的failure和输出链都是虚根，其他的failure状态比自己浅因此已经建立好了
+                    int failureState = AhoCorasickStates.nextTransitionState( aBaseBuffer, aCheckBuffer, failureBuffer, failureArray[ parentState ], ( char )(childState - parentBase) );
+                    failureArray[ childState ] = failureState;
+                    outputLinkArray[ childState ] = aHasValue.test( failureState ) ? failureState : outputLinkArray[ failureState ];
+                }
+                queue[ queueTail++ ] = childState;
+            }
+        }
+        return new AhoCorasickStates( IntBuffer.wrap( depthArray ), failureBuffer, IntBuffer.wrap( outputLinkArray ) );
+    }
+
+    /**
+     * 转移到下一个状态：总是先尝试用success表转移，不能success才用failure表转移,直到上溯到虚根节点
+     */
+    static int nextTransitionState(IntBuffer aBaseBuffer, IntBuffer aCheckBuffer, IntBuffer aFailureBuffer, int aState, char aTransitionChar) {
+        int datArrayLength = aCheckBuffer.limit();
+        int state = aState;
+        while (true) {
+            int transitionIndex = aBaseBuffer.get( state ) + aTransitionChar;
+            if (transitionIndex > 0 && transitionIndex < datArrayLength && aCheckBuffer.get( transitionIndex ) == state) {
+                return transitionIndex;
+            }
+            else if (state == 0) {
+                return 0;
+            }
+            else {
+                state = aFailureBuffer.get( state );
+            }
+        }
+    }
+
+    /**
+     * 堆上构造的直接返回底层数组，从文件映象来的整段批量拷贝出来
+     */
+    static int [] toArray(IntBuffer aBuffer) {
+        if (aBuffer.hasArray() && aBuffer.arrayOffset() == 0 && aBuffer.array().length == aBuffer.limit()) {
+            return aBuffer.array();
+        }
+        int [] array = new int [ aBuffer.limit() ];
+        aBuffer.duplicate().get( array );
+        return array;
+    }
+}
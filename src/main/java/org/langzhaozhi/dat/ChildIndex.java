@@ -0,0 +1,50 @@
+package org.langzhaozhi.dat;
+
+import java.nio.IntBuffer;
+
+/**
+ * <p>DAT的父子关系索引，CSR格式：节点i的儿子是mChildArray中下标区间[mChildStartArray[i], mChildStartArray[i + 1])的那些DAT数组下标，
+ * 同一父节点的儿子按下标升序，也就是按字符升序。</p>
+ * <p>DAT数组中只有mCheck记录了父节点，按层遍历、前缀后匹配、AC自动机构造都需要反过来从父节点找儿子，
+ * 这里对mCheck做一次计数排序就建立起来，只有两个int数组，不会产生任何逐个节点的对象。
+ * 每个DAT只建立一次(参见<code>DoubleArrayTrie::getChildIndex</code>)，各处共用。</p>
+ */
+final class ChildIndex {
+    //长度为DAT数组长度+1
+    final int [] mChildStartArray;
+    final int [] mChildArray;
+
+    private ChildIndex(int [] aChildStartArray, int [] aChildArray) {
+        this.mChildStartArray = aChildStartArray;
+        this.mChildArray = aChildArray;
+    }
+
+    /**
+     * 对mCheck计数排序，线性时间
+     */
+    static ChildIndex build(IntBuffer aCheckBuffer) {
+        int datArrayLength = aCheckBuffer.limit();
+        int [] childStartArray = new int [ datArrayLength + 1 ];
+        for (int i = 1; i < datArrayLength; ++i) {//从1开始，0是虚根
+            int parentIndex = aCheckBuffer.get( i );
+            if (parentIndex != DoubleArrayTrie.EMPTY_CHECK) {
+                ++childStartArray[ parentIndex + 1 ];
+            }
+        }
+        for (int i = 0; i < datArrayLength; ++i) {
+            childStartArray[ i + 1 ] += childStartArray[ i ];
+        }
+        int [] childArray = new int [ childStartArray[ datArrayLength ] ];
+        //倒着填，每个父节点的填充位置从区间末尾往前退，填完后正好退回区间开头，因此不需要另外的填充位置数组
+        for (int i = datArrayLength - 1; i > 0; --i) {
+            int parentIndex = aCheckBuffer.get( i );
+            if (parentIndex != DoubleArrayTrie.EMPTY_CHECK) {
+                childArray[ --childStartArray[ parentIndex + 1 ] ] = i;
+            }
+        }
+        //此时childStartArray[p + 1]是p的区间开头，整体右移一位
+        System.arraycopy( childStartArray, 1, childStartArray, 0, datArrayLength );
+        childStartArray[ datArrayLength ] = childArray.length;
+        return new ChildIndex( childStartArray, childArray );
+    }
+}
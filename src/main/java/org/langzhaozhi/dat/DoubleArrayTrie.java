@@ -1,8 +1,9 @@
 package org.langzhaozhi.dat;
 
+import java.nio.IntBuffer;
 import java.util.Arrays;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /**
  * <p>DAT双数组Trie结构</p>
@@ -26,13 +27,44 @@ import java.util.LinkedList;
  * @see DoubleArrayTrieAhoCorasick
  */
 public final class DoubleArrayTrie<T> {
-    final DoubleArrayTrieNode<T> [] mDatArray;
-    private DoubleArrayTrieAhoCorasick<T> mAhoCorasick;
-    private DoubleArrayTriePrefixMatcher<T> mPrefixMatcher;
+    /**
+     * 空闲位置的check值，合法的check值都是父节点下标，不可能为负
+     */
+    static final int EMPTY_CHECK = -1;
+
+    //采用平行数组的列式布局：mBaseArray和mCheckArray是热数据，每次状态转移都要访问，mValueArray是冷数据，只有命中的时候才访问,
+    //这样每个字符的转移只是两次int数组访问，没有任何对象解引用，对千万级数据也不会产生千万级的小对象给GC添负担
+    final int [] mBaseArray;
+    final int [] mCheckArray;
+    //mValueArray非空的位置就是数据节点，一般直接就是value本身，但延迟加载的时候是占位对象LazyValueTable.LAZY_VALUE，
+    //因此取value一律通过getValue()，判断是否数据节点则直接判断非空
+    final Object [] mValueArray;
+    //非延迟加载的时候为null
+    final LazyValueTable<T> mLazyValueTable;
+    //下面这些都是第一次用到时才构造的缓存，volatile加双重检查：并发的第一批调用者中只有一个真正构造，其他的等它构造好后直接用，
+    //不会每个线程各自构造一份。各自用自己的锁，构造AC时要用到父子关系索引，锁的顺序总是先AC后索引
+    //文件中持久化了AC状态数据的时候，加载时DoubleArrayTrieFile.load()直接设置好
+    volatile DoubleArrayTrieAhoCorasick<T> mAhoCorasick;
+    private volatile DoubleArrayTriePrefixMatcher<T> mPrefixMatcher;
+    //父子关系索引，按层遍历、前缀后匹配、AC构造共用
+    private volatile ChildIndex mChildIndex;
+    //按字典序的子树计数，前缀计数和rank/select用
+    private volatile KeyRanks mKeyRanks;
+    private final Object mAhoCorasickLock = new Object();
+    private final Object mChildIndexLock = new Object();
+    private final Object mKeyRanksLock = new Object();
 
-    DoubleArrayTrie(DoubleArrayTrieNode<T> [] aDatArray) {
+    DoubleArrayTrie(int [] aBaseArray, int [] aCheckArray, Object [] aValueArray) {
         //from DoubleArrayTrieMaker.makeDoubleArrayTrie()
-        this.mDatArray = aDatArray;
+        this( aBaseArray, aCheckArray, aValueArray, null );
+    }
+
+    DoubleArrayTrie(int [] aBaseArray, int [] aCheckArray, Object [] aValueArray, LazyValueTable<T> aLazyValueTable) {
+        //from DoubleArrayTrieFile.load()
+        this.mBaseArray = aBaseArray;
+        this.mCheckArray = aCheckArray;
+        this.mValueArray = aValueArray;
+        this.mLazyValueTable = aLazyValueTable;
     }
 
     /**
@@ -41,25 +73,38 @@ public final class DoubleArrayTrie<T> {
      * 如果要进行多模式串匹配，需要先<code>asAhoCorasick()</code>转换成DoubleArrayTrieAhoCorasick来使用。
      */
     public T exactMatch(CharSequence aKey) {
-        DoubleArrayTrieNode<T> [] datArray = this.mDatArray;
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
         //总是从虚根开始
-        DoubleArrayTrieNode<T> searchNode = datArray[ 0 ];
-        int parentCheck = searchNode.mCheck;
-        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = datArray.length; i < keyCharLen; ++i) {
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = checkArray.length; i < keyCharLen; ++i) {
             char nextChar = aKey.charAt( i );
-            int index = searchNode.mBase + nextChar;
-            if (index < 0 || index >= datArrayLen) {
-                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+            int index = baseArray[ parentIndex ] + nextChar;
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
+                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外,0是虚根不可能是任何节点的儿子;
+                //check检查非常关键，如果check不相等，此 index 肯定不是后继节点
                 return null;
             }
-            searchNode = datArray[ index ];
-            if (searchNode == null || searchNode.mCheck != parentCheck) {
-                //check检查非常关键，如果check不相等，此 searchNode 肯定不是后继节点
+            parentIndex = index;
+        }
+        return this.getValue( parentIndex );
+    }
+
+    /**
+     * 大小写折叠构造的DAT(参见<code>DoubleArrayTrieMaker::makeDoubleArrayTrieCaseFolded</code>)的精确匹配，aKey的每个字符先折叠再匹配，因此不区分大小写
+     */
+    public T exactMatchCaseFolded(CharSequence aKey) {
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = checkArray.length; i < keyCharLen; ++i) {
+            int index = baseArray[ parentIndex ] + CaseFolding.fold( aKey.charAt( i ) );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
                 return null;
             }
-            parentCheck = index;
+            parentIndex = index;
         }
-        return searchNode.mValue;
+        return this.getValue( parentIndex );
     }
 
     /**
@@ -73,7 +118,7 @@ public final class DoubleArrayTrie<T> {
     public void forEachFast(boolean aNeedKey, Hit<T> aHit) {
         boolean whetherContinueHit = true;
         StringBuilder keyBuffer = aNeedKey ? new StringBuilder() : null;
-        for (int i = 0, isize = this.mDatArray.length; whetherContinueHit && i < isize; ++i) {
+        for (int i = 0, isize = this.mCheckArray.length; whetherContinueHit && i < isize; ++i) {
             whetherContinueHit = this.traversalNextNode( i, keyBuffer, aNeedKey, aHit );
         }
     }
@@ -86,38 +131,94 @@ public final class DoubleArrayTrie<T> {
     public void forEachBasedTrie(boolean aNeedKey, Hit<T> aHit) {
         boolean whetherContinueHit = true;
         StringBuilder keyBuffer = aNeedKey ? new StringBuilder() : null;
-        DoubleArrayTrieNode<T> [] datArray = this.mDatArray;
-        int datArrayLength = datArray.length;
-        //扫描一遍就建立trie结构，很快
-        @SuppressWarnings("unchecked")
-        LinkedList<Integer> [] trie = new LinkedList [ datArrayLength ];
-        for (int i = 1; i < datArrayLength; ++i) {//从1开始，0是虚根
-            DoubleArrayTrieNode<T> datNode = datArray[ i ];
-            if (datNode != null) {
-                //其实就是根据mCheck找到父亲节点建立父子关系
-                int parentIndex = datNode.mCheck;
-                LinkedList<Integer> childrenOfParentNode = trie[ parentIndex ];
-                if (childrenOfParentNode == null) {
-                    childrenOfParentNode = new LinkedList<Integer>();
-                    trie[ parentIndex ] = childrenOfParentNode;
+        ChildIndex childIndex = this.getChildIndex();
+        int [] childStartArray = childIndex.mChildStartArray;
+        int [] childArray = childIndex.mChildArray;
+        //每个节点恰好入队一次，bfs队列直接是int数组
+        int [] queue = new int [ childArray.length + 1 ];
+        int queueHead = 0;
+        int queueTail = 0;
+        queue[ queueTail++ ] = 0;//从虚根开始进行广度优先遍历
+        while (whetherContinueHit && queueHead < queueTail) {
+            int parentIndex = queue[ queueHead++ ];
+            if ((whetherContinueHit = this.traversalNextNode( parentIndex, keyBuffer, aNeedKey, aHit ))) {
+                for (int i = childStartArray[ parentIndex ], iend = childStartArray[ parentIndex + 1 ]; i < iend; ++i) {
+                    queue[ queueTail++ ] = childArray[ i ];
                 }
-                childrenOfParentNode.add( i );
             }
         }
-        LinkedList<Integer> queue = new LinkedList<Integer>();
-        queue.addLast( 0 );//从虚根开始进行深度优先遍历
-        while (whetherContinueHit && !queue.isEmpty()) {
-            Integer parentIndex = queue.removeFirst();
-            if ((whetherContinueHit = this.traversalNextNode( parentIndex, keyBuffer, aNeedKey, aHit ))) {
-                LinkedList<Integer> childrenIndex = trie[ parentIndex ];
-                if (childrenIndex != null) {
-                    for (Iterator<Integer> it = childrenIndex.iterator(); it.hasNext();) {
-                        queue.addLast( it.next() );
-                        it.remove();//fast GC it
-                    }
+    }
+
+    /**
+     * 关键字以aPrefix开头的数据个数，aPrefix本身是关键字的也算，空串就是全部数据的个数。
+     * 只沿aPrefix走一遍，不枚举子树；第一次调用时建立按字典序的子树计数(参见<code>getKeyRanks()</code>)
+     */
+    public int countWithPrefix(CharSequence aPrefix) {
+        int index = this.walk( aPrefix );
+        return index < 0 ? 0 : this.getKeyRanks().mSubtreeCountArray[ index ];
+    }
+
+    /**
+     * aKey在全部关键字字典序(同String::compareTo)中的序号，从0开始，全部关键字的序号恰好是[0, countWithPrefix(""))，可以作为稠密编号。
+     * aKey不是关键字时同<code>Arrays.binarySearch</code>一样返回(-(插入位置) - 1)
+     */
+    public int rank(CharSequence aKey) {
+        KeyRanks keyRanks = this.getKeyRanks();
+        int [] subtreeCountArray = keyRanks.mSubtreeCountArray;
+        int [] rankBaseArray = keyRanks.mRankBaseArray;
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = checkArray.length; i < keyCharLen; ++i) {
+            int index = baseArray[ parentIndex ] + aKey.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
+                //走不下去了：插入位置就是父节点的儿子中第一个字符比它大的那个子树的起点，没有的话就是父节点子树的末尾
+                ChildIndex childIndex = this.getChildIndex();
+                int childEnd = childIndex.mChildStartArray[ parentIndex + 1 ];
+                int position = Arrays.binarySearch( childIndex.mChildArray, childIndex.mChildStartArray[ parentIndex ], childEnd, index );
+                position = position < 0 ? -position - 1 : position;
+                int insertionPoint = position < childEnd ? rankBaseArray[ childIndex.mChildArray[ position ] ] : rankBaseArray[ parentIndex ] + subtreeCountArray[ parentIndex ];
+                return -insertionPoint - 1;
+            }
+            parentIndex = index;
+        }
+        //aKey走完了：是数据节点就是自己的序号，否则aKey比整个子树都小
+        return this.mValueArray[ parentIndex ] != null ? rankBaseArray[ parentIndex ] : -rankBaseArray[ parentIndex ] - 1;
+    }
+
+    /**
+     * 字典序序号为aOrdinal的关键字，<code>rank()</code>的逆
+     * @param aOrdinal 范围[0, countWithPrefix(""))
+     */
+    public String select(int aOrdinal) {
+        KeyRanks keyRanks = this.getKeyRanks();
+        int [] subtreeCountArray = keyRanks.mSubtreeCountArray;
+        int [] rankBaseArray = keyRanks.mRankBaseArray;
+        if (aOrdinal < 0 || aOrdinal >= subtreeCountArray[ 0 ]) {
+            throw new Error( "序号越界: " + aOrdinal + ", 关键字个数: " + subtreeCountArray[ 0 ] );
+        }
+        ChildIndex childIndex = this.getChildIndex();
+        int [] childStartArray = childIndex.mChildStartArray;
+        int [] childArray = childIndex.mChildArray;
+        StringBuilder keyBuffer = new StringBuilder();
+        int index = 0;
+        while (this.mValueArray[ index ] == null || rankBaseArray[ index ] != aOrdinal) {
+            //各儿子子树的序号起点随字符升序递增，二分找最后一个起点不超过aOrdinal的儿子
+            int low = childStartArray[ index ];
+            int high = childStartArray[ index + 1 ] - 1;
+            while (low < high) {
+                int middle = (low + high + 1) >>> 1;
+                if (rankBaseArray[ childArray[ middle ] ] <= aOrdinal) {
+                    low = middle;
+                }
+                else {
+                    high = middle - 1;
                 }
             }
+            index = childArray[ low ];
+            keyBuffer.append( this.getChar( index ) );
         }
+        return keyBuffer.toString();
     }
 
     /**
@@ -128,6 +229,7 @@ public final class DoubleArrayTrie<T> {
     public DoubleArrayTriePrefixMatcher<T> asPrefixMatcher() {
         DoubleArrayTriePrefixMatcher<T> prefixMatcher = this.mPrefixMatcher;
         if (prefixMatcher == null) {
+            //本身只是一个很轻的包装，真正的前缀后匹配的父子关系索引由getChildIndex()保证只构造一次，因此这里重复构造也无所谓
             prefixMatcher = new DoubleArrayTriePrefixMatcher<T>( this );
             this.mPrefixMatcher = prefixMatcher;
         }
@@ -135,19 +237,47 @@ public final class DoubleArrayTrie<T> {
     }
 
     /**
-     * 转换成急速多模式AhoCorasick调用方式
+     * 转换成急速多模式AhoCorasick调用方式。第一次调用时构造AC自动机，并发的第一批调用者只有一个真正构造，其他的等待它构造好
      *
      * @see DoubleArrayTrieAhoCorasick
      */
     public DoubleArrayTrieAhoCorasick<T> asAhoCorasick() {
         DoubleArrayTrieAhoCorasick<T> ac = this.mAhoCorasick;
         if (ac == null) {
-            ac = new DoubleArrayTrieAhoCorasick<T>( this );
-            this.mAhoCorasick = ac;
+            synchronized (this.mAhoCorasickLock) {
+                ac = this.mAhoCorasick;
+                if (ac == null) {
+                    ac = new DoubleArrayTrieAhoCorasick<T>( this );
+                    this.mAhoCorasick = ac;
+                }
+            }
         }
         return ac;
     }
 
+    /**
+     * 在调用线程中预先构造好AC自动机和前缀匹配用的父子关系索引，之后的请求不会碰上第一次构造的卡顿
+     * @return this
+     */
+    public DoubleArrayTrie<T> warmUp() {
+        this.getChildIndex();
+        this.asPrefixMatcher();
+        this.asAhoCorasick();
+        return this;
+    }
+
+    /**
+     * 在aExecutor中预先构造，参见<code>warmUp()</code>。AC自动机的构造依赖父子关系索引，模式串编号表又依赖AC自动机，因此是一条
+     * 先索引、后AC、再编号表的任务链。前缀匹配只是很轻的包装，它需要的父子关系索引已经在链上构造，不再单独提交任务
+     * @return 全部构造好后完成，结果就是this
+     */
+    public CompletableFuture<DoubleArrayTrie<T>> warmUp(Executor aExecutor) {
+        return CompletableFuture.supplyAsync( this::getChildIndex, aExecutor ).thenApplyAsync( (aChildIndex) -> this.asAhoCorasick(), aExecutor ).thenApplyAsync( (aAhoCorasick) -> {
+            aAhoCorasick.getPatternCount();
+            return this;
+        }, aExecutor );
+    }
+
     /**
      * 转成Map来用
      */
@@ -157,12 +287,12 @@ public final class DoubleArrayTrie<T> {
 
     //@ForDebugUse
     public void dump() {
-        DoubleArrayTrieNode<T> [] datArray = this.mDatArray;
-        for (int i = 0; i < datArray.length; i++) {
-            DoubleArrayTrieNode<T> n = datArray[ i ];
-            if (n != null) {
-                char c = n.getChar( datArray, i );
-                System.err.println( "i: " + i + " [" + n.mBase + ", " + n.mCheck + "]:" + c + ":" + n.mValue );
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        for (int i = 0; i < checkArray.length; i++) {
+            if (i == 0 || checkArray[ i ] != EMPTY_CHECK) {
+                char c = this.getChar( i );
+                System.err.println( "i: " + i + " [" + baseArray[ i ] + ", " + checkArray[ i ] + "]:" + c + ":" + this.getValue( i ) );
             }
         }
     }
@@ -170,57 +300,103 @@ public final class DoubleArrayTrie<T> {
     //@ForDebugUse
     public int getDatArrayLength() {
         //看dat数据压缩情况：数中间空的个数
-        return this.mDatArray.length;
+        return this.mCheckArray.length;
     }
 
     //@ForDebugUse
     public int getGapCount() {
         //看dat数据压缩情况：数中间空的个数
-        return Arrays.stream( this.mDatArray ).mapToInt( (aNextNode) -> aNextNode == null ? 1 : 0 ).sum();
+        return Arrays.stream( this.mCheckArray ).map( (aNextCheck) -> aNextCheck == EMPTY_CHECK ? 1 : 0 ).sum();
+    }
+
+    /**
+     * 父子关系索引，第一次调用时对mCheck计数排序建立，同asAhoCorasick()一样只构造一次。
+     * 这是缓存性质的，和DAT数据无关，因此依然符合不变对象
+     */
+    ChildIndex getChildIndex() {
+        ChildIndex childIndex = this.mChildIndex;
+        if (childIndex == null) {
+            synchronized (this.mChildIndexLock) {
+                childIndex = this.mChildIndex;
+                if (childIndex == null) {
+                    childIndex = ChildIndex.build( IntBuffer.wrap( this.mCheckArray ) );
+                    this.mChildIndex = childIndex;
+                }
+            }
+        }
+        return childIndex;
+    }
+
+    /**
+     * 按字典序的子树计数，第一次调用时建立，同getChildIndex()一样只构造一次
+     */
+    KeyRanks getKeyRanks() {
+        KeyRanks keyRanks = this.mKeyRanks;
+        if (keyRanks == null) {
+            synchronized (this.mKeyRanksLock) {
+                keyRanks = this.mKeyRanks;
+                if (keyRanks == null) {
+                    keyRanks = KeyRanks.build( this.mCheckArray, this.mValueArray, this.getChildIndex() );
+                    this.mKeyRanks = keyRanks;
+                }
+            }
+        }
+        return keyRanks;
+    }
+
+    /**
+     * 从虚根沿aKey走下去，返回最后到达的节点下标，走不下去返回-1
+     */
+    private int walk(CharSequence aKey) {
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = checkArray.length; i < keyCharLen; ++i) {
+            int index = baseArray[ parentIndex ] + aKey.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
+                return -1;
+            }
+            parentIndex = index;
+        }
+        return parentIndex;
+    }
+
+    /**
+     * 没有存储下标，也没有必要存储Unicode编码, 根据关系可简单的嘛: 本节点下标减去父节点的base就是本节点的unicode编码值
+     */
+    char getChar(int aDatIndex) {
+        return aDatIndex == 0 ? '\0' : ( char )(aDatIndex - this.mBaseArray[ this.mCheckArray[ aDatIndex ] ]);
+    }
+
+    /**
+     * 获取下标 aDatIndex 处的value，如果是延迟加载的value，第一次访问的时候才反序列化
+     */
+    @SuppressWarnings("unchecked")
+    T getValue(int aDatIndex) {
+        Object value = this.mValueArray[ aDatIndex ];
+        return value != LazyValueTable.LAZY_VALUE ? ( T )value : this.mLazyValueTable.get( aDatIndex );
     }
 
     private boolean traversalNextNode(int aDatNodeIndex, StringBuilder aKeyBuffer, boolean aNeedKey, Hit<T> aHit) {
         int end = 0;
-        DoubleArrayTrieNode<T> [] datArray = this.mDatArray;
-        DoubleArrayTrieNode<T> aDatNode = datArray[ aDatNodeIndex ];
-        if (aDatNode != null && aDatNode.mValue != null) {
+        if (this.mValueArray[ aDatNodeIndex ] != null) {
             if (aNeedKey) {
                 aKeyBuffer.setLength( 0 );
                 //对数据节点回溯到根
-                DoubleArrayTrieNode<T> ancestorNode = aDatNode;
+                int [] checkArray = this.mCheckArray;
                 int ancestorIndex = aDatNodeIndex;
                 while (ancestorIndex != 0) {
-                    aKeyBuffer.append( ancestorNode.getChar( datArray, ancestorIndex ) );
-                    ancestorIndex = ancestorNode.mCheck;
-                    ancestorNode = datArray[ ancestorIndex ];
+                    aKeyBuffer.append( this.getChar( ancestorIndex ) );
+                    ancestorIndex = checkArray[ ancestorIndex ];
                 }
                 //反向一下，因为子孙节点对应的字符在前面，祖先节点对应的字符在后面
                 aKeyBuffer.reverse();
                 end = aKeyBuffer.length();
             }
-            return aHit.hit( aKeyBuffer == null ? "" : aKeyBuffer, 0, end, aDatNode.mValue );
+            return aHit.hit( aKeyBuffer == null ? "" : aKeyBuffer, 0, end, this.getValue( aDatNodeIndex ) );
         }
         else {
             return true;
         }
     }
-
-    static final class DoubleArrayTrieNode<T> {
-        //虽然提供删除极为简单（只需要把节点的mCheck设置成无效-1),但没有必要,目的就是为了成为不变对象,以便可以任意的并发访问
-        final int mBase;
-        final int mCheck;
-        final T mValue;
-
-        DoubleArrayTrieNode(int aBase, int aCheck, T aValue) {
-            this.mBase = aBase;
-            this.mCheck = aCheck;
-            this.mValue = aValue;
-        }
-
-        char getChar(DoubleArrayTrieNode<T> [] aDatArray, int aThisDatIndex) {
-            //没有存储下标，也没有必要存储Unicode编码, 根据关系可简单的嘛
-            //只是需要外部告诉本节点的 aThisDatIndex 才能计算出本节点的unicode编码值
-            return ( char )(aThisDatIndex - aDatArray[ this.mCheck ].mBase);
-        }
-    }
 }
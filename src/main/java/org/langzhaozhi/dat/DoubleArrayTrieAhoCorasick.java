@@ -1,12 +1,19 @@
 package org.langzhaozhi.dat;
 
+import java.io.IOException;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
-
-import org.langzhaozhi.dat.DoubleArrayTrie.DoubleArrayTrieNode;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.IntStream;
 
 /**
  * <p>极速多模式串匹配,基于 Aho-Corasick</p>
@@ -20,12 +27,43 @@ import org.langzhaozhi.dat.DoubleArrayTrie.DoubleArrayTrieNode;
  * 才应该用非敏感匹配方式，建议尽量不要这么做</p>
  */
 public final class DoubleArrayTrieAhoCorasick<T> {
-    private DoubleArrayTrie<T> mOwnerDat;
-    private AhoCorasickStateNode [] mStateNodeArray;
+    //并行匹配时每块的最小长度
+    static final int MIN_PARALLEL_CHUNK_LENGTH = 1 << 16;
+    private final DoubleArrayTrie<T> mOwnerDat;
+    //AC状态同DAT数组下标完全一一对应，状态数据也采用平行int数组存储，不再为每个状态创建对象
+    //每个状态对应的树的深度，在这里的含义就是从虚根到本节点字符匹配到的字符串长度，
+    //本身是冗余信息没有必要存在的，因为可通过上溯到虚根计算得到，但为了加快访问速度还是做缓存
+    //DoubleArrayTrieFile持久化的时候直接读取这三个数组
+    final int [] mDepthArray;
+    //每个状态的failure状态对应于DAT数组的下标
+    final int [] mFailureArray;
+    //每个状态的输出链：沿failure链(不包括自己)遇到的第一个数据状态，没有就是虚根0，
+    //命中时只沿输出链通知，不再把整条failure链上没有数据的状态都走一遍
+    final int [] mOutputLinkArray;
+    //最长关键字的长度，也就是数据状态的最大深度，并行分块匹配时每块要往前多扫描这么长(减1)才不会漏掉跨块的关键字
+    private final int mMaxKeyLength;
+    //模式串编号表，第一次用到时才构造，参见getPatternCount()
+    private volatile PatternIds mPatternIds;
+    private final Object mPatternIdsLock = new Object();
 
     DoubleArrayTrieAhoCorasick(DoubleArrayTrie<T> aOwnerDat) {
+        //建立failure表和输出链
+        this( aOwnerDat, AhoCorasickStates.construct( IntBuffer.wrap( aOwnerDat.mBaseArray ), IntBuffer.wrap( aOwnerDat.mCheckArray ), aOwnerDat.getChildIndex(), (aDatIndex) -> aOwnerDat.mValueArray[ aDatIndex ] != null ) );
+    }
+
+    DoubleArrayTrieAhoCorasick(DoubleArrayTrie<T> aOwnerDat, AhoCorasickStates aStates) {
+        //from DoubleArrayTrieFile.load(): 文件中已经持久化了AC状态数据，直接整段读入不需要再构造
         this.mOwnerDat = aOwnerDat;
-        this.constructFailureStates();
+        this.mDepthArray = AhoCorasickStates.toArray( aStates.mDepthBuffer );
+        this.mFailureArray = AhoCorasickStates.toArray( aStates.mFailureBuffer );
+        this.mOutputLinkArray = AhoCorasickStates.toArray( aStates.mOutputLinkBuffer );
+        int maxKeyLength = 0;
+        for (int i = 0, count = this.mDepthArray.length; i < count; ++i) {
+            if (aOwnerDat.mValueArray[ i ] != null && this.mDepthArray[ i ] > maxKeyLength) {
+                maxKeyLength = this.mDepthArray[ i ];
+            }
+        }
+        this.mMaxKeyLength = maxKeyLength;
     }
 
     /**
@@ -35,20 +73,362 @@ public final class DoubleArrayTrieAhoCorasick<T> {
         return this.mOwnerDat;
     }
 
+    /**
+     * 生成一个流式匹配器，文本可以分块喂进去，块之间保留自动机状态，命中位置是流中的绝对位置。每个流用自己的匹配器
+     *
+     * @see DoubleArrayTrieStreamMatcher
+     */
+    public DoubleArrayTrieStreamMatcher<T> newStreamMatcher(StreamHit<T> aStreamHit) {
+        return new DoubleArrayTrieStreamMatcher<T>( this, aStreamHit );
+    }
+
+    /**
+     * 编译成DFA，匹配时每个字符不再上溯failure，只提供大小写敏感匹配。每次调用都重新编译，应该保存起来复用
+     * @param aDenseDepth 深度不超过此值的状态用稠密行，越大越快但内存越多，参见<code>DoubleArrayTrieAhoCorasickDfa</code>
+     *
+     * @see DoubleArrayTrieAhoCorasickDfa
+     */
+    public DoubleArrayTrieAhoCorasickDfa<T> compileDfa(int aDenseDepth) {
+        return new DoubleArrayTrieAhoCorasickDfa<T>( this.mOwnerDat, this.mDepthArray, this.mFailureArray, aDenseDepth );
+    }
+
     /**
      * AC模式匹配：字符大小写敏感的匹配，例如abc和ABC是不同的
      */
     public void matchCaseSensitive(CharSequence aMatcherText, Hit<T> aHit) {
+        this.matchCaseSensitiveRange( aMatcherText, 0, 0, aMatcherText.length(), aHit );
+    }
+
+    /**
+     * 是否含有任何关键字(大小写敏感)，第一次命中就返回，没有任何回调
+     */
+    public boolean containsAny(CharSequence aMatcherText) {
+        Object [] valueArray = this.mOwnerDat.mValueArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+            if (valueArray[ currentState ] != null || outputLinkArray[ currentState ] != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 命中总数(大小写敏感)，同<code>matchCaseSensitive(aMatcherText, aHit)</code>通知的次数一样，包括互相重叠的，没有任何回调
+     */
+    public long countMatches(CharSequence aMatcherText) {
+        Object [] valueArray = this.mOwnerDat.mValueArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        long matchCount = 0;
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+            for (int hitState = valueArray[ currentState ] != null ? currentState : outputLinkArray[ currentState ]; hitState != 0; hitState = outputLinkArray[ hitState ]) {
+                ++matchCount;
+            }
+        }
+        return matchCount;
+    }
+
+    /**
+     * 模式串个数，也就是DAT中的数据个数。模式串编号是[0, getPatternCount())中的整数，按照DAT数组下标的先后顺序编号，
+     * 同<code>DoubleArrayTrie::forEachFast</code>通知的先后顺序一致。第一次调用时才构造编号表
+     */
+    public int getPatternCount() {
+        return this.getPatternIds().mPatternStateArray.length;
+    }
+
+    /**
+     * 编号为aPatternId的模式串的数据对象
+     */
+    public T getPatternValue(int aPatternId) {
+        return this.mOwnerDat.getValue( this.getPatternIds().mPatternStateArray[ aPatternId ] );
+    }
+
+    /**
+     * 把aMatcherText中出现过的模式串编号(大小写敏感)设置到aPatternSet中，aPatternSet原有的位不清除，因此可以clear()后复用或者累积多个文本的结果。
+     * 某个编号已经设置过时，它输出链上的编号肯定也都设置过了，因此不再沿输出链走下去，这也要求aPatternSet中原有的位只能是之前匹配的结果
+     */
+    public void matchedPatternSet(CharSequence aMatcherText, BitSet aPatternSet) {
+        Object [] valueArray = this.mOwnerDat.mValueArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        int [] patternIdArray = this.getPatternIds().mPatternIdArray;
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+            for (int hitState = valueArray[ currentState ] != null ? currentState : outputLinkArray[ currentState ]; hitState != 0; hitState = outputLinkArray[ hitState ]) {
+                int patternId = patternIdArray[ hitState ];
+                if (aPatternSet.get( patternId )) {
+                    break;
+                }
+                aPatternSet.set( patternId );
+            }
+        }
+    }
+
+    /**
+     * 同<code>matchedPatternSet(aMatcherText, aPatternSet)</code>，只是位集合直接是long数组，第i个编号是aPatternBits[i >>> 6]的第(i & 63)位，
+     * aPatternBits的长度至少是(getPatternCount() + 63) >>> 6
+     */
+    public void matchedPatternSet(CharSequence aMatcherText, long [] aPatternBits) {
+        Object [] valueArray = this.mOwnerDat.mValueArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        int [] patternIdArray = this.getPatternIds().mPatternIdArray;
+        if (aPatternBits.length < (this.getPatternCount() + 63) >>> 6) {
+            throw new Error( "aPatternBits长度不够，至少需要" + ((this.getPatternCount() + 63) >>> 6) );
+        }
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+            for (int hitState = valueArray[ currentState ] != null ? currentState : outputLinkArray[ currentState ]; hitState != 0; hitState = outputLinkArray[ hitState ]) {
+                int patternId = patternIdArray[ hitState ];
+                long patternBit = 1L << patternId;
+                if ((aPatternBits[ patternId >>> 6 ] & patternBit) != 0) {
+                    break;
+                }
+                aPatternBits[ patternId >>> 6 ] |= patternBit;
+            }
+        }
+    }
+
+    /**
+     * <p>按指定语义的大小写敏感匹配，除STANDARD外只通知最终互不重叠的命中，参见<code>MatchKind</code>。</p>
+     * <p>冲突在一趟遍历中解决：最左语义下当前候选命中在自动机当前状态所代表的最长后缀的起点越过它的起点时就确定了，
+     * 通知后从它的结束位置回到虚根继续，因此每个命中最多回头重扫(最长关键字长度)个字符，不缓存也不排序。</p>
+     */
+    public void matchCaseSensitive(CharSequence aMatcherText, MatchKind aMatchKind, Hit<T> aHit) {
+        if (aMatchKind == MatchKind.STANDARD) {
+            this.matchCaseSensitive( aMatcherText, aHit );
+            return;
+        }
+        for (long nextHit = this.nextHitCaseSensitive( aMatcherText, 0, aMatchKind ); nextHit >= 0; nextHit = this.nextHitCaseSensitive( aMatcherText, ( int )nextHit, aMatchKind )) {
+            int hitState = ( int )(nextHit >>> 32);
+            int hitEnd = ( int )nextHit;
+            if (!aHit.hit( aMatcherText, hitEnd - this.mDepthArray[ hitState ], hitEnd, this.mOwnerDat.getValue( hitState ) )) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 最左最长替换，参见<code>replaceCaseSensitive(aText, aMatchKind, aReplacer)</code>
+     */
+    public String replaceCaseSensitive(CharSequence aText, Replacer<T> aReplacer) {
+        return this.replaceCaseSensitive( aText, MatchKind.LEFTMOST_LONGEST, aReplacer );
+    }
+
+    /**
+     * <p>多模式串替换：按aMatchKind语义找出互不重叠的命中，一边匹配一边把命中之间的原文和aReplacer给出的替换内容依次输出，只走一趟。</p>
+     * <p>没有任何命中时直接返回aText.toString()，aText本身是String的话就是它自己，不分配任何对象。</p>
+     * @param aMatchKind 不能是STANDARD，重叠的命中没法替换
+     */
+    public String replaceCaseSensitive(CharSequence aText, MatchKind aMatchKind, Replacer<T> aReplacer) {
+        long firstHit = this.nextHitCaseSensitive( aText, 0, DoubleArrayTrieAhoCorasick.checkReplaceMatchKind( aMatchKind ) );
+        if (firstHit < 0) {
+            return aText.toString();
+        }
+        StringBuilder output = new StringBuilder( aText.length() + 16 );
+        this.replaceCaseSensitive( aText, aMatchKind, aReplacer, output, firstHit );
+        return output.toString();
+    }
+
+    /**
+     * 替换结果追加到aOutput，aOutput可以在多次调用之间复用(先setLength(0))，容量足够时不分配任何对象
+     * @return 是否有命中被替换
+     */
+    public boolean replaceCaseSensitive(CharSequence aText, MatchKind aMatchKind, Replacer<T> aReplacer, StringBuilder aOutput) {
+        return this.replaceCaseSensitive( aText, aMatchKind, aReplacer, aOutput, this.nextHitCaseSensitive( aText, 0, DoubleArrayTrieAhoCorasick.checkReplaceMatchKind( aMatchKind ) ) );
+    }
+
+    /**
+     * 替换结果写入aOutput的当前位置，空间不够时抛出BufferOverflowException
+     * @return 是否有命中被替换
+     */
+    public boolean replaceCaseSensitive(CharSequence aText, MatchKind aMatchKind, Replacer<T> aReplacer, CharBuffer aOutput) {
+        return this.replaceCaseSensitive( aText, aMatchKind, aReplacer, aOutput, this.nextHitCaseSensitive( aText, 0, DoubleArrayTrieAhoCorasick.checkReplaceMatchKind( aMatchKind ) ) );
+    }
+
+    /**
+     * 在ForkJoinPool.commonPool()中并行匹配并且按文本顺序通知，参见<code>matchCaseSensitiveParallel(aMatcherText, aHit, aInTextOrder, aForkJoinPool)</code>
+     */
+    public void matchCaseSensitiveParallel(CharSequence aMatcherText, Hit<T> aHit) {
+        this.matchCaseSensitiveParallel( aMatcherText, aHit, true, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * <p>多核并行的大小写敏感匹配，适合几十M以上的大文本：把文本切分成若干块在aForkJoinPool中各自独立地匹配，
+     * 每块从自己的起始位置往前多扫描(最长关键字长度-1)个字符，因此跨越块边界的关键字不会漏掉；
+     * 每个命中只归属于它的结束位置所在的那一块，因此重叠部分也不会重复通知。命中结果的集合同<code>matchCaseSensitive</code>完全一样。</p>
+     * <p>aMatcherText会被多个线程同时读取，String、StringBuilder(只读期间)、CharBuffer.wrap(char[])等都没有问题。文本较短时直接顺序匹配。</p>
+     * @param aInTextOrder true: 各块的命中先缓存起来，然后在调用线程中按块的顺序通知，通知顺序同<code>matchCaseSensitive</code>完全一样，aHit不需要线程安全，
+     *                     但缓存的命中要占内存；false: 在各工作线程中直接通知，没有顺序，aHit必须是线程安全的(例如往ConcurrentLinkedQueue里收集)，
+     *                     aHit返回false后其他块也会尽快停下来，但已经在路上的少量命中仍然可能被通知
+     * @param aForkJoinPool 用于并行匹配的线程池
+     */
+    public void matchCaseSensitiveParallel(CharSequence aMatcherText, Hit<T> aHit, boolean aInTextOrder, ForkJoinPool aForkJoinPool) {
+        int textLength = aMatcherText.length();
+        //块太小的话重叠部分和调度开销就不划算了
+        int chunkLength = Math.max( Math.max( MIN_PARALLEL_CHUNK_LENGTH, this.mMaxKeyLength << 4 ), textLength / (aForkJoinPool.getParallelism() << 2) + 1 );
+        int chunkCount = (textLength + chunkLength - 1) / chunkLength;
+        if (chunkCount <= 1) {
+            this.matchCaseSensitive( aMatcherText, aHit );
+            return;
+        }
+        int overlapLength = Math.max( 0, this.mMaxKeyLength - 1 );
+        if (aInTextOrder) {
+            @SuppressWarnings("unchecked")
+            ForkJoinTask<HitBuffer> [] chunkTasks = new ForkJoinTask [ chunkCount ];
+            for (int i = 0; i < chunkCount; ++i) {
+                int chunkStart = i * chunkLength;
+                int chunkEnd = Math.min( textLength, chunkStart + chunkLength );
+                chunkTasks[ i ] = aForkJoinPool.submit( () -> {
+                    HitBuffer hitBuffer = new HitBuffer();
+                    this.matchCaseSensitiveRange( aMatcherText, Math.max( 0, chunkStart - overlapLength ), chunkStart, chunkEnd, hitBuffer );
+                    return hitBuffer;
+                } );
+            }
+            //按块的顺序等待并通知，后面的块在通知前面的块期间继续匹配
+            int i = 0;
+            try {
+                while (i < chunkCount) {
+                    if (!chunkTasks[ i++ ].join().replay( aMatcherText, aHit )) {
+                        return;
+                    }
+                }
+            }
+            finally {
+                //aHit返回false、某块的匹配抛出异常(join重新抛出)或者aHit抛出异常时，后面的块都不必再匹配了；全部通知完时i == chunkCount
+                for (int j = i; j < chunkCount; ++j) {
+                    chunkTasks[ j ].cancel( false );
+                }
+            }
+        }
+        else {
+            AtomicBoolean stopped = new AtomicBoolean();
+            Hit<T> stoppableHit = (aSearchText, aStart, aEnd, aValue) -> {
+                if (stopped.get() || !aHit.hit( aSearchText, aStart, aEnd, aValue )) {
+                    stopped.set( true );
+                    return false;
+                }
+                return true;
+            };
+            aForkJoinPool.submit( () -> IntStream.range( 0, chunkCount ).parallel().forEach( (aChunkIndex) -> {
+                int chunkStart = aChunkIndex * chunkLength;
+                int chunkEnd = Math.min( textLength, chunkStart + chunkLength );
+                if (!stopped.get()) {
+                    this.matchCaseSensitiveRange( aMatcherText, Math.max( 0, chunkStart - overlapLength ), chunkStart, chunkEnd, stoppableHit );
+                }
+            } ) ).join();
+        }
+    }
+
+    /**
+     * 在ForkJoinPool.commonPool()中批量匹配，参见<code>matchCaseSensitiveBatch(aDocumentList, aExecutor)</code>
+     */
+    public DoubleArrayTrieBatchHits<T> matchCaseSensitiveBatch(List<? extends CharSequence> aDocumentList) {
+        return this.matchCaseSensitiveBatch( aDocumentList, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * <p>批量大小写敏感匹配，适合对成千上万个短文档(消息、标题、查询串)做同样的匹配：文档按顺序划分成若干连续的分区，
+     * 每个分区作为一个任务提交给aExecutor，分区内复用同一份命中缓冲区，命中只以int记录，最后拼接成<code>DoubleArrayTrieBatchHits</code>。
+     * 调用线程等待所有分区完成后返回。</p>
+     * <p>aExecutor可以是任意的线程池，在新版本JDK上也可以是虚拟线程的执行器(Executors.newVirtualThreadPerTaskExecutor())。
+     * 文档不多时直接在调用线程中匹配。</p>
+     */
+    public DoubleArrayTrieBatchHits<T> matchCaseSensitiveBatch(List<? extends CharSequence> aDocumentList, Executor aExecutor) {
+        return DoubleArrayTrieBatchHits.match( this, aDocumentList, aExecutor );
+    }
+
+    private boolean replaceCaseSensitive(CharSequence aText, MatchKind aMatchKind, Replacer<T> aReplacer, Appendable aOutput, long aFirstHit) {
+        try {
+            int copyFrom = 0;
+            for (long nextHit = aFirstHit; nextHit >= 0; nextHit = this.nextHitCaseSensitive( aText, ( int )nextHit, aMatchKind )) {
+                int hitState = ( int )(nextHit >>> 32);
+                int hitEnd = ( int )nextHit;
+                int hitStart = hitEnd - this.mDepthArray[ hitState ];
+                aOutput.append( aText, copyFrom, hitStart );
+                aReplacer.replace( aText, hitStart, hitEnd, this.mOwnerDat.getValue( hitState ), aOutput );
+                copyFrom = hitEnd;
+            }
+            aOutput.append( aText, copyFrom, aText.length() );
+            return aFirstHit >= 0;
+        }
+        catch (IOException e) {
+            //StringBuilder和CharBuffer本身不会抛出IOException，只可能来自aReplacer
+            throw new Error( "替换失败", e );
+        }
+    }
+
+    private static MatchKind checkReplaceMatchKind(MatchKind aMatchKind) {
+        if (aMatchKind == MatchKind.STANDARD) {
+            throw new Error( "STANDARD语义的命中互相重叠，不能用于替换" );
+        }
+        return aMatchKind;
+    }
+
+    /**
+     * <p>从aFrom开始从虚根找下一个按aMatchKind语义确定下来的命中(不能是STANDARD)，没有返回-1，
+     * 否则高32位是命中的状态，低32位是命中的结束位置，起始位置就是结束位置减去状态的深度，
+     * 下一个命中从此结束位置开始找，因此命中之间互不重叠。</p>
+     * <p>最左语义下，以后的命中的起点不会比当前状态所代表的最长后缀的起点更靠左，这个起点越过当前候选的起点时候选就确定了，
+     * 不缓存也不排序，每个命中最多回头重扫(最长关键字长度)个字符。</p>
+     */
+    private long nextHitCaseSensitive(CharSequence aMatcherText, int aFrom, MatchKind aMatchKind) {
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] depthArray = this.mDepthArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        boolean nonOverlapping = aMatchKind == MatchKind.NON_OVERLAPPING;
+        boolean longest = aMatchKind == MatchKind.LEFTMOST_LONGEST;
+        //当前候选命中，candidateState为0表示还没有候选
+        int candidateState = 0;
+        int candidateStart = 0;
+        int candidateEnd = 0;
+        int currentState = 0;//从虚根开始
+        for (int i = aFrom, count = aMatcherText.length(); i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+            //在此结束的命中中最长的(起点最靠左的)就是输出链上第一个
+            int hitState = dat.mValueArray[ currentState ] != null ? currentState : outputLinkArray[ currentState ];
+            if (hitState != 0) {
+                if (nonOverlapping) {
+                    //最早结束优先，一发现就确定了
+                    return (( long )hitState << 32) | (i + 1);
+                }
+                int hitStart = i - depthArray[ hitState ] + 1;
+                //结束位置更靠后，因此同一起点时最长语义要替换，最左优先(最短)语义保留原来的
+                if (candidateState == 0 || hitStart < candidateStart || (longest && hitStart == candidateStart)) {
+                    candidateState = hitState;
+                    candidateStart = hitStart;
+                    candidateEnd = i + 1;
+                }
+            }
+            int aliveStart = i + 1 - depthArray[ currentState ];
+            if (candidateState != 0 && (aliveStart > candidateStart || (!longest && aliveStart == candidateStart))) {
+                return (( long )candidateState << 32) | candidateEnd;
+            }
+        }
+        return candidateState == 0 ? -1 : (( long )candidateState << 32) | candidateEnd;
+    }
+
+    /**
+     * 从aScanFrom开始从虚根匹配到aTo，只通知结束位置在(aReportFrom, aTo]中的命中
+     */
+    private boolean matchCaseSensitiveRange(CharSequence aMatcherText, int aScanFrom, int aReportFrom, int aTo, Hit<? super T> aHit) {
         //大小写敏感匹配,很简单，对每个字符对应于一个failure转移
         boolean whetherContinueHit = true;
-        AhoCorasickStateNode [] stateNodeArray = DoubleArrayTrieAhoCorasick.this.mStateNodeArray;
-        AhoCorasickStateNode rootStateNode = stateNodeArray[ 0 ];
-        AhoCorasickStateNode currentStateNode = rootStateNode;//从虚根开始
-        for (int i = 0, count = aMatcherText.length(); whetherContinueHit && i < count; ++i) {
+        int currentState = 0;//从虚根开始
+        for (int i = aScanFrom; i < aReportFrom; ++i) {
+            //重叠部分只转移状态不通知
+            currentState = this.nextTransitionState( currentState, aMatcherText.charAt( i ) );
+        }
+        for (int i = aReportFrom; whetherContinueHit && i < aTo; ++i) {
             char nextChar = aMatcherText.charAt( i );
-            currentStateNode = currentStateNode.nextTransitionState( nextChar );
-            whetherContinueHit = currentStateNode.tryHitCaseSensitive( i, aMatcherText, aHit );
+            currentState = this.nextTransitionState( currentState, nextChar );
+            whetherContinueHit = this.tryHitCaseSensitive( currentState, i, aMatcherText, aHit );
         }
+        return whetherContinueHit;
     }
 
     /**
@@ -74,26 +454,24 @@ public final class DoubleArrayTrieAhoCorasick<T> {
         HashSet<Integer> repeatStartPosSet = new HashSet<Integer>();
         HashSet<Integer> preLayerSet = new HashSet<Integer>();
         HashSet<Integer> thisLayerSet = new HashSet<Integer>();
-        AhoCorasickStateNode [] stateNodeArray = this.mStateNodeArray;
-        AhoCorasickStateNode rootStateNode = stateNodeArray[ 0 ];//从虚根开始
-        preLayerSet.add( rootStateNode.mThisDatIndex );
+        preLayerSet.add( 0 );//从虚根开始
         for (int i = 0; i < matcherTextCharCount; ++i) {
             char oneChar = aMatcherText.charAt( i );
             char twoChar = twoChars[ i ];
 
             for (Iterator<Integer> preIt = preLayerSet.iterator(); preIt.hasNext();) {
-                AhoCorasickStateNode preStateNode = stateNodeArray[ preIt.next() ];
+                int preState = preIt.next();
                 //迭代后清空preLayerSet
                 preIt.remove();
 
-                thisLayerSet.add( preStateNode.nextTransitionState( oneChar ).mThisDatIndex );
+                thisLayerSet.add( this.nextTransitionState( preState, oneChar ) );
                 if (twoChar != oneChar) {
-                    thisLayerSet.add( preStateNode.nextTransitionState( twoChar ).mThisDatIndex );
+                    thisLayerSet.add( this.nextTransitionState( preState, twoChar ) );
                 }
             }
             repeatStartPosSet.clear();
             for (Integer nextLayer : thisLayerSet) {
-                if (!stateNodeArray[ nextLayer ].tryHitCaseInsensitive( i, aMatcherText, repeatStartPosSet, aHit )) {
+                if (!this.tryHitCaseInsensitive( nextLayer, i, aMatcherText, repeatStartPosSet, aHit )) {
                     //结束匹配任务
                     return;
                 }
@@ -106,176 +484,153 @@ public final class DoubleArrayTrieAhoCorasick<T> {
     }
 
     /**
-     * 建立failure表
+     * AC模式匹配的大小写折叠匹配，只用于<code>DoubleArrayTrieMaker::makeDoubleArrayTrieCaseFolded</code>构造的DAT：
+     * aMatcherText的每个字符先折叠再转移，因此不区分大小写，但同大小写敏感匹配一样只是单状态遍历，没有任何对象分配，
+     * 比<code>matchCaseInsensitive</code>快得多。命中位置就是aMatcherText中的位置
      */
-    private void constructFailureStates() {
-        DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
-        //建立一个同DAT数组下标完全对应的状态表,专门处理AC状态迁移
-        AhoCorasickStateNode [] stateNodeArray = DoubleArrayTrieAhoCorasick.newArray( datArray.length );//居然不能new AhoCorasickStateNode[ datArray.length ];
-        this.mStateNodeArray = stateNodeArray;
-        //创建对应虚根，其dat数组下标和深度都是0
-        AhoCorasickStateNode rootStateNode = new AhoCorasickStateNode( 0 );
-        stateNodeArray[ 0 ] = rootStateNode;
-        //虚根是第0层，即深度为0
-        rootStateNode.mDepth = 0;
-        //虚根的failure指向自己
-        rootStateNode.mFailureDatIndex = 0;
-        //第一步: 扫描一遍建立临时用的Trie树,用数组下标来建立对应父子关系比hash表快太多了
-        @SuppressWarnings("unchecked")
-        LinkedList<AhoCorasickStateNode> [] trie = new LinkedList [ datArray.length ];
-        for (int i = 1, datArrayLength = datArray.length; i < datArrayLength; ++i) {//从1开始，0是虚根
-            if (datArray[ i ] != null) {
-                AhoCorasickStateNode childStateNode = new AhoCorasickStateNode( i );
-                stateNodeArray[ i ] = childStateNode;
-                //其实就是根据mCheck找到父亲节点建立父子关系
-                int parentIndex = datArray[ i ].mCheck;
-                LinkedList<AhoCorasickStateNode> childrenOfParentNode = trie[ parentIndex ];
-                if (childrenOfParentNode == null) {
-                    childrenOfParentNode = new LinkedList<AhoCorasickStateNode>();
-                    trie[ parentIndex ] = childrenOfParentNode;
-                }
-                childrenOfParentNode.add( childStateNode );
-            }
-        }
-        //第二步: 将深度为1的节点的failure设为虚根节点下标0, 同时把它们中的非叶子节点加入到bfs遍历队列
-        LinkedList<AhoCorasickStateNode> queue = new LinkedList<AhoCorasickStateNode>();
-        for (AhoCorasickStateNode firstDepthStateNode : trie[ 0 ]) {
-            firstDepthStateNode.mDepth = 1;
-            firstDepthStateNode.mFailureDatIndex = 0;
-            if (trie[ firstDepthStateNode.mThisDatIndex ] != null) {
-                //排除第一层中本身是叶子的节点
-                queue.addLast( firstDepthStateNode );
-            }
+    public void matchCaseFolded(CharSequence aMatcherText, Hit<T> aHit) {
+        boolean whetherContinueHit = true;
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); whetherContinueHit && i < count; ++i) {
+            currentState = this.nextTransitionState( currentState, CaseFolding.fold( aMatcherText.charAt( i ) ) );
+            whetherContinueHit = this.tryHitCaseSensitive( currentState, i, aMatcherText, aHit );
         }
-        //第三步: 为除了虚根和第1层外的其他节点建立failure表，这是一个bfs遍历方式
-        while (!queue.isEmpty()) {
-            AhoCorasickStateNode parentStateNode = queue.removeFirst();
-            int childrenDepth = parentStateNode.mDepth + 1;
-            LinkedList<AhoCorasickStateNode> children = trie[ parentStateNode.mThisDatIndex ];
-            //为其下一层每个Success节点建立failure表
-            for (AhoCorasickStateNode nextChildStateNode : children) {
-                //对应的状态转移码
-                char transitionChar = nextChildStateNode.getChar();
-                AhoCorasickStateNode traceFailureState = stateNodeArray[ parentStateNode.mFailureDatIndex ];
-                AhoCorasickStateNode newFailureState = traceFailureState.nextTransitionState( transitionChar );
-                nextChildStateNode.mDepth = childrenDepth;
-                nextChildStateNode.mFailureDatIndex = newFailureState.mThisDatIndex;
-                //add bfs遍历,排除本身是叶子的节点
-                if (trie[ nextChildStateNode.mThisDatIndex ] != null) {
-                    queue.addLast( nextChildStateNode );
+    }
+
+    private PatternIds getPatternIds() {
+        PatternIds patternIds = this.mPatternIds;
+        if (patternIds == null) {
+            synchronized (this.mPatternIdsLock) {
+                patternIds = this.mPatternIds;
+                if (patternIds == null) {
+                    patternIds = new PatternIds( this.mOwnerDat.mValueArray );
+                    this.mPatternIds = patternIds;
                 }
             }
         }
+        return patternIds;
     }
 
-    @SafeVarargs
-    static <E> E [] newArray(int aNewSize, E... aArray) {
-        //居然不能 new AhoCorasickStateNode[arrayLength] 数组，只能用这个怪异方法了
-        return Arrays.copyOf( aArray, aNewSize );
-    }
-
-    final class AhoCorasickStateNode {
-        //本节点对应于DAT数组中的下标
-        final int mThisDatIndex;
-        //本节点对应的树的深度，在这里的含义就是从虚根到本节点字符匹配到的字符串长度，
-        //本身是冗余信息没有必要存在的，因为可通过上溯到虚根计算得到，但为了加快访问速度还是做缓存
-        int mDepth;
-        //failure状态对应于DAT数组的下标
-        int mFailureDatIndex;
-
-        AhoCorasickStateNode(int aDatIndex) {
-            this.mThisDatIndex = aDatIndex;
-        }
-
-        /**
-         * 获取本节点对应的unicode编码
-         */
-        char getChar() {
-            DoubleArrayTrieNode<T> [] datArray = DoubleArrayTrieAhoCorasick.this.mOwnerDat.mDatArray;
-            int thisDatIndex = this.mThisDatIndex;
-            return datArray[ thisDatIndex ].getChar( datArray, thisDatIndex );
-        }
-
-        /**
-         * 转移到下一个状态（基于success转移）
-         * @param aTransitionChar 希望按此字符转移
-         * @return 转移结果,返回为null说明 aTransitionChar 不是本节点的 success 状态码
-         */
-        AhoCorasickStateNode trySuccessState(char aTransitionChar) {
-            DoubleArrayTrieNode<T> [] datArray = DoubleArrayTrieAhoCorasick.this.mOwnerDat.mDatArray;
-            DoubleArrayTrieNode<T> thisDatNode = datArray[ this.mThisDatIndex ];
-            int transitionIndex = thisDatNode.mBase + aTransitionChar;
-            if (transitionIndex < 0 || transitionIndex >= datArray.length) {
-                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外
-                return null;
+    /**
+     * 转移到下一个状态：总是先尝试用success表转移，不能success才用failure表转移,直到上溯到虚根节点
+     * @param aState 当前状态，也就是DAT数组下标
+     * @param aTransitionChar 希望按此字符转移
+     * @return 转移结果状态
+     */
+    int nextTransitionState(int aState, char aTransitionChar) {
+        int [] baseArray = this.mOwnerDat.mBaseArray;
+        int [] checkArray = this.mOwnerDat.mCheckArray;
+        int [] failureArray = this.mFailureArray;
+        int datArrayLength = checkArray.length;
+        int state = aState;
+        while (true) {
+            int transitionIndex = baseArray[ state ] + aTransitionChar;
+            if (transitionIndex > 0 && transitionIndex < datArrayLength && checkArray[ transitionIndex ] == state) {
+                //是真的success节点:由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+                return transitionIndex;
             }
-            DoubleArrayTrieNode<T> successDatNode = datArray[ transitionIndex ];
-            if (successDatNode == null || successDatNode.mCheck != this.mThisDatIndex) {
-                //不是真的success节点
-                return null;
+            else if (state == 0) {
+                return 0;
             }
             else {
-                return DoubleArrayTrieAhoCorasick.this.mStateNodeArray[ transitionIndex ];
+                state = failureArray[ state ];
             }
         }
+    }
 
-        AhoCorasickStateNode nextTransitionState(char aTransitionChar) {
-            //总是先尝试用success表转移
-            AhoCorasickStateNode parentStateNode = this;
-            AhoCorasickStateNode transitionStateNode = this.trySuccessState( aTransitionChar );
-            while (transitionStateNode == null) {
-                //不能success才用failure表转移,直到上溯到虚根节点
-                if (parentStateNode.mThisDatIndex == 0) {
-                    transitionStateNode = parentStateNode;
-                }
-                else {
-                    parentStateNode = DoubleArrayTrieAhoCorasick.this.mStateNodeArray[ parentStateNode.mFailureDatIndex ];
-                    transitionStateNode = parentStateNode.nextTransitionState( aTransitionChar );
-                }
+    private boolean tryHitCaseSensitive(int aState, int aPosition, CharSequence aMatcherText, Hit<? super T> aHit) {
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] depthArray = this.mDepthArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        //自己不是数据状态就直接从输出链开始
+        int currentState = dat.mValueArray[ aState ] != null ? aState : outputLinkArray[ aState ];
+        while (currentState != 0) {
+            int startTextIndex = aPosition - depthArray[ currentState ] + 1;
+            if (!aHit.hit( aMatcherText, startTextIndex, aPosition + 1, dat.getValue( currentState ) )) {
+                //停止hit通知，结束任务了
+                return false;
             }
-            return transitionStateNode;
+            //沿输出链继续上溯直到虚根
+            currentState = outputLinkArray[ currentState ];
         }
+        return true;
+    }
 
-        boolean tryHitCaseSensitive(int aPosition, CharSequence aMatcherText, Hit<T> aHit) {
-            DoubleArrayTrieNode<T> [] datArray = DoubleArrayTrieAhoCorasick.this.mOwnerDat.mDatArray;
-            AhoCorasickStateNode [] stateNodeArray = DoubleArrayTrieAhoCorasick.this.mStateNodeArray;
-            AhoCorasickStateNode currentStateNode = this;
-            while (currentStateNode.mThisDatIndex != 0) {
-                DoubleArrayTrieNode<T> currentDatNode = datArray[ currentStateNode.mThisDatIndex ];
-                if (currentDatNode.mValue != null) {
-                    int startTextIndex = aPosition - currentStateNode.mDepth + 1;
-                    if (!aHit.hit( aMatcherText, startTextIndex, aPosition + 1, currentDatNode.mValue )) {
-                        //停止hit通知，结束任务了
-                        return false;
-                    }
+    private boolean tryHitCaseInsensitive(int aState, int aPosition, CharSequence aMatcherText, Set<Integer> aRepeatSet, Hit<T> aHit) {
+        //大小写不敏感时很容易重复匹配到相同的 (start,end)对，因此使用 aRepeatSet 来剔除重复的
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] depthArray = this.mDepthArray;
+        int [] outputLinkArray = this.mOutputLinkArray;
+        int currentState = dat.mValueArray[ aState ] != null ? aState : outputLinkArray[ aState ];
+        while (currentState != 0) {
+            Integer startTextIndex = aPosition - depthArray[ currentState ] + 1;
+            if (!aRepeatSet.contains( startTextIndex )) {
+                //剃掉相同(start,end)完全重复的
+                aRepeatSet.add( startTextIndex );
+                if (!aHit.hit( aMatcherText, startTextIndex, aPosition + 1, dat.getValue( currentState ) )) {
+                    return false;
                 }
-                //failure继续上溯直到虚根
-                currentStateNode = stateNodeArray[ currentStateNode.mFailureDatIndex ];
             }
+            //沿输出链继续上溯直到虚根
+            currentState = outputLinkArray[ currentState ];
+        }
+        return true;
+    }
+
+    /**
+     * 按文本顺序并行匹配时缓存一块的命中，之后在调用线程中按原顺序重放
+     */
+    private static final class HitBuffer implements Hit<Object> {
+        private int [] mStartEndArray = new int [ 32 ];
+        private Object [] mValueArray = new Object [ 16 ];
+        private int mSize;
+
+        @Override
+        public boolean hit(CharSequence aSearchText, int aStart, int aEnd, Object aValue) {
+            if (this.mSize == this.mValueArray.length) {
+                this.mStartEndArray = Arrays.copyOf( this.mStartEndArray, this.mSize << 2 );
+                this.mValueArray = Arrays.copyOf( this.mValueArray, this.mSize << 1 );
+            }
+            this.mStartEndArray[ this.mSize << 1 ] = aStart;
+            this.mStartEndArray[ (this.mSize << 1) + 1 ] = aEnd;
+            this.mValueArray[ this.mSize++ ] = aValue;
             return true;
         }
 
-        boolean tryHitCaseInsensitive(int aPosition, CharSequence aMatcherText, Set<Integer> aRepeatSet, Hit<T> aHit) {
-            //大小写不敏感时很容易重复匹配到相同的 (start,end)对，因此使用 aRepeatSet 来剔除重复的
-            DoubleArrayTrieNode<T> [] datArray = DoubleArrayTrieAhoCorasick.this.mOwnerDat.mDatArray;
-            AhoCorasickStateNode [] stateNodeArray = DoubleArrayTrieAhoCorasick.this.mStateNodeArray;
-            AhoCorasickStateNode currentStateNode = this;
-            while (currentStateNode.mThisDatIndex != 0) {
-                DoubleArrayTrieNode<T> currentDatNode = datArray[ currentStateNode.mThisDatIndex ];
-                if (currentDatNode.mValue != null) {
-                    Integer startTextIndex = aPosition - currentStateNode.mDepth + 1;
-                    if (!aRepeatSet.contains( startTextIndex )) {
-                        //剃掉相同(start,end)完全重复的
-                        aRepeatSet.add( startTextIndex );
-                        if (!aHit.hit( aMatcherText, startTextIndex, aPosition + 1, currentDatNode.mValue )) {
-                            return false;
-                        }
-                    }
+        @SuppressWarnings("unchecked")
+        <T> boolean replay(CharSequence aSearchText, Hit<T> aHit) {
+            for (int i = 0; i < this.mSize; ++i) {
+                if (!aHit.hit( aSearchText, this.mStartEndArray[ i << 1 ], this.mStartEndArray[ (i << 1) + 1 ], ( T )this.mValueArray[ i ] )) {
+                    return false;
                 }
-                //failure继续上溯直到虚根
-                currentStateNode = stateNodeArray[ currentStateNode.mFailureDatIndex ];
             }
             return true;
         }
     }
+
+    /**
+     * 模式串编号表：DAT数组下标和稠密的模式串编号之间的双向映射
+     */
+    private static final class PatternIds {
+        //DAT数组下标 -> 模式串编号，不是数据节点的为-1
+        private final int [] mPatternIdArray;
+        //模式串编号 -> DAT数组下标
+        private final int [] mPatternStateArray;
+
+        PatternIds(Object [] aValueArray) {
+            int [] patternIdArray = new int [ aValueArray.length ];
+            int patternCount = 0;
+            for (int i = 0; i < aValueArray.length; ++i) {
+                patternIdArray[ i ] = aValueArray[ i ] != null ? patternCount++ : -1;
+            }
+            int [] patternStateArray = new int [ patternCount ];
+            for (int i = 0; i < aValueArray.length; ++i) {
+                if (patternIdArray[ i ] >= 0) {
+                    patternStateArray[ patternIdArray[ i ] ] = i;
+                }
+            }
+            this.mPatternIdArray = patternIdArray;
+            this.mPatternStateArray = patternStateArray;
+        }
+    }
 }
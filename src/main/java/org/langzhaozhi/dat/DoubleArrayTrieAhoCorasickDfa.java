@@ -0,0 +1,266 @@
+package org.langzhaozhi.dat;
+
+import java.util.Arrays;
+
+/**
+ * <p>编译成确定有限自动机DFA的AhoCorasick，通过<code>DoubleArrayTrieAhoCorasick::compileDfa</code>来生成</p>
+ * <p>不变对象，意味着一旦构造就不再改变，因此可以任意多线程并发访问。</p>
+ * <p><code>DoubleArrayTrieAhoCorasick</code>在失配的时候要沿着failure一直上溯，每个字符的代价取决于状态的深度，不可预期。
+ * 这里预先为每个状态算好所有字符的转移目标，匹配时每个字符不再上溯failure：</p>
+ * <ul>
+ * <li>字符先映射成稠密的字符类：只有关键字中出现的字符才有自己的类号1..K，其他字符都是类0，类0总是转移到虚根；</li>
+ * <li>状态按照bfs顺序重新编号，深度不超过aDenseDepth的浅层热状态用稠密行，每个字符转移就是一次数组访问；</li>
+ * <li>更深的状态用稀疏行，只保存转移目标同failure链上第一个稠密状态不一样的字符，查不到就用那个稠密状态的行，每个字符最多一次二分查找加一次数组访问。</li>
+ * </ul>
+ * <p>aDenseDepth越大越快但内存越多，稠密行的内存是 状态数*(K+1)*4 字节，例如只有虚根用稠密行传0，全部用稠密行传<code>Integer.MAX_VALUE</code>。
+ * 稀疏行的大小取决于failure链上到稠密状态之前有多少稀疏状态，只有虚根用稠密行时深层状态会继承第一层状态的全部儿子，
+ * 对中文这样字符多的数据稀疏行会非常大，一般至少应该让第一层也用稠密行，英文等字符少的数据可以更深。
+ * 命中时沿着预先算好的输出链通知，只经过真正有数据的状态。只提供大小写敏感的匹配，匹配结果及其先后顺序同<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>完全一样。</p>
+ *
+ * @see DoubleArrayTrieAhoCorasick
+ */
+public final class DoubleArrayTrieAhoCorasickDfa<T> {
+    private final DoubleArrayTrie<T> mOwnerDat;
+    //字符到字符类的映射，下标就是字符
+    private final int [] mCharClassArray;
+    //稠密行的宽度K+1
+    private final int mRowWidth;
+    //编号小于mDenseStateCount的状态用稠密行，第0行是虚根
+    private final int mDenseStateCount;
+    private final int [] mDenseTable;
+    //稀疏状态s在failure链上的第一个稠密状态，稀疏行中没有的字符就按这个稠密状态的行转移
+    private final int [] mFallbackStateArray;
+    //稀疏行：状态s的转移在[mSparseStartArray[s], mSparseStartArray[s+1])之间，按字符类升序
+    private final int [] mSparseStartArray;
+    private final int [] mSparseClassArray;
+    private final int [] mSparseTargetArray;
+    //每个状态对应的DAT下标、深度
+    private final int [] mDatIndexArray;
+    private final int [] mDepthArray;
+    //状态s沿failure链(包括s自己)遇到的第一个数据状态，没有就是0
+    private final int [] mOutputArray;
+    //数据状态s之后沿failure链的下一个数据状态，没有就是0
+    private final int [] mNextOutputArray;
+
+    DoubleArrayTrieAhoCorasickDfa(DoubleArrayTrie<T> aOwnerDat, int [] aDepthArray, int [] aFailureArray, int aDenseDepth) {
+        this.mOwnerDat = aOwnerDat;
+        int [] checkArray = aOwnerDat.mCheckArray;
+        int datArrayLength = checkArray.length;
+
+        //第一步: 字符类，按字符升序编号
+        int [] charClassArray = new int [ Character.MAX_VALUE + 1 ];
+        int stateCount = 1;
+        int maxDepth = 0;
+        for (int i = 1; i < datArrayLength; ++i) {
+            if (checkArray[ i ] != DoubleArrayTrie.EMPTY_CHECK) {
+                charClassArray[ aOwnerDat.getChar( i ) ] = 1;
+                ++stateCount;
+                maxDepth = Math.max( maxDepth, aDepthArray[ i ] );
+            }
+        }
+        int classCount = 0;
+        for (int i = 0; i < charClassArray.length; ++i) {
+            if (charClassArray[ i ] != 0) {
+                charClassArray[ i ] = ++classCount;
+            }
+        }
+        int rowWidth = classCount + 1;
+        this.mCharClassArray = charClassArray;
+        this.mRowWidth = rowWidth;
+
+        //第二步: 按深度计数排序重新编号，这样failure状态的编号总是比自己小，而且浅层状态都在前面
+        int [] depthStartArray = new int [ maxDepth + 2 ];
+        for (int i = 1; i < datArrayLength; ++i) {
+            if (checkArray[ i ] != DoubleArrayTrie.EMPTY_CHECK) {
+                ++depthStartArray[ aDepthArray[ i ] + 1 ];
+            }
+        }
+        depthStartArray[ 0 ] = 0;
+        depthStartArray[ 1 ] = 1;//虚根独占深度0
+        for (int i = 1; i <= maxDepth; ++i) {
+            depthStartArray[ i + 1 ] += depthStartArray[ i ];
+        }
+        int [] stateOfDatIndex = new int [ datArrayLength ];
+        int [] datIndexArray = new int [ stateCount ];
+        int [] depthArray = new int [ stateCount ];
+        int [] nextStateOfDepth = Arrays.copyOf( depthStartArray, maxDepth + 1 );
+        for (int i = 1; i < datArrayLength; ++i) {
+            if (checkArray[ i ] != DoubleArrayTrie.EMPTY_CHECK) {
+                int depth = aDepthArray[ i ];
+                int state = nextStateOfDepth[ depth ]++;
+                stateOfDatIndex[ i ] = state;
+                datIndexArray[ state ] = i;
+                depthArray[ state ] = depth;
+            }
+        }
+        this.mDatIndexArray = datIndexArray;
+        this.mDepthArray = depthArray;
+        this.mDenseStateCount = aDenseDepth >= maxDepth ? stateCount : depthStartArray[ Math.max( 0, aDenseDepth ) + 1 ];//虚根总是稠密行
+
+        //第三步: 每个状态的儿子，儿子的编号就是转移目标。同一个父节点的儿子下标升序也就是字符类升序
+        int [] childStartArray = new int [ stateCount + 1 ];
+        for (int i = 1; i < datArrayLength; ++i) {
+            if (checkArray[ i ] != DoubleArrayTrie.EMPTY_CHECK) {
+                ++childStartArray[ stateOfDatIndex[ checkArray[ i ] ] + 1 ];
+            }
+        }
+        for (int i = 0; i < stateCount; ++i) {
+            childStartArray[ i + 1 ] += childStartArray[ i ];
+        }
+        int [] childStateArray = new int [ stateCount - 1 ];
+        int [] nextChildPos = Arrays.copyOf( childStartArray, stateCount );
+        for (int i = 1; i < datArrayLength; ++i) {
+            if (checkArray[ i ] != DoubleArrayTrie.EMPTY_CHECK) {
+                childStateArray[ nextChildPos[ stateOfDatIndex[ checkArray[ i ] ] ]++ ] = stateOfDatIndex[ i ];
+            }
+        }
+
+        //第四步: 按编号顺序计算，failure状态的编号总是比自己小因此已经算好了。
+        //稠密状态的行就是failure状态的行再用自己的儿子覆盖；稀疏状态记住failure链上第一个稠密状态作为后备，
+        //稀疏行只保存同后备状态不同的转移，也就是failure链上到后备状态之前的那些稀疏状态的儿子，深的覆盖浅的
+        int denseStateCount = this.mDenseStateCount;
+        int [] denseTable = new int [ denseStateCount * rowWidth ];
+        int [] fallbackStateArray = new int [ stateCount ];
+        int [] sparseStartArray = new int [ stateCount + 1 ];
+        int [] sparseClassArray = new int [ Math.max( 16, stateCount - denseStateCount ) ];
+        int [] sparseTargetArray = new int [ sparseClassArray.length ];
+        int [] outputArray = new int [ stateCount ];
+        int [] nextOutputArray = new int [ stateCount ];
+        int sparseLength = 0;
+        for (int i = childStartArray[ 0 ], isize = childStartArray[ 1 ]; i < isize; ++i) {
+            int childState = childStateArray[ i ];
+            denseTable[ charClassArray[ aOwnerDat.getChar( datIndexArray[ childState ] ) ] ] = childState;
+        }
+        for (int state = 1; state < stateCount; ++state) {
+            int datIndex = datIndexArray[ state ];
+            int failureState = stateOfDatIndex[ aFailureArray[ datIndex ] ];
+            int childFrom = childStartArray[ state ];
+            int childTo = childStartArray[ state + 1 ];
+            if (state < denseStateCount) {
+                int rowStart = state * rowWidth;
+                System.arraycopy( denseTable, failureState * rowWidth, denseTable, rowStart, rowWidth );
+                for (int i = childFrom; i < childTo; ++i) {
+                    int childState = childStateArray[ i ];
+                    denseTable[ rowStart + charClassArray[ aOwnerDat.getChar( datIndexArray[ childState ] ) ] ] = childState;
+                }
+            }
+            else {
+                int failureFrom = 0;
+                int failureTo = 0;
+                if (failureState < denseStateCount) {
+                    fallbackStateArray[ state ] = failureState;
+                }
+                else {
+                    fallbackStateArray[ state ] = fallbackStateArray[ failureState ];
+                    failureFrom = sparseStartArray[ failureState ];
+                    failureTo = sparseStartArray[ failureState + 1 ];
+                }
+                int maxLength = sparseLength + (failureTo - failureFrom) + (childTo - childFrom);
+                if (maxLength > sparseClassArray.length) {
+                    int newLength = Math.max( maxLength, sparseClassArray.length + (sparseClassArray.length >> 1) );
+                    sparseClassArray = Arrays.copyOf( sparseClassArray, newLength );
+                    sparseTargetArray = Arrays.copyOf( sparseTargetArray, newLength );
+                }
+                //归并，字符类相同时儿子优先
+                while (failureFrom < failureTo || childFrom < childTo) {
+                    int failureClass = failureFrom < failureTo ? sparseClassArray[ failureFrom ] : Integer.MAX_VALUE;
+                    int childClass = childFrom < childTo ? charClassArray[ aOwnerDat.getChar( datIndexArray[ childStateArray[ childFrom ] ] ) ] : Integer.MAX_VALUE;
+                    if (childClass <= failureClass) {
+                        sparseClassArray[ sparseLength ] = childClass;
+                        sparseTargetArray[ sparseLength++ ] = childStateArray[ childFrom++ ];
+                        if (childClass == failureClass) {
+                            ++failureFrom;
+                        }
+                    }
+                    else {
+                        sparseClassArray[ sparseLength ] = failureClass;
+                        sparseTargetArray[ sparseLength++ ] = sparseTargetArray[ failureFrom++ ];
+                    }
+                }
+            }
+            sparseStartArray[ state + 1 ] = sparseLength;
+            //输出链
+            outputArray[ state ] = aOwnerDat.mValueArray[ datIndex ] != null ? state : outputArray[ failureState ];
+            nextOutputArray[ state ] = outputArray[ failureState ];
+        }
+        this.mDenseTable = denseTable;
+        this.mFallbackStateArray = fallbackStateArray;
+        this.mSparseStartArray = sparseStartArray;
+        this.mSparseClassArray = Arrays.copyOf( sparseClassArray, sparseLength );
+        this.mSparseTargetArray = Arrays.copyOf( sparseTargetArray, sparseLength );
+        this.mOutputArray = outputArray;
+        this.mNextOutputArray = nextOutputArray;
+    }
+
+    /**
+     * 转换成DAT调用方式
+     */
+    public DoubleArrayTrie<T> asDoubleArrayTrie() {
+        return this.mOwnerDat;
+    }
+
+    /**
+     * AC模式匹配：字符大小写敏感的匹配，结果同<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>完全一样
+     */
+    public void matchCaseSensitive(CharSequence aMatcherText, Hit<T> aHit) {
+        int [] charClassArray = this.mCharClassArray;
+        int [] denseTable = this.mDenseTable;
+        int [] outputArray = this.mOutputArray;
+        int rowWidth = this.mRowWidth;
+        int denseStateCount = this.mDenseStateCount;
+        int currentState = 0;//从虚根开始
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            int charClass = charClassArray[ aMatcherText.charAt( i ) ];
+            currentState = currentState < denseStateCount ? denseTable[ currentState * rowWidth + charClass ] : this.nextSparseState( currentState, charClass );
+            if (outputArray[ currentState ] != 0 && !this.tryHit( outputArray[ currentState ], i, aMatcherText, aHit )) {
+                //停止hit通知，结束任务了
+                return;
+            }
+        }
+    }
+
+    //@ForDebugUse
+    public int getStateCount() {
+        return this.mOutputArray.length;
+    }
+
+    //@ForDebugUse
+    public long getTableSize() {
+        //转移表占用的int个数
+        return (long)this.mDenseTable.length + this.mSparseClassArray.length + this.mSparseTargetArray.length;
+    }
+
+    private int nextSparseState(int aState, int aCharClass) {
+        int [] sparseClassArray = this.mSparseClassArray;
+        int low = this.mSparseStartArray[ aState ];
+        int high = this.mSparseStartArray[ aState + 1 ];
+        //稀疏行一般都很短，二分到很短再顺序找
+        while (high - low > 8) {
+            int mid = (low + high) >>> 1;
+            if (sparseClassArray[ mid ] <= aCharClass) {
+                low = mid;
+            }
+            else {
+                high = mid;
+            }
+        }
+        for (; low < high; ++low) {
+            if (sparseClassArray[ low ] == aCharClass) {
+                return this.mSparseTargetArray[ low ];
+            }
+        }
+        //同后备的稠密状态的转移一样
+        return this.mDenseTable[ this.mFallbackStateArray[ aState ] * this.mRowWidth + aCharClass ];
+    }
+
+    private boolean tryHit(int aOutputState, int aPosition, CharSequence aMatcherText, Hit<T> aHit) {
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        for (int state = aOutputState; state != 0; state = this.mNextOutputArray[ state ]) {
+            int startTextIndex = aPosition - this.mDepthArray[ state ] + 1;
+            if (!aHit.hit( aMatcherText, startTextIndex, aPosition + 1, dat.getValue( this.mDatIndexArray[ state ] ) )) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,198 @@
+package org.langzhaozhi.dat;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+
+/**
+ * <p>批量AC匹配的结果，通过<code>DoubleArrayTrieAhoCorasick::matchCaseSensitiveBatch</code>得到。</p>
+ * <p>所有文档的命中都按文档顺序连续地存放在几个int数组中(类似CSR)：第d个文档的命中是下标区间[getHitOffset(d), getHitOffset(d+1))，
+ * 每个命中只存起始位置、结束位置和DAT状态下标，数据对象在访问时才通过状态下标取出，因此几千个文档的结果也只是几个数组，没有任何逐个命中的对象。
+ * 每个文档内命中的顺序同对此文档单独调用<code>matchCaseSensitive</code>完全一样。</p>
+ * <p>不变对象，可以任意多线程并发访问。</p>
+ */
+public final class DoubleArrayTrieBatchHits<T> {
+    //每个分区最少的文档数，文档都很短，分区太小调度开销就不划算了
+    static final int MIN_PARTITION_DOCUMENT_COUNT = 64;
+
+    private final DoubleArrayTrie<T> mOwnerDat;
+    //长度为文档数+1
+    private final int [] mHitOffsetArray;
+    private final int [] mStartArray;
+    private final int [] mEndArray;
+    private final int [] mStateArray;
+
+    private DoubleArrayTrieBatchHits(DoubleArrayTrie<T> aOwnerDat, int [] aHitOffsetArray, int [] aStartArray, int [] aEndArray, int [] aStateArray) {
+        this.mOwnerDat = aOwnerDat;
+        this.mHitOffsetArray = aHitOffsetArray;
+        this.mStartArray = aStartArray;
+        this.mEndArray = aEndArray;
+        this.mStateArray = aStateArray;
+    }
+
+    /**
+     * 文档个数
+     */
+    public int getDocumentCount() {
+        return this.mHitOffsetArray.length - 1;
+    }
+
+    /**
+     * 所有文档的命中总数
+     */
+    public int getTotalHitCount() {
+        return this.mStateArray.length;
+    }
+
+    /**
+     * 第aDocumentIndex个文档的第一个命中的下标，getHitOffset(getDocumentCount())就是命中总数
+     */
+    public int getHitOffset(int aDocumentIndex) {
+        return this.mHitOffsetArray[ aDocumentIndex ];
+    }
+
+    /**
+     * 第aDocumentIndex个文档的命中个数
+     */
+    public int getHitCount(int aDocumentIndex) {
+        return this.mHitOffsetArray[ aDocumentIndex + 1 ] - this.mHitOffsetArray[ aDocumentIndex ];
+    }
+
+    /**
+     * 第aHitIndex个命中在其文档中的起始包含位置，aHitIndex是全局下标，参见<code>getHitOffset</code>
+     */
+    public int getStart(int aHitIndex) {
+        return this.mStartArray[ aHitIndex ];
+    }
+
+    /**
+     * 第aHitIndex个命中在其文档中的结束不包含位置
+     */
+    public int getEnd(int aHitIndex) {
+        return this.mEndArray[ aHitIndex ];
+    }
+
+    /**
+     * 第aHitIndex个命中的数据对象
+     */
+    public T getValue(int aHitIndex) {
+        return this.mOwnerDat.getValue( this.mStateArray[ aHitIndex ] );
+    }
+
+    /**
+     * 按顺序通知第aDocumentIndex个文档的所有命中，aDocument应该就是匹配时的那个文档
+     * @return aHit返回false中止时返回false
+     */
+    public boolean forEachHit(int aDocumentIndex, CharSequence aDocument, Hit<T> aHit) {
+        for (int i = this.mHitOffsetArray[ aDocumentIndex ], iend = this.mHitOffsetArray[ aDocumentIndex + 1 ]; i < iend; ++i) {
+            if (!aHit.hit( aDocument, this.mStartArray[ i ], this.mEndArray[ i ], this.getValue( i ) )) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 把文档按顺序划分成若干连续的分区，每个分区作为一个任务提交给aExecutor，分区内用同一份缓冲区逐个文档匹配，最后按文档顺序拼接起来。
+     * 调用线程等待所有分区完成，任何分区的异常都会抛出
+     */
+    static <T> DoubleArrayTrieBatchHits<T> match(DoubleArrayTrieAhoCorasick<T> aAhoCorasick, List<? extends CharSequence> aDocumentList, Executor aExecutor) {
+        int documentCount = aDocumentList.size();
+        //执行器的并行度未知，按处理器个数的4倍划分，让快慢不一的分区能够互相平衡
+        int partitionDocumentCount = Math.max( MIN_PARTITION_DOCUMENT_COUNT, (documentCount + (Runtime.getRuntime().availableProcessors() << 2) - 1) / (Runtime.getRuntime().availableProcessors() << 2) );
+        int partitionCount = (documentCount + partitionDocumentCount - 1) / partitionDocumentCount;
+        @SuppressWarnings("unchecked")
+        Partition<T> [] partitions = new Partition [ partitionCount ];
+        for (int i = 0; i < partitionCount; ++i) {
+            partitions[ i ] = new Partition<T>( aAhoCorasick, aDocumentList, i * partitionDocumentCount, Math.min( documentCount, (i + 1) * partitionDocumentCount ) );
+        }
+        if (partitionCount == 1) {
+            //文档不多时不值得转手，直接在调用线程中匹配
+            partitions[ 0 ].run();
+        }
+        else {
+            CompletableFuture<?> [] futures = new CompletableFuture [ partitionCount ];
+            for (int i = 0; i < partitionCount; ++i) {
+                futures[ i ] = CompletableFuture.runAsync( partitions[ i ], aExecutor );
+            }
+            CompletableFuture.allOf( futures ).join();
+        }
+        //按文档顺序拼接
+        int totalHitCount = 0;
+        for (Partition<T> partition : partitions) {
+            totalHitCount += partition.mHitCount;
+        }
+        int [] hitOffsetArray = new int [ documentCount + 1 ];
+        int [] startArray = new int [ totalHitCount ];
+        int [] endArray = new int [ totalHitCount ];
+        int [] stateArray = new int [ totalHitCount ];
+        int hitBase = 0;
+        for (Partition<T> partition : partitions) {
+            for (int i = partition.mFromDocument, iend = partition.mToDocument; i < iend; ++i) {
+                hitOffsetArray[ i + 1 ] = hitBase + partition.mHitOffsetArray[ i - partition.mFromDocument + 1 ];
+            }
+            System.arraycopy( partition.mStartArray, 0, startArray, hitBase, partition.mHitCount );
+            System.arraycopy( partition.mEndArray, 0, endArray, hitBase, partition.mHitCount );
+            System.arraycopy( partition.mStateArray, 0, stateArray, hitBase, partition.mHitCount );
+            hitBase += partition.mHitCount;
+        }
+        return new DoubleArrayTrieBatchHits<T>( aAhoCorasick.asDoubleArrayTrie(), hitOffsetArray, startArray, endArray, stateArray );
+    }
+
+    /**
+     * 一段连续文档的匹配任务，命中缓冲区在分区内的所有文档间复用，只在不够时才扩容
+     */
+    private static final class Partition<T> implements Runnable {
+        private final DoubleArrayTrieAhoCorasick<T> mAhoCorasick;
+        private final List<? extends CharSequence> mDocumentList;
+        private final int mFromDocument;
+        private final int mToDocument;
+        private final int [] mHitOffsetArray;
+        private int [] mStartArray = new int [ 64 ];
+        private int [] mEndArray = new int [ 64 ];
+        private int [] mStateArray = new int [ 64 ];
+        private int mHitCount;
+
+        Partition(DoubleArrayTrieAhoCorasick<T> aAhoCorasick, List<? extends CharSequence> aDocumentList, int aFromDocument, int aToDocument) {
+            this.mAhoCorasick = aAhoCorasick;
+            this.mDocumentList = aDocumentList;
+            this.mFromDocument = aFromDocument;
+            this.mToDocument = aToDocument;
+            this.mHitOffsetArray = new int [ aToDocument - aFromDocument + 1 ];
+        }
+
+        @Override
+        public void run() {
+            DoubleArrayTrieAhoCorasick<T> ac = this.mAhoCorasick;
+            Object [] valueArray = ac.asDoubleArrayTrie().mValueArray;
+            int [] depthArray = ac.mDepthArray;
+            int [] outputLinkArray = ac.mOutputLinkArray;
+            for (int d = this.mFromDocument; d < this.mToDocument; ++d) {
+                CharSequence document = this.mDocumentList.get( d );
+                int currentState = 0;//每个文档都从虚根开始
+                for (int i = 0, count = document.length(); i < count; ++i) {
+                    currentState = ac.nextTransitionState( currentState, document.charAt( i ) );
+                    //自己不是数据状态就直接从输出链开始
+                    for (int hitState = valueArray[ currentState ] != null ? currentState : outputLinkArray[ currentState ]; hitState != 0; hitState = outputLinkArray[ hitState ]) {
+                        this.add( i - depthArray[ hitState ] + 1, i + 1, hitState );
+                    }
+                }
+                this.mHitOffsetArray[ d - this.mFromDocument + 1 ] = this.mHitCount;
+            }
+        }
+
+        private void add(int aStart, int aEnd, int aState) {
+            int hitCount = this.mHitCount;
+            if (hitCount == this.mStateArray.length) {
+                this.mStartArray = Arrays.copyOf( this.mStartArray, hitCount << 1 );
+                this.mEndArray = Arrays.copyOf( this.mEndArray, hitCount << 1 );
+                this.mStateArray = Arrays.copyOf( this.mStateArray, hitCount << 1 );
+            }
+            this.mStartArray[ hitCount ] = aStart;
+            this.mEndArray[ hitCount ] = aEnd;
+            this.mStateArray[ hitCount ] = aState;
+            this.mHitCount = hitCount + 1;
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package org.langzhaozhi.dat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * <p>DAT的版本化列式文件格式(版本2)，既可以整块批量读入堆中，也可以直接内存映象使用，不必为每个节点创建对象:</p>
+ * <pre>
+ *     [头部 HEADER_LENGTH 字节][base: int * n][check: int * n][valueId: int * n][value数据块,补齐到文件中8字节对齐][value偏移表: long * (m + 1)]
+ *     [可选的AC状态数据: depth: int * n][failure: int * n][输出链: int * n]
+ * </pre>
+ * <p>其中n是DAT数组长度，m是数据节点个数。valueId为-1表示该位置不是数据节点，否则第valueId个数据的字节范围是
+ * [偏移表[valueId], 偏移表[valueId + 1])。valueId不要求按下标顺序分配，流式构造时就是按数据节点构造完成的先后分配的。
+ * 全部采用大端字节序，也就是DataOutputStream和ByteBuffer缺省的字节序。</p>
+ * <p>头部依次是: magic("#DAC"), version, flags, n, m, 头部之后全部内容的CRC32校验和, value数据块长度(long), 其余保留为0。
+ * flags有<code>FLAG_AHO_CORASICK</code>时文件末尾有AC状态数据(参见<code>AhoCorasickStates</code>)，加载时直接整段读入或内存映象，
+ * 第一次多模式串匹配就不用再bfs构造failure表了，对千万级的词典可以省掉启动时最慢的一步。没有这个标志的老文件照样加载。
+ * 加载时只需校验一次校验和，不再像老的"#DAT"格式那样逐个校验父子关系。老的"#DAT"格式(版本1)依然可以读取，参见
+ * <code>DoubleArrayTrieMaker::deserializeDoubleArrayTrieFromFile</code></p>
+ * <p>value数据块和value偏移表都可以超过2G(流式构造上亿个关键字时很常见)：映象时都按<code>VALUE_SEGMENT_SHIFT</code>切成若干段分别映象，
+ * 由偏移或者valueId定位到段，极少数跨越段边界的value才拷贝出来</p>
+ */
+final class DoubleArrayTrieFile {
+    static final int MAGIC = 0x23444143;//"#DAC"
+    static final int LEGACY_MAGIC = 0x23444154;//"#DAT", 老的版本1格式
+    static final int VERSION = 2;
+    static final int HEADER_LENGTH = 64;
+    static final int NO_VALUE_ID = -1;
+    static final int FLAG_AHO_CORASICK = 1;
+    //value数据块和value偏移表每段映象1G
+    static final int VALUE_SEGMENT_SHIFT = 30;
+
+    private DoubleArrayTrieFile() {
+    }
+
+    /**
+     * @param aWithAhoCorasick 是否同时持久化AC状态数据，还没有构造AC的话这里会先构造
+     */
+    static <T> void write(DoubleArrayTrie<T> aDAT, File aOutputFile, ValueSerializer<T> aValueSerializer, boolean aWithAhoCorasick) throws IOException {
+        int [] baseArray = aDAT.mBaseArray;
+        int [] checkArray = aDAT.mCheckArray;
+        Object [] valueArray = aDAT.mValueArray;
+        int datArrayLength = checkArray.length;
+        int valueCount = 0;
+        for (int i = 0; i < datArrayLength; ++i) {
+            if (valueArray[ i ] != null) {
+                ++valueCount;
+            }
+        }
+        long [] valueOffsets = new long [ valueCount + 1 ];
+        try (RandomAccessFile raf = new RandomAccessFile( aOutputFile, "rw" )) {
+            raf.setLength( 0 );
+            FileChannel fc = raf.getChannel();
+            //先空出头部，所有数据写完后再回填
+            fc.position( HEADER_LENGTH );
+            CRC32 checksum = new CRC32();
+            DataOutputStream datWriter = new DataOutputStream( new BufferedOutputStream( new CheckedOutputStream( Channels.newOutputStream( fc ), checksum ), 1024 << 6 ) );
+            for (int i = 0; i < datArrayLength; ++i) {
+                datWriter.writeInt( baseArray[ i ] );
+            }
+            for (int i = 0; i < datArrayLength; ++i) {
+                datWriter.writeInt( checkArray[ i ] );
+            }
+            for (int i = 0, valueId = 0; i < datArrayLength; ++i) {
+                datWriter.writeInt( valueArray[ i ] != null ? valueId++ : NO_VALUE_ID );
+            }
+            long blobLength = 0;
+            for (int i = 0, valueId = 0; i < datArrayLength; ++i) {
+                if (valueArray[ i ] != null) {
+                    T value = aDAT.getValue( i );
+                    valueOffsets[ valueId++ ] = blobLength;
+                    blobLength += DoubleArrayTrieFile.writeValue( datWriter, aValueSerializer.serialize( value ) );
+                }
+            }
+            valueOffsets[ valueCount ] = blobLength;
+            for (long padding = DoubleArrayTrieFile.padding( datArrayLength, blobLength ); padding > 0; --padding) {
+                datWriter.write( 0 );
+            }
+            for (long nextOffset : valueOffsets) {
+                datWriter.writeLong( nextOffset );
+            }
+            int flags = 0;
+            if (aWithAhoCorasick) {
+                DoubleArrayTrieAhoCorasick<T> ac = aDAT.asAhoCorasick();
+                for (int [] nextArray : new int [][] { ac.mDepthArray, ac.mFailureArray, ac.mOutputLinkArray }) {
+                    for (int i = 0; i < datArrayLength; ++i) {
+                        datWriter.writeInt( nextArray[ i ] );
+                    }
+                }
+                flags |= FLAG_AHO_CORASICK;
+            }
+            datWriter.flush();
+            DoubleArrayTrieFile.writeHeader( fc, flags, datArrayLength, valueCount, checksum, blobLength );
+        }
+    }
+
+    /**
+     * 流式构造的时候用：base/check/valueId是已经构造好的数组，value数据块和value偏移表(不含最后的总长度)事先已经分别顺序写到了临时文件中
+     */
+    static void write(int [] aBaseArray, int [] aCheckArray, int [] aValueIdArray, int aDatArrayLength, int aValueCount, File aBlobFile, File aValueOffsetFile, long aBlobLength, File aOutputFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( aOutputFile, "rw" )) {
+            raf.setLength( 0 );
+            FileChannel fc = raf.getChannel();
+            fc.position( HEADER_LENGTH );
+            CRC32 checksum = new CRC32();
+            DataOutputStream datWriter = new DataOutputStream( new BufferedOutputStream( new CheckedOutputStream( Channels.newOutputStream( fc ), checksum ), 1024 << 6 ) );
+            for (int [] nextArray : new int [][] { aBaseArray, aCheckArray, aValueIdArray }) {
+                for (int i = 0; i < aDatArrayLength; ++i) {
+                    datWriter.writeInt( nextArray[ i ] );
+                }
+            }
+            Files.copy( aBlobFile.toPath(), datWriter );
+            for (long padding = DoubleArrayTrieFile.padding( aDatArrayLength, aBlobLength ); padding > 0; --padding) {
+                datWriter.write( 0 );
+            }
+            Files.copy( aValueOffsetFile.toPath(), datWriter );
+            datWriter.writeLong( aBlobLength );
+            datWriter.flush();
+            DoubleArrayTrieFile.writeHeader( fc, 0, aDatArrayLength, aValueCount, checksum, aBlobLength );
+        }
+    }
+
+    /**
+     * 写一个value的序列化字节，返回字节数
+     */
+    static int writeValue(DataOutputStream aWriter, ByteBuffer aValueBytes) throws IOException {
+        int byteCount = aValueBytes.remaining();
+        if (aValueBytes.hasArray()) {
+            aWriter.write( aValueBytes.array(), aValueBytes.arrayOffset() + aValueBytes.position(), byteCount );
+        }
+        else {
+            while (aValueBytes.hasRemaining()) {
+                aWriter.writeByte( aValueBytes.get() );
+            }
+        }
+        return byteCount;
+    }
+
+    private static void writeHeader(FileChannel aFileChannel, int aFlags, int aDatArrayLength, int aValueCount, CRC32 aChecksum, long aBlobLength) throws IOException {
+        //所有数据写完后再回填头部
+        ByteBuffer header = ByteBuffer.allocate( HEADER_LENGTH );
+        header.putInt( MAGIC ).putInt( VERSION ).putInt( aFlags ).putInt( aDatArrayLength ).putInt( aValueCount ).putInt( ( int )aChecksum.getValue() ).putLong( aBlobLength );
+        header.clear();
+        aFileChannel.write( header, 0 );
+    }
+
+    /**
+     * 把整个文件批量读入堆中成为普通的DAT：base和check都是整段的批量读取，只对value逐个反序列化。
+     * 如果aLazyValue为true则不在加载时反序列化value，value保持为映象中的序列化字节，第一次访问时才反序列化，参见<code>LazyValueTable</code>
+     */
+    static <T> DoubleArrayTrie<T> load(Sections aSections, ValueDeserializer<T> aValueDeserializer, boolean aLazyValue) {
+        int datArrayLength = aSections.mDatArrayLength;
+        int [] baseArray = new int [ datArrayLength ];
+        int [] checkArray = new int [ datArrayLength ];
+        aSections.mBaseBuffer.duplicate().get( baseArray );
+        aSections.mCheckBuffer.duplicate().get( checkArray );
+        Object [] valueArray = new Object [ datArrayLength ];
+        IntBuffer valueIdBuffer = aSections.mValueIdBuffer;
+        for (int i = 0; i < datArrayLength; ++i) {
+            int valueId = valueIdBuffer.get( i );
+            if (valueId != NO_VALUE_ID) {
+                valueArray[ i ] = aLazyValue ? LazyValueTable.LAZY_VALUE : aValueDeserializer.deserialize( aSections.getValueBytes( valueId ) );
+            }
+        }
+        LazyValueTable<T> lazyValueTable = aLazyValue ? new LazyValueTable<T>( aSections, aValueDeserializer ) : null;
+        DoubleArrayTrie<T> dat = new DoubleArrayTrie<T>( baseArray, checkArray, valueArray, lazyValueTable );
+        if (aSections.mAhoCorasickStates != null) {
+            dat.mAhoCorasick = new DoubleArrayTrieAhoCorasick<T>( dat, aSections.mAhoCorasickStates );
+        }
+        return dat;
+    }
+
+    /**
+     * 读取文件开头的magic，用于区分新老格式
+     */
+    static int readMagic(File aInputFile) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( aInputFile, "r" )) {
+            return raf.length() >= 4 ? raf.readInt() : 0;
+        }
+    }
+
+    /**
+     * 映象文件的各个段
+     * @param aVerifyChecksum 是否校验校验和，校验需要把整个文件读一遍，因此追求极速启动的内存映象方式可以选择不校验
+     */
+    static Sections map(File aInputFile, boolean aVerifyChecksum) throws IOException {
+        return DoubleArrayTrieFile.map( aInputFile, aVerifyChecksum, VALUE_SEGMENT_SHIFT );
+    }
+
+    /**
+     * @param aValueSegmentShift value数据块和value偏移表每段的字节数是(1 << aValueSegmentShift)，至少是3，只有测试跨段时才用别的值
+     */
+    static Sections map(File aInputFile, boolean aVerifyChecksum, int aValueSegmentShift) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile( aInputFile, "r" )) {
+            FileChannel fc = raf.getChannel();
+            if (fc.size() < HEADER_LENGTH) {
+                throw new Error( "DAT文件长度不对(" + fc.size() + "):" + aInputFile.getAbsolutePath() );
+            }
+            ByteBuffer header = fc.map( MapMode.READ_ONLY, 0, HEADER_LENGTH );
+            if (header.getInt() != MAGIC) {
+                throw new Error( "搞错文件喽，走错女厕所喽:" + aInputFile.getAbsolutePath() );
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new Error( "不支持的DAT文件版本(" + version + "):" + aInputFile.getAbsolutePath() );
+            }
+            int flags = header.getInt();
+            int datArrayLength = header.getInt();
+            int valueCount = header.getInt();
+            int expectedChecksum = header.getInt();
+            long blobLength = header.getLong();
+            long intSectionLength = (( long )datArrayLength) << 2;
+            long basePos = HEADER_LENGTH;
+            long checkPos = basePos + intSectionLength;
+            long valueIdPos = checkPos + intSectionLength;
+            long blobPos = valueIdPos + intSectionLength;
+            long offsetPos = blobPos + blobLength + DoubleArrayTrieFile.padding( datArrayLength, blobLength );
+            long acPos = offsetPos + ((( long )valueCount + 1) << 3);
+            long fileLength = (flags & FLAG_AHO_CORASICK) != 0 ? acPos + intSectionLength * 3 : acPos;
+            if (fc.size() != fileLength) {
+                throw new Error( "DAT文件长度不对(" + fc.size() + "!=" + fileLength + "):" + aInputFile.getAbsolutePath() );
+            }
+            if (aVerifyChecksum && DoubleArrayTrieFile.checksum( fc, HEADER_LENGTH, fileLength ) != expectedChecksum) {
+                throw new Error( "DAT文件校验和错误，文件可能已损坏:" + aInputFile.getAbsolutePath() );
+            }
+            //各个段单独映象，每段都不超过2G限制; 映象一旦建立，即使关闭了文件通道依然有效
+            Sections sections = new Sections();
+            sections.mDatArrayLength = datArrayLength;
+            sections.mValueCount = valueCount;
+            sections.mBaseBuffer = fc.map( MapMode.READ_ONLY, basePos, intSectionLength ).asIntBuffer();
+            sections.mCheckBuffer = fc.map( MapMode.READ_ONLY, checkPos, intSectionLength ).asIntBuffer();
+            sections.mValueIdBuffer = fc.map( MapMode.READ_ONLY, valueIdPos, intSectionLength ).asIntBuffer();
+            long segmentLength = 1L << aValueSegmentShift;
+            ByteBuffer [] valueBlobSegments = new ByteBuffer [ ( int )((blobLength + segmentLength - 1) >>> aValueSegmentShift) ];
+            for (int i = 0; i < valueBlobSegments.length; ++i) {
+                long segmentPos = (( long )i) << aValueSegmentShift;
+                valueBlobSegments[ i ] = fc.map( MapMode.READ_ONLY, blobPos + segmentPos, Math.min( segmentLength, blobLength - segmentPos ) );
+            }
+            sections.mValueSegmentShift = aValueSegmentShift;
+            sections.mValueBlobSegments = valueBlobSegments;
+            //偏移表同样分段，每段的字节数相同，也就是每段(1 << (aValueSegmentShift - 3))个偏移
+            LongBuffer [] valueOffsetSegments = new LongBuffer [ ( int )((acPos - offsetPos + segmentLength - 1) >>> aValueSegmentShift) ];
+            for (int i = 0; i < valueOffsetSegments.length; ++i) {
+                long segmentPos = (( long )i) << aValueSegmentShift;
+                valueOffsetSegments[ i ] = fc.map( MapMode.READ_ONLY, offsetPos + segmentPos, Math.min( segmentLength, acPos - offsetPos - segmentPos ) ).asLongBuffer();
+            }
+            sections.mValueOffsetSegments = valueOffsetSegments;
+            if ((flags & FLAG_AHO_CORASICK) != 0) {
+                sections.mAhoCorasickStates = new AhoCorasickStates( fc.map( MapMode.READ_ONLY, acPos, intSectionLength ).asIntBuffer(), fc.map( MapMode.READ_ONLY, acPos + intSectionLength, intSectionLength ).asIntBuffer(), fc.map( MapMode.READ_ONLY, acPos + (intSectionLength << 1), intSectionLength ).asIntBuffer() );
+            }
+            return sections;
+        }
+    }
+
+    private static int checksum(FileChannel aFileChannel, long aFrom, long aTo) throws IOException {
+        CRC32 checksum = new CRC32();
+        for (long pos = aFrom; pos < aTo;) {
+            //每次最多映象1G, 避免超过映象2G的限制
+            long chunkLength = Math.min( aTo - pos, 1L << 30 );
+            checksum.update( aFileChannel.map( MapMode.READ_ONLY, pos, chunkLength ) );
+            pos += chunkLength;
+        }
+        return ( int )checksum.getValue();
+    }
+
+    private static long padding(int aDatArrayLength, long aBlobLength) {
+        //value数据块的起点HEADER_LENGTH + 12 * n在n为奇数时只是4字节对齐，因此按数据块结束的文件位置补齐到8字节，使得后面的偏移表在文件中是对齐的
+        long blobEnd = HEADER_LENGTH + 12L * aDatArrayLength + aBlobLength;
+        return (8 - (blobEnd & 7)) & 7;
+    }
+
+    /**
+     * 文件中各个段的映象
+     */
+    static final class Sections {
+        int mDatArrayLength;
+        int mValueCount;
+        IntBuffer mBaseBuffer;
+        IntBuffer mCheckBuffer;
+        IntBuffer mValueIdBuffer;
+        //value数据块和value偏移表都按(1 << mValueSegmentShift)字节分段映象
+        int mValueSegmentShift;
+        LongBuffer [] mValueOffsetSegments;
+        ByteBuffer [] mValueBlobSegments;
+        //文件中没有持久化AC状态数据时为null
+        AhoCorasickStates mAhoCorasickStates;
+
+        /**
+         * 第aValueId个数据的序列化字节，一般是所在段的一个视图，不拷贝任何数据；跨越段边界的才拷贝到堆上拼起来
+         */
+        ByteBuffer getValueBytes(int aValueId) {
+            long start = this.getValueOffset( aValueId );
+            long end = this.getValueOffset( aValueId + 1 );
+            if (start == end) {
+                return ByteBuffer.allocate( 0 );
+            }
+            int segmentShift = this.mValueSegmentShift;
+            long segmentMask = (1L << segmentShift) - 1;
+            int segmentIndex = ( int )(start >>> segmentShift);
+            if ((end - 1) >>> segmentShift == segmentIndex) {
+                ByteBuffer valueBytes = this.mValueBlobSegments[ segmentIndex ].duplicate();
+                valueBytes.limit( ( int )(((end - 1) & segmentMask) + 1) ).position( ( int )(start & segmentMask) );
+                return valueBytes;
+            }
+            ByteBuffer valueBytes = ByteBuffer.allocate( ( int )(end - start) );
+            for (long pos = start; pos < end;) {
+                ByteBuffer segment = this.mValueBlobSegments[ ( int )(pos >>> segmentShift) ].duplicate();
+                int segmentPos = ( int )(pos & segmentMask);
+                int copyLength = ( int )Math.min( segment.limit() - segmentPos, end - pos );
+                segment.limit( segmentPos + copyLength ).position( segmentPos );
+                valueBytes.put( segment );
+                pos += copyLength;
+            }
+            valueBytes.flip();
+            return valueBytes;
+        }
+
+        /**
+         * 偏移表中的第aValueId项，aValueId为m时就是value数据块的总长度
+         */
+        private long getValueOffset(int aValueId) {
+            int offsetSegmentShift = this.mValueSegmentShift - 3;
+            return this.mValueOffsetSegments[ aValueId >>> offsetSegmentShift ].get( aValueId & ((1 << offsetSegmentShift) - 1) );
+        }
+    }
+}
@@ -1,10 +1,7 @@
 package org.langzhaozhi.dat;
 
-import java.io.BufferedOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.CharBuffer;
@@ -12,10 +9,12 @@ import java.nio.channels.FileChannel;
 import java.nio.channels.FileChannel.MapMode;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.BinaryOperator;
 
-import org.langzhaozhi.dat.DoubleArrayTrie.DoubleArrayTrieNode;
 import org.langzhaozhi.dat.Trie.TrieNode;
 import org.langzhaozhi.util.PairString;
 
@@ -23,6 +22,14 @@ import org.langzhaozhi.util.PairString;
  * DAT生成器：构建 DoubleArrayTrie
  */
 public final class DoubleArrayTrieMaker {
+    /**
+     * 构造时空位最多尝试的次数，0表示不限制，也就是构造出最紧凑的DAT。这是唯一允许的非正数，负数构造时抛出Error
+     */
+    public static final int UNLIMITED_EMPTY_TRIAL = 0;
+
+    //并行构造时每段至少的数据个数
+    private static final int MIN_PARTITION_KEY_COUNT = 1 << 16;
+
     /**
      * <p>构造一个DAT</p>
      *
@@ -30,26 +37,104 @@ public final class DoubleArrayTrieMaker {
      * @return DAT
      */
     public static <T> DoubleArrayTrie<T> makeDoubleArrayTrie(PairString<T> [] aValueArray) {
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( aValueArray, UNLIMITED_EMPTY_TRIAL );
+    }
+
+    /**
+     * <p>构造一个DAT，可以在DAT数组的压缩率和构造速度之间进行取舍。</p>
+     * <p>构造时所有空位用双向链表串起来，为父节点寻找base时只在空位上尝试，冲突时直接跳到下一个空位，不再逐个下标试探。
+     * 如果某个空位作为第一个儿子的位置尝试了aEmptyTrialLimit次都冲突，说明它周围已经很满了，就把它从空位链表中摘掉不再尝试，
+     * 这个空位以后只可能被碰巧落在这里的儿子占用，否则就留成空隙。因此aEmptyTrialLimit越小构造越快，但DAT数组越长；
+     * 为<code>UNLIMITED_EMPTY_TRIAL</code>时构造结果同<code>makeDoubleArrayTrie(aValueArray)</code>完全一样，也就是最紧凑的。
+     * 具体取多少合适要根据数据实测，一般从16左右开始尝试</p>
+     *
+     * @param aValueArray 数据
+     * @param aEmptyTrialLimit 每个空位最多尝试的次数，必须是正数或者<code>UNLIMITED_EMPTY_TRIAL</code>(表示不限制)，负数抛出Error
+     * @return DAT
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrie(PairString<T> [] aValueArray, int aEmptyTrialLimit) {
         //先排字典序才能后续处理：采用并行排序，当数据量大就真的显示出并行排序的威力了，数据量小的话Arrays.parallelSort自动按照普通排序做
         Arrays.parallelSort( aValueArray );
 
-        MakeContext<T> context = new MakeContext<T>( aValueArray );
+        MakeContext<T> context = new MakeContext<T>( aValueArray, aEmptyTrialLimit );
         ProccessingNode<T> rootProcessingNode = context.mDatArray[ 0 ];
-        //以bfs遍历方式生成Trie
-        LinkedList<ProccessingNode<T>> queueFetch = new LinkedList<ProccessingNode<T>>();
-        LinkedList<ProccessingNode<T>> queueInsert = new LinkedList<ProccessingNode<T>>();
         //fetch 从虚根作为父节点开始构建 Trie 的过程
+        LinkedList<ProccessingNode<T>> queueFetch = new LinkedList<ProccessingNode<T>>();
         queueFetch.add( rootProcessingNode );
-        while (!queueFetch.isEmpty()) {
-            ProccessingNode<T> nextParentNode = queueFetch.removeFirst();
-            DoubleArrayTrieMaker.fetch( context, queueFetch, nextParentNode );
-            if (nextParentNode.mChildrenNodes != null) {
-                queueInsert.add( nextParentNode );
+        ProccessingNode<T> [] parentNodes = DoubleArrayTrieMaker.fetchAll( context, queueFetch, new LinkedList<ProccessingNode<T>>() );
+        return DoubleArrayTrieMaker.construct( context, parentNodes );
+    }
+
+    /**
+     * 在ForkJoinPool.commonPool()中并行构造DAT，参见<code>makeDoubleArrayTrieParallel(aValueArray, aEmptyTrialLimit, aForkJoinPool)</code>
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieParallel(PairString<T> [] aValueArray) {
+        return DoubleArrayTrieMaker.makeDoubleArrayTrieParallel( aValueArray, UNLIMITED_EMPTY_TRIAL, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * <p>多核并行构造DAT：按照关键字的第一个字符把数据划分成若干段，每段在aForkJoinPool中独立地构造自己的子DAT，
+     * 最后把各个子DAT平移拼接到同一个base/check数组中，第一个字符对应的节点统一放在虚根的儿子位置。
+     * 结果就是普通的<code>DoubleArrayTrie</code>，各种匹配结果同<code>makeDoubleArrayTrie</code>构造的完全一样，
+     * 只是数组布局不同，由于各段之间不能互相填充空位，数组会稍长一点。数据量小的时候只分一段，也就没有并行的效果了。</p>
+     *
+     * @param aValueArray 数据
+     * @param aEmptyTrialLimit 每段构造时每个空位最多尝试的次数，参见<code>makeDoubleArrayTrie(aValueArray, aEmptyTrialLimit)</code>
+     * @param aForkJoinPool 用于并行构造的线程池
+     * @return DAT
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieParallel(PairString<T> [] aValueArray, int aEmptyTrialLimit, ForkJoinPool aForkJoinPool) {
+        Arrays.parallelSort( aValueArray );
+        //先只取出虚根的儿子，也就是所有的第一个字符
+        MakeContext<T> rootContext = new MakeContext<T>( aValueArray, 0, aEmptyTrialLimit );
+        ProccessingNode<T> rootNode = new ProccessingNode<T>( aValueArray.length );
+        DoubleArrayTrieMaker.fetch( rootContext, new LinkedList<ProccessingNode<T>>(), rootNode );
+        ProccessingNode<T> [] firstCharNodes = rootNode.mChildrenNodes;
+        if (firstCharNodes == null) {
+            //没有任何非空关键字，不值得并行
+            return DoubleArrayTrieMaker.makeDoubleArrayTrie( aValueArray, aEmptyTrialLimit );
+        }
+        //按照数据个数大致均匀地划分成并行度个数的段。每段的子DAT都要各自跨越儿子字符的编码范围，段与段之间的空位又不能互相填充，
+        //段分得越多数组就越长，因此每段至少要有MIN_PARTITION_KEY_COUNT个数据，数据量小的时候干脆就只有一段
+        ArrayList<MakePartition<T>> partitionList = new ArrayList<MakePartition<T>>();
+        int partitionTargetCount = Math.max( MIN_PARTITION_KEY_COUNT, aValueArray.length / aForkJoinPool.getParallelism() );
+        for (int from = 0, to = 0; from < firstCharNodes.length; from = to) {
+            int keyCount = 0;
+            while (to < firstCharNodes.length && keyCount < partitionTargetCount) {
+                keyCount += firstCharNodes[ to ].mRight - firstCharNodes[ to ].mLeft;
+                ++to;
             }
+            partitionList.add( new MakePartition<T>( Arrays.copyOfRange( firstCharNodes, from, to ), keyCount ) );
         }
         @SuppressWarnings("unchecked")
-        ProccessingNode<T> [] parentNodes = queueInsert.toArray( new ProccessingNode [ queueInsert.size() ] );
-        return DoubleArrayTrieMaker.construct( context, parentNodes );
+        MakePartition<T> [] partitions = partitionList.toArray( new MakePartition [ partitionList.size() ] );
+        aForkJoinPool.submit( () -> Arrays.stream( partitions ).parallel().forEach( (aPartition) -> aPartition.make( aValueArray, aEmptyTrialLimit ) ) ).join();
+
+        //虚根的儿子占据最前面，各段依次排在后面，各段的下标0是自己的虚根，平移后不占位置，因此和前一段的末尾重叠
+        int rootBase = 1 - firstCharNodes[ 0 ].mChar;
+        int datArrayLength = rootBase + firstCharNodes[ firstCharNodes.length - 1 ].mChar + 1;
+        for (MakePartition<T> nextPartition : partitions) {
+            nextPartition.mOffset = datArrayLength - 1;
+            datArrayLength = nextPartition.mOffset + nextPartition.mLength;
+        }
+        int [] baseArray = new int [ datArrayLength ];
+        int [] checkArray = new int [ datArrayLength ];
+        Object [] valueArray = new Object [ datArrayLength ];
+        Arrays.fill( checkArray, DoubleArrayTrie.EMPTY_CHECK );
+        baseArray[ 0 ] = rootBase;
+        checkArray[ 0 ] = 0;
+        valueArray[ 0 ] = rootNode.mValue;
+        //各段平移后的位置互不重叠，可以并行拷贝
+        aForkJoinPool.submit( () -> Arrays.stream( partitions ).parallel().forEach( (aPartition) -> aPartition.relocate( rootBase, baseArray, checkArray, valueArray ) ) ).join();
+        //最后一段如果没有任何子孙节点，末尾就是空的，丢弃后面所有为空的部分
+        int realLength = datArrayLength;
+        while (checkArray[ realLength - 1 ] == DoubleArrayTrie.EMPTY_CHECK) {
+            --realLength;
+        }
+        if (realLength < datArrayLength) {
+            return new DoubleArrayTrie<T>( Arrays.copyOf( baseArray, realLength ), Arrays.copyOf( checkArray, realLength ), Arrays.copyOf( valueArray, realLength ) );
+        }
+        return new DoubleArrayTrie<T>( baseArray, checkArray, valueArray );
     }
 
     /**
@@ -66,6 +151,13 @@ public final class DoubleArrayTrieMaker {
      * @see DoubleArrayTriePrefixMatcher
      */
     public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieDual(PairString<T> [] aValueArray) {
+        return DoubleArrayTrieMaker.makeDoubleArrayTrieDual( aValueArray, UNLIMITED_EMPTY_TRIAL );
+    }
+
+    /**
+     * 构造对偶DAT，aEmptyTrialLimit的含义同<code>makeDoubleArrayTrie(aValueArray, aEmptyTrialLimit)</code>
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieDual(PairString<T> [] aValueArray, int aEmptyTrialLimit) {
         //先进行字符串数据的前后倒置对偶变换
         @SuppressWarnings("unchecked")
         PairString<T> [] dualPair = Arrays.stream( aValueArray ).map( (aPair) -> {
@@ -77,7 +169,40 @@ public final class DoubleArrayTrieMaker {
             }
             return new PairString<T>( CharBuffer.wrap( dualChars ), aPair.mValue );
         } ).toArray( PairString []::new );
-        return DoubleArrayTrieMaker.makeDoubleArrayTrie( dualPair );
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( dualPair, aEmptyTrialLimit );
+    }
+
+    /**
+     * <p>构造一个大小写折叠的DAT：所有关键字先折叠(参见<code>CaseFolding</code>)再构造，大小写非敏感的匹配就变成对折叠后输入的单状态遍历，
+     * 不再像<code>matchCaseInsensitive</code>那样每个字符维护一个状态集合。构造好的DAT应该用各种CaseFolded方法来匹配：
+     * <code>DoubleArrayTrie::exactMatchCaseFolded</code>、<code>DoubleArrayTriePrefixMatcher::prefixBeforeMatchCaseFolded</code>、
+     * <code>DoubleArrayTrieAhoCorasick::matchCaseFolded</code>，它们都是先折叠输入字符再匹配，命中位置就是原输入中的位置，数据对象就是原来的数据对象。</p>
+     * <p>折叠后相同的关键字(例如"abc"和"ABC")只能保留一个数据对象，这里保留aValueArray中先出现的那个，要合并的话用
+     * <code>makeDoubleArrayTrieCaseFolded(aValueArray, aValueMerger)</code>。同对偶DAT一样，DAT本身并不记录自己是折叠构造的，持久化后加载时调用者自己知道</p>
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieCaseFolded(PairString<T> [] aValueArray) {
+        return DoubleArrayTrieMaker.makeDoubleArrayTrieCaseFolded( aValueArray, (aFirstValue, aSecondValue) -> aFirstValue );
+    }
+
+    /**
+     * 构造大小写折叠的DAT，折叠后相同的关键字的数据对象按在aValueArray中出现的先后用aValueMerger合并，参见<code>makeDoubleArrayTrieCaseFolded(aValueArray)</code>
+     */
+    public static <T> DoubleArrayTrie<T> makeDoubleArrayTrieCaseFolded(PairString<T> [] aValueArray, BinaryOperator<T> aValueMerger) {
+        @SuppressWarnings("unchecked")
+        PairString<T> [] foldedPairs = Arrays.stream( aValueArray ).map( (aPair) -> new PairString<T>( CaseFolding.fold( aPair.mKey ), aPair.mValue ) ).toArray( PairString []::new );
+        //稳定排序，折叠后相同的关键字保持原来的先后
+        Arrays.parallelSort( foldedPairs );
+        int mergedCount = 0;
+        for (int i = 0; i < foldedPairs.length; ++i) {
+            if (mergedCount > 0 && foldedPairs[ mergedCount - 1 ].mKey.equals( foldedPairs[ i ].mKey )) {
+                PairString<T> firstPair = foldedPairs[ mergedCount - 1 ];
+                foldedPairs[ mergedCount - 1 ] = new PairString<T>( firstPair.mKey, aValueMerger.apply( firstPair.mValue, foldedPairs[ i ].mValue ) );
+            }
+            else {
+                foldedPairs[ mergedCount++ ] = foldedPairs[ i ];
+            }
+        }
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( mergedCount == foldedPairs.length ? foldedPairs : Arrays.copyOf( foldedPairs, mergedCount ) );
     }
 
     public static <T> DoubleArrayTrieAhoCorasick<T> makeAhoCorasick(PairString<T> [] aValueArray) {
@@ -100,7 +225,14 @@ public final class DoubleArrayTrieMaker {
      * @return DAT
      */
     public static <T> DoubleArrayTrie<T> convert(Trie<T> aTrie) {
-        MakeContext<T> context = new MakeContext<T>( 1 );
+        return DoubleArrayTrieMaker.convert( aTrie, UNLIMITED_EMPTY_TRIAL );
+    }
+
+    /**
+     * 把 Trie<T> 树转换成DAT，aEmptyTrialLimit的含义同<code>makeDoubleArrayTrie(aValueArray, aEmptyTrialLimit)</code>
+     */
+    public static <T> DoubleArrayTrie<T> convert(Trie<T> aTrie, int aEmptyTrialLimit) {
+        MakeContext<T> context = new MakeContext<T>( 1, aEmptyTrialLimit );
         //先对Trie树遍历一遍把TrieNode转换成需要额外信息(base,check,depth等)的ProcessingNode
         LinkedList<ProccessingNode<T>> queueInsert = new LinkedList<ProccessingNode<T>>();
         DoubleArrayTrieMaker.tryConvertTrieNode( aTrie.mRootTrieNode, context.mDatArray[ 0 ], queueInsert );
@@ -110,24 +242,106 @@ public final class DoubleArrayTrieMaker {
         return DoubleArrayTrieMaker.construct( context, parentNodes );
     }
 
+    /**
+     * <p>从<code>serializeDoubleArrayTrieToFile</code>持久化的文件加载DAT。当前的版本2列式格式(参见<code>DoubleArrayTrieFile</code>)
+     * 是整段批量读取base和check，只做一次校验和检查；老的"#DAT"版本1格式的文件依然可以加载</p>
+     */
     public static <T> DoubleArrayTrie<T> deserializeDoubleArrayTrieFromFile(File aInputFile, ValueDeserializer<T> aValueDeserializer) throws IOException {
+        return DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( aInputFile, aValueDeserializer, false );
+    }
+
+    /**
+     * <p>同<code>deserializeDoubleArrayTrieFromFile(aInputFile, aValueDeserializer)</code>，但可以选择延迟反序列化value：
+     * 加载时只读入base和check，value依然以序列化字节的形式留在内存映象中，通过value偏移表定位，每个value第一次被访问的时候才调用
+     * aValueDeserializer反序列化并缓存，多线程并发访问也是安全的。对于value很大而实际命中比例很小的字典，可以大大加快启动并减少堆内存占用。</p>
+     * <p>老的"#DAT"版本1格式没有value偏移表，总是在加载时全部反序列化</p>
+     *
+     * @param aLazyValue 是否延迟到第一次访问时才反序列化value
+     */
+    public static <T> DoubleArrayTrie<T> deserializeDoubleArrayTrieFromFile(File aInputFile, ValueDeserializer<T> aValueDeserializer, boolean aLazyValue) throws IOException {
+        if (DoubleArrayTrieFile.readMagic( aInputFile ) == DoubleArrayTrieFile.LEGACY_MAGIC) {
+            return DoubleArrayTrieMaker.deserializeLegacyDoubleArrayTrieFromFile( aInputFile, aValueDeserializer );
+        }
+        else {
+            return DoubleArrayTrieFile.load( DoubleArrayTrieFile.map( aInputFile, true ), aValueDeserializer, aLazyValue );
+        }
+    }
+
+    /**
+     * <p>把DAT持久化成版本2的列式文件，文件中base和check是连续存放的int段，value则序列化成一个数据块加上一个偏移表，
+     * 最后有整个文件的校验和，参见<code>DoubleArrayTrieFile</code>。</p>
+     * <p>此文件既可以用<code>deserializeDoubleArrayTrieFromFile</code>加载成堆上的DAT，也可以用<code>mapDoubleArrayTrieFromFile</code>
+     * 零拷贝地内存映象成<code>MappedDoubleArrayTrie</code></p>
+     */
+    public static <T> void serializeDoubleArrayTrieToFile(DoubleArrayTrie<T> aDAT, File aOutputFile, ValueSerializer<T> aValueSerializer) throws IOException {
+        DoubleArrayTrieFile.write( aDAT, aOutputFile, aValueSerializer, false );
+    }
+
+    /**
+     * <p>同<code>serializeDoubleArrayTrieToFile(aDAT, aOutputFile, aValueSerializer)</code>，aWithAhoCorasick为true时把AC的depth、failure、输出链
+     * 三个int段也一起持久化(文件多出3个int段)，加载后第一次多模式串匹配不再需要bfs构造failure表：<code>deserializeDoubleArrayTrieFromFile</code>
+     * 整段读入，<code>mapDoubleArrayTrieFromFile</code>则直接内存映象</p>
+     */
+    public static <T> void serializeDoubleArrayTrieToFile(DoubleArrayTrie<T> aDAT, File aOutputFile, ValueSerializer<T> aValueSerializer, boolean aWithAhoCorasick) throws IOException {
+        DoubleArrayTrieFile.write( aDAT, aOutputFile, aValueSerializer, aWithAhoCorasick );
+    }
+
+    /**
+     * <p>把<code>serializeDoubleArrayTrieToFile</code>持久化的文件直接内存映象成只读的<code>MappedDoubleArrayTrie</code>，
+     * 加载过程不创建任何节点对象也不反序列化任何value，只有匹配命中的时候才调用aValueDeserializer反序列化对应的value。
+     * 为了极速启动不校验校验和，如果需要校验用<code>mapDoubleArrayTrieFromFile(aInputFile, aValueDeserializer, true)</code></p>
+     *
+     * @see MappedDoubleArrayTrie
+     */
+    public static <T> MappedDoubleArrayTrie<T> mapDoubleArrayTrieFromFile(File aInputFile, ValueDeserializer<T> aValueDeserializer) throws IOException {
+        return DoubleArrayTrieMaker.mapDoubleArrayTrieFromFile( aInputFile, aValueDeserializer, false );
+    }
+
+    /**
+     * @param aVerifyChecksum 是否校验整个文件的校验和，校验需要把整个文件读一遍
+     * @see #mapDoubleArrayTrieFromFile(File, ValueDeserializer)
+     */
+    public static <T> MappedDoubleArrayTrie<T> mapDoubleArrayTrieFromFile(File aInputFile, ValueDeserializer<T> aValueDeserializer, boolean aVerifyChecksum) throws IOException {
+        return new MappedDoubleArrayTrie<T>( DoubleArrayTrieFile.map( aInputFile, aVerifyChecksum ), aValueDeserializer );
+    }
+
+    /**
+     * <p>流式构造DAT并直接持久化到文件，结果同<code>serializeDoubleArrayTrieToFile</code>一样是版本2的列式文件，
+     * 之后用<code>deserializeDoubleArrayTrieFromFile</code>或<code>mapDoubleArrayTrieFromFile</code>加载。</p>
+     * <p>aSortedPairs必须已经按关键字的字典序排好序(同PairString的排序)，只顺序读一遍，内存中只保留当前关键字路径上的节点，
+     * value一完成就序列化到同目录下的临时文件中，因此构造时的堆内存基本上就只有最终的base/check数组，适合数据量巨大的离线构造，
+     * 例如从一个排好序的数据文件逐行读取。相同的关键字后面的覆盖前面的。数组的压缩率比<code>makeDoubleArrayTrie</code>稍差一点。</p>
+     *
+     * @param aSortedPairs 按字典序排好序的数据
+     * @param aOutputFile 输出的DAT文件
+     * @param aValueSerializer value序列化
+     *
+     * @see DoubleArrayTrieStreamMaker
+     */
+    public static <T> void makeDoubleArrayTrieToFile(Iterator<PairString<T>> aSortedPairs, File aOutputFile, ValueSerializer<T> aValueSerializer) throws IOException {
+        DoubleArrayTrieStreamMaker.make( aSortedPairs, aOutputFile, aValueSerializer );
+    }
+
+    private static <T> DoubleArrayTrie<T> deserializeLegacyDoubleArrayTrieFromFile(File aInputFile, ValueDeserializer<T> aValueDeserializer) throws IOException {
         try (FileInputStream fis = new FileInputStream( aInputFile )) {
             FileChannel fc = fis.getChannel();
             ByteBuffer fileBuffer = fis.getChannel().map( MapMode.READ_ONLY, 0, fc.size() );
-            if (fileBuffer.getInt() != ByteBuffer.wrap( "#DAT".getBytes( "UTF-8" ) ).getInt()) {//check simple magic
+            if (fileBuffer.getInt() != DoubleArrayTrieFile.LEGACY_MAGIC) {//check simple magic
                 throw new Error( "搞错文件喽，走错女厕所喽:" + aInputFile.getAbsolutePath() );
             }
             int datArrayLength = fileBuffer.getInt();
+            int [] baseArray = new int [ datArrayLength ];
+            int [] checkArray = new int [ datArrayLength ];
             @SuppressWarnings("unchecked")
-            DoubleArrayTrieNode<T> [] datArray = new DoubleArrayTrieNode [ datArrayLength ];
+            T [] valueArray = ( T [] )new Object [ datArrayLength ];
+            Arrays.fill( checkArray, DoubleArrayTrie.EMPTY_CHECK );
             char [] chars = new char [ datArrayLength ];//用于校验看文件是否一致
             int lastIndex = datArrayLength - 1;
             while (true) {
                 int datIndex = fileBuffer.getInt();
                 chars[ datIndex ] = fileBuffer.getChar();
-                int base = fileBuffer.getInt();
-                int check = fileBuffer.getInt();
-                T value = null;
+                baseArray[ datIndex ] = fileBuffer.getInt();
+                checkArray[ datIndex ] = fileBuffer.getInt();
                 if (fileBuffer.get() != 0) {
                     //dataBuffer
                     int valueByteCount = fileBuffer.getInt();
@@ -135,58 +349,23 @@ public final class DoubleArrayTrieMaker {
                     int beforeLimit = fileBuffer.limit();
                     int afterPos = beforePos + valueByteCount;
                     fileBuffer.limit( afterPos );
-                    value = aValueDeserializer.deserialize( fileBuffer );
+                    valueArray[ datIndex ] = aValueDeserializer.deserialize( fileBuffer );
                     fileBuffer.limit( beforeLimit ).position( afterPos );
                 }
-                datArray[ datIndex ] = new DoubleArrayTrieNode<T>( base, check, value );
                 if (datIndex == lastIndex) {
                     break;
                 }
             }
             //再根据chars把父子关系的base和check校验一盘：childCheck == parentIndex && childIndex == parentBase + childChar 必须成立
             for (int i = 1; i < datArrayLength; ++i) {//从1开始，虚根不用
-                DoubleArrayTrieNode<T> childDatNode = datArray[ i ];
-                if (childDatNode != null) {
-                    if (datArray[ childDatNode.mCheck ].mBase + chars[ i ] != i) {
+                int parentIndex = checkArray[ i ];
+                if (parentIndex != DoubleArrayTrie.EMPTY_CHECK) {
+                    if (baseArray[ parentIndex ] + chars[ i ] != i) {
                         throw new Error( "Sequence Check Error: " + aInputFile.getAbsolutePath() + ":[" + i + "," + chars[ i ] + "]" );
                     }
                 }
             }
-            return new DoubleArrayTrie<T>( datArray );
-        }
-    }
-
-    public static <T> void serializeDoubleArrayTrieToFile(DoubleArrayTrie<T> aDAT, File aOutputFile, ValueSerializer<T> aValueSerializer) throws IOException {
-        try (DataOutputStream datWriter = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( aOutputFile ), 1024 << 6 ) )) {
-            DoubleArrayTrieNode<T> [] datArray = aDAT.mDatArray;
-            //int invalidBase = datArray[ 0 ].mBase - 1;//虚根的mBase一定是最小的base值，则把其他叶子节点的base值序化成小1不用Integer.MIN_VALUE
-            datWriter.write( "#DAT".getBytes() );//simple magic
-            datWriter.writeInt( datArray.length );//datArrayLength
-            for (int i = 0, isize = datArray.length; i < isize; ++i) {
-                DoubleArrayTrieNode<T> n = datArray[ i ];
-                if (n != null) {
-                    datWriter.writeInt( i );
-                    datWriter.writeChar( n.getChar( datArray, i ) );
-                    datWriter.writeInt( n.mBase );
-                    datWriter.writeInt( n.mCheck );
-                    if (n.mValue != null) {
-                        datWriter.write( 1 );
-                        ByteBuffer valueBytes = aValueSerializer.serialize( n.mValue );
-                        datWriter.writeInt( valueBytes.remaining() );
-                        if (valueBytes.hasArray()) {
-                            datWriter.write( valueBytes.array(), valueBytes.arrayOffset() + valueBytes.position(), valueBytes.remaining() );
-                        }
-                        else {
-                            while (valueBytes.hasRemaining()) {
-                                datWriter.writeByte( valueBytes.get() );
-                            }
-                        }
-                    }
-                    else {
-                        datWriter.write( 0 );
-                    }
-                }
-            }
+            return new DoubleArrayTrie<T>( baseArray, checkArray, valueArray );
         }
     }
 
@@ -268,17 +447,19 @@ public final class DoubleArrayTrieMaker {
         ProccessingNode<T> [] childrenNodes = aParentNode.mChildrenNodes;
         int firstChildChar = childrenNodes[ 0 ].mChar;
         int lastChildChar = childrenNodes[ childrenNodes.length - 1 ].mChar;
-        //使得parentNode的mBase设置成恰好从dat数组的下标从 aNextFirstEmptyIndex 开始检查冲突,可能是负数的哦
-        int parentBase = aContext.getNextFirstEmptyIndex() - firstChildChar;
+        //第一个儿子只可能放在空位上，因此只需要在空位链表上尝试，使得parentNode的mBase恰好让第一个儿子落在 emptyIndex 上,可能是负数的哦
+        int emptyIndex = aContext.getNextFirstEmptyIndex();
+        int parentBase = emptyIndex - firstChildChar;
         ProccessingNode<T> [] datArray = aContext.ensureDatArrayLength( parentBase + lastChildChar );
-        for (int i = 0; i < childrenNodes.length; ++i) {
+        for (int i = 1; i < childrenNodes.length; ++i) {
             ProccessingNode<T> nextChildNode = childrenNodes[ i ];
             if (datArray[ parentBase + nextChildNode.mChar ] != null) {
-                //解决冲突:寻找aChildrenNodes.length个空闲空间使得 parentBase 满足所有的长度为空的空间
-                ++parentBase;
+                //解决冲突:直接跳到下一个空位,中间被占用的下标肯定不行,不必逐个尝试
+                emptyIndex = aContext.getNextEmptyIndex( emptyIndex );
+                parentBase = emptyIndex - firstChildChar;
                 datArray = aContext.ensureDatArrayLength( parentBase + lastChildChar );
-                //又要从0开始检查
-                i = -1;
+                //又要从头检查
+                i = 0;
             }
         }
         //把消除冲突后的parentBase记录下来
@@ -290,10 +471,30 @@ public final class DoubleArrayTrieMaker {
             //不用设置mCheck,因为aParentNode可能还没有插入dat
             //nextChildNode.mCheck = parentIndex;
             datArray[ nextChildNode.mIndex ] = nextChildNode;
+            aContext.removeEmptyIndex( nextChildNode.mIndex );
         }
     }
 
+    private static <T> ProccessingNode<T> [] fetchAll(MakeContext<T> aContext, LinkedList<ProccessingNode<T>> aQueueFetch, LinkedList<ProccessingNode<T>> aQueueInsert) {
+        //以bfs遍历方式生成Trie, 返回所有儿子非空的父亲节点
+        while (!aQueueFetch.isEmpty()) {
+            ProccessingNode<T> nextParentNode = aQueueFetch.removeFirst();
+            DoubleArrayTrieMaker.fetch( aContext, aQueueFetch, nextParentNode );
+            if (nextParentNode.mChildrenNodes != null) {
+                aQueueInsert.add( nextParentNode );
+            }
+        }
+        @SuppressWarnings("unchecked")
+        ProccessingNode<T> [] parentNodes = aQueueInsert.toArray( new ProccessingNode [ aQueueInsert.size() ] );
+        return parentNodes;
+    }
+
     private static <T> DoubleArrayTrie<T> construct(MakeContext<T> aContext, ProccessingNode<T> [] aParentNodes) {
+        DoubleArrayTrieMaker.place( aContext, aParentNodes );
+        return aContext.toDoubleArrayTrie();
+    }
+
+    private static <T> void place(MakeContext<T> aContext, ProccessingNode<T> [] aParentNodes) {
         //还是按照层的顺序，以儿子数目多少优先插入，这种测试对比目前这种方法使得dat数组长度最小，内存占用自然也小，以后再考虑其他组合方式
         Arrays.parallelSort( aParentNodes, (aOne, aTwo) -> {
             int childCountDelta = aTwo.mChildrenNodes.length - aOne.mChildrenNodes.length;//由大到小
@@ -317,7 +518,6 @@ public final class DoubleArrayTrieMaker {
                 childNode.mCheck = parentIndex;
             }
         }
-        return aContext.toDoubleArrayTrie();
     }
 
     private static final class ProccessingNode<T> {
@@ -350,57 +550,187 @@ public final class DoubleArrayTrieMaker {
         }
     }
 
+    /**
+     * 并行构造时的一段：若干个第一个字符的节点的所有子孙构成的子DAT。第一个字符的节点本身最终放在虚根的儿子位置，
+     * 因此不占子DAT的位置，它们的mIndex记为 -1 - mChar，这样儿子的mCheck就能标示出父亲是哪一个第一个字符的节点
+     */
+    private static final class MakePartition<T> {
+        private ProccessingNode<T> [] mFirstCharNodes;
+        private int mKeyCount;
+        private ProccessingNode<T> [] mDatArray;
+        //子DAT去掉尾部空位后的长度
+        private int mLength;
+        //子DAT的下标j平移到最终dat数组的下标 mOffset + j
+        private int mOffset;
+
+        MakePartition(ProccessingNode<T> [] aFirstCharNodes, int aKeyCount) {
+            this.mFirstCharNodes = aFirstCharNodes;
+            this.mKeyCount = aKeyCount;
+        }
+
+        void make(PairString<T> [] aValueArray, int aEmptyTrialLimit) {
+            MakeContext<T> context = new MakeContext<T>( aValueArray, this.mKeyCount, aEmptyTrialLimit );
+            for (ProccessingNode<T> nextFirstCharNode : this.mFirstCharNodes) {
+                nextFirstCharNode.mIndex = -1 - nextFirstCharNode.mChar;
+            }
+            ProccessingNode<T> [] parentNodes = DoubleArrayTrieMaker.fetchAll( context, new LinkedList<ProccessingNode<T>>( Arrays.asList( this.mFirstCharNodes ) ), new LinkedList<ProccessingNode<T>>() );
+            DoubleArrayTrieMaker.place( context, parentNodes );
+            ProccessingNode<T> [] datArray = context.mDatArray;
+            int realLength = datArray.length;
+            while (datArray[ realLength - 1 ] == null) {
+                --realLength;
+            }
+            this.mDatArray = datArray;
+            this.mLength = realLength;
+        }
+
+        void relocate(int aRootBase, int [] aBaseArray, int [] aCheckArray, Object [] aValueArray) {
+            //儿子都在mBase + char的位置，整段平移后儿子的位置都加上了offset，因此非叶子节点的mBase也加上offset即可
+            int offset = this.mOffset;
+            for (ProccessingNode<T> nextFirstCharNode : this.mFirstCharNodes) {
+                int datIndex = aRootBase + nextFirstCharNode.mChar;
+                aBaseArray[ datIndex ] = nextFirstCharNode.mChildrenNodes != null ? nextFirstCharNode.mBase + offset : nextFirstCharNode.mBase;
+                aCheckArray[ datIndex ] = 0;
+                aValueArray[ datIndex ] = nextFirstCharNode.mValue;
+            }
+            ProccessingNode<T> [] datArray = this.mDatArray;
+            for (int i = 1, isize = this.mLength; i < isize; ++i) {
+                ProccessingNode<T> pNode = datArray[ i ];
+                if (pNode != null) {
+                    int datIndex = offset + i;
+                    aBaseArray[ datIndex ] = pNode.mChildrenNodes != null ? pNode.mBase + offset : pNode.mBase;
+                    int parentIndex = pNode.mCheck;
+                    aCheckArray[ datIndex ] = parentIndex < 0 ? aRootBase + (-1 - parentIndex) : offset + parentIndex;
+                    aValueArray[ datIndex ] = pNode.mValue;
+                    datArray[ i ] = null;//speed GC it
+                }
+            }
+            this.mDatArray = null;
+        }
+    }
+
     /**
      * 构建DAT的上下文对象,用于保存构建过程中的数据
      */
     private static final class MakeContext<T> {
+        //不在空位链表中的下标的mNextEmptyArray值
+        private static final int NOT_EMPTY = -1;
+
         PairString<T> [] mValueArray;
         ProccessingNode<T> [] mDatArray;
-        //mNextFirstEmptyIndex表示dat数组第一个空位的位置,后面的dat构建过程就是从插入下标1的位置开始,因为下标0是虚根的嘛
-        int mNextFirstEmptyIndex = 1;
+        //dat数组所有空位串成的循环双向链表，下标0是虚根不可能为空，正好拿来作为链表头：mNextEmptyArray[0]就是第一个空位，
+        //mPrevEmptyArray[0]就是最后一个空位，链表为空时mNextEmptyArray[0] == 0。构建过程就是从链表头的第一个空位开始尝试
+        int [] mNextEmptyArray;
+        int [] mPrevEmptyArray;
+        //每个空位作为第一个儿子位置尝试失败的次数，超过mEmptyTrialLimit就从链表中摘掉，为null表示不限制
+        int [] mEmptyTrialArray;
+        int mEmptyTrialLimit;
         ArrayList<ProccessingNode<T>> mCacheChildNodeList;
 
-        MakeContext(PairString<T> [] aValueArray) {
-            this( aValueArray.length );
+        MakeContext(PairString<T> [] aValueArray, int aEmptyTrialLimit) {
+            this( aValueArray, aValueArray.length, aEmptyTrialLimit );
+        }
+
+        MakeContext(PairString<T> [] aValueArray, int aArrayCount, int aEmptyTrialLimit) {
+            //并行构造时每段只处理aValueArray中的aArrayCount个数据
+            this( aArrayCount, aEmptyTrialLimit );
             this.mValueArray = aValueArray;
             //避免每次创建用途的cache
-            this.mCacheChildNodeList = new ArrayList<ProccessingNode<T>>( aValueArray.length );
+            this.mCacheChildNodeList = new ArrayList<ProccessingNode<T>>( aArrayCount );
         }
 
-        MakeContext(int aArrayCount) {
+        MakeContext(int aArrayCount, int aEmptyTrialLimit) {
+            if (aEmptyTrialLimit < 0) {
+                throw new Error( "空位最多尝试的次数不能为负: " + aEmptyTrialLimit );
+            }
             @SuppressWarnings("unchecked")
             ProccessingNode<T> [] datArray = new ProccessingNode [ 1 + aArrayCount << 1 ];
             //创建一个虚根节点,对应dat数组的下标0
             ProccessingNode<T> proccessingNodeRoot = new ProccessingNode<T>( aArrayCount );
             datArray[ 0 ] = proccessingNodeRoot;
             this.mDatArray = datArray;
+            this.mNextEmptyArray = new int [ datArray.length ];
+            this.mPrevEmptyArray = new int [ datArray.length ];
+            this.mEmptyTrialLimit = aEmptyTrialLimit;
+            if (aEmptyTrialLimit != UNLIMITED_EMPTY_TRIAL) {
+                this.mEmptyTrialArray = new int [ datArray.length ];
+            }
+            this.linkEmptyIndexes( 1, datArray.length );
         }
 
         int getNextFirstEmptyIndex() {
-            ProccessingNode<T> [] datArray = this.mDatArray;
-            int nextFirstEmptyIndex = this.mNextFirstEmptyIndex;
-            for (; nextFirstEmptyIndex < datArray.length; ++nextFirstEmptyIndex) {
-                if (datArray[ nextFirstEmptyIndex ] == null) {
-                    //mNextFirstEmptyIndex是dat数组中从左到右的第一个空位下标,下次mBase冲突检查就从这个aNextFirstEmptyIndex开始
-                    //需要记录下来，否则每次都从1开始查找没有必要
-                    this.mNextFirstEmptyIndex = nextFirstEmptyIndex;
-                    break;
-                }
+            if (this.mNextEmptyArray[ 0 ] == 0) {
+                //没有空位了，扩展dat数组，扩展出来的都是空位
+                this.ensureDatArrayLength( this.mDatArray.length );
+            }
+            return this.mNextEmptyArray[ 0 ];
+        }
+
+        /**
+         * aEmptyIndex作为第一个儿子的位置冲突了，返回下一个可尝试的空位
+         */
+        int getNextEmptyIndex(int aEmptyIndex) {
+            int [] nextEmptyArray = this.mNextEmptyArray;
+            if (nextEmptyArray[ aEmptyIndex ] == 0) {
+                //已经是最后一个空位，扩展dat数组
+                this.ensureDatArrayLength( this.mDatArray.length );
+                nextEmptyArray = this.mNextEmptyArray;
+            }
+            int nextEmptyIndex = nextEmptyArray[ aEmptyIndex ];
+            int [] emptyTrialArray = this.mEmptyTrialArray;
+            if (emptyTrialArray != null && ++emptyTrialArray[ aEmptyIndex ] >= this.mEmptyTrialLimit) {
+                //尝试太多次了，说明附近很满，不再尝试这个空位
+                this.removeEmptyIndex( aEmptyIndex );
+            }
+            return nextEmptyIndex;
+        }
+
+        void removeEmptyIndex(int aIndex) {
+            int [] nextEmptyArray = this.mNextEmptyArray;
+            int [] prevEmptyArray = this.mPrevEmptyArray;
+            int nextEmptyIndex = nextEmptyArray[ aIndex ];
+            if (nextEmptyIndex != NOT_EMPTY) {
+                int prevEmptyIndex = prevEmptyArray[ aIndex ];
+                nextEmptyArray[ prevEmptyIndex ] = nextEmptyIndex;
+                prevEmptyArray[ nextEmptyIndex ] = prevEmptyIndex;
+                nextEmptyArray[ aIndex ] = NOT_EMPTY;
             }
-            return nextFirstEmptyIndex;
         }
 
         ProccessingNode<T> [] ensureDatArrayLength(int aPos) {
             ProccessingNode<T> [] datArray = this.mDatArray;
             if (datArray.length <= aPos) {
-                datArray = Arrays.copyOf( datArray, aPos + 1024 );
+                int oldLength = datArray.length;
+                //按1.5倍扩展，逐1024扩展的话千万级数据的反复拷贝就是平方级的了，多出来的尾部空位最后toDoubleArrayTrie()时会丢弃
+                int newLength = Math.max( aPos + 1024, oldLength + (oldLength >> 1) );
+                datArray = Arrays.copyOf( datArray, newLength );
                 this.mDatArray = datArray;
+                this.mNextEmptyArray = Arrays.copyOf( this.mNextEmptyArray, newLength );
+                this.mPrevEmptyArray = Arrays.copyOf( this.mPrevEmptyArray, newLength );
+                if (this.mEmptyTrialArray != null) {
+                    this.mEmptyTrialArray = Arrays.copyOf( this.mEmptyTrialArray, newLength );
+                }
+                this.linkEmptyIndexes( oldLength, newLength );
             }
             return datArray;
         }
 
+        private void linkEmptyIndexes(int aFrom, int aTo) {
+            //把[aFrom, aTo)之间的新空位按顺序追加到空位链表的尾部
+            int [] nextEmptyArray = this.mNextEmptyArray;
+            int [] prevEmptyArray = this.mPrevEmptyArray;
+            int lastEmptyIndex = prevEmptyArray[ 0 ];
+            for (int i = aFrom; i < aTo; ++i) {
+                nextEmptyArray[ lastEmptyIndex ] = i;
+                prevEmptyArray[ i ] = lastEmptyIndex;
+                lastEmptyIndex = i;
+            }
+            nextEmptyArray[ lastEmptyIndex ] = 0;
+            prevEmptyArray[ 0 ] = lastEmptyIndex;
+        }
+
         private DoubleArrayTrie<T> toDoubleArrayTrie() {
-            //构造完毕，这里的 realDatArray 才是最终的dat数组，而ProccessingNode [] datArray只是构建DAT用途，
+            //构造完毕，这里的 baseArray,checkArray,valueArray 才是最终的dat数组，而ProccessingNode [] datArray只是构建DAT用途，
             //构建完毕后大部分信息是冗余的，因此被丢弃，只需要保留 mBase,mCheck和 mValue即可
             //节省内存，丢弃后面所有为空的部分
             ProccessingNode<T> [] datArray = this.mDatArray;
@@ -411,17 +741,24 @@ public final class DoubleArrayTrieMaker {
                     break;
                 }
             }
+            int [] baseArray = new int [ realLength ];
+            int [] checkArray = new int [ realLength ];
             @SuppressWarnings("unchecked")
-            DoubleArrayTrieNode<T> [] realDatArray = new DoubleArrayTrieNode [ realLength ];
+            T [] valueArray = ( T [] )new Object [ realLength ];
             for (int i = 0; i < realLength; ++i) {
                 ProccessingNode<T> pNode = datArray[ i ];
                 if (pNode != null) {
                     //只保留mBase,mCheck,mValue
-                    realDatArray[ i ] = new DoubleArrayTrieNode<T>( pNode.mBase, pNode.mCheck, pNode.mValue );
+                    baseArray[ i ] = pNode.mBase;
+                    checkArray[ i ] = pNode.mCheck;
+                    valueArray[ i ] = pNode.mValue;
                     datArray[ i ] = null;//speed GC it
                 }
+                else {
+                    checkArray[ i ] = DoubleArrayTrie.EMPTY_CHECK;
+                }
             }
-            return new DoubleArrayTrie<T>( realDatArray );
+            return new DoubleArrayTrie<T>( baseArray, checkArray, valueArray );
         }
     }
 }
@@ -1,10 +1,10 @@
 package org.langzhaozhi.dat;
 
+import java.util.Arrays;
 import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.function.ToDoubleFunction;
 
-import org.langzhaozhi.dat.DoubleArrayTrie.DoubleArrayTrieNode;
 import org.langzhaozhi.util.IntHash;
 
 /**
@@ -67,10 +67,16 @@ import org.langzhaozhi.util.IntHash;
  * <p>要生成对偶DAT，用<code>DoubleArrayTrieMaker::makeDoubleArrayTrieDual</code></p>
  */
 public final class DoubleArrayTriePrefixMatcher<T> {
-    private DoubleArrayTrie<T> mOwnerDat;
+    /**
+     * <code>complete</code>取第一页时的续取标记
+     */
+    public static final int COMPLETION_START = 0;
+    /**
+     * <code>complete</code>返回此值表示已经全部通知完了
+     */
+    public static final int COMPLETION_END = -1;
 
-    //建立一个同DAT数组下标完全对应的Prefix的Trie树结构数组
-    private PrefixTrieNode<T> [] mPrefixTrieArray;
+    private final DoubleArrayTrie<T> mOwnerDat;
 
     DoubleArrayTriePrefixMatcher(DoubleArrayTrie<T> aOwnerDat) {
         this.mOwnerDat = aOwnerDat;
@@ -84,29 +90,25 @@ public final class DoubleArrayTriePrefixMatcher<T> {
      */
     public void prefixBeforeMatchCaseSensitive(CharSequence aInputText, Hit<T> aHit) {
         boolean whetherContinueHit = true;
-        DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
         //总是从虚根开始
-        DoubleArrayTrieNode<T> searchNode = datArray[ 0 ];
-        int parentCheck = searchNode.mCheck;
-        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = datArray.length; whetherContinueHit && i < keyCharLen; ++i) {
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = checkArray.length; whetherContinueHit && i < keyCharLen; ++i) {
             char nextChar = aInputText.charAt( i );
-            int index = searchNode.mBase + nextChar;
-            if (index < 0 || index >= datArrayLen) {
-                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+            int index = baseArray[ parentIndex ] + nextChar;
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
+                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外;
+                //check检查非常关键，如果check不相等，此 index 肯定不是后继节点
                 break;
             }
             else {
-                searchNode = datArray[ index ];
-                if (searchNode == null || searchNode.mCheck != parentCheck) {
-                    //check检查非常关键，如果check不相等，此 searchNode 肯定不是后继节点
-                    break;
-                }
-                else {
-                    if (searchNode.mValue != null) {
-                        whetherContinueHit = aHit.hit( aInputText, 0, i + 1, searchNode.mValue );
-                    }
-                    parentCheck = index;
+                T value = dat.getValue( index );
+                if (value != null) {
+                    whetherContinueHit = aHit.hit( aInputText, 0, i + 1, value );
                 }
+                parentIndex = index;
             }
         }
     }
@@ -118,44 +120,42 @@ public final class DoubleArrayTriePrefixMatcher<T> {
      * @param aHit 匹配后的回调
      */
     public void prefixBeforeMatchCaseInsensitive(CharSequence aInputText, Hit<T> aHit) {
-        DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
         HashSet<Integer> parentCheckSet = new HashSet<Integer>();
         HashSet<Integer> thisCheckSet = new HashSet<Integer>();
         //记录真正匹配到的关键字串,以便正确 hit 回调的时候把DAT中对应的真正关键字进行通知
         IntHash<String> matchedKeys = new IntHash<String>( aInputText.length() );
         matchedKeys.put( 0, "" );//虚根对应空串
-        parentCheckSet.add( datArray[ 0 ].mCheck );//always root as first parent
-        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = datArray.length; i < keyCharLen; ++i) {
+        parentCheckSet.add( 0 );//always root as first parent
+        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = checkArray.length; i < keyCharLen; ++i) {
             char oneChar = aInputText.charAt( i );
             char twoChar = Character.isUpperCase( oneChar ) ? Character.toLowerCase( oneChar ) : (Character.isLowerCase( oneChar ) ? Character.toUpperCase( oneChar ) : oneChar);
 
             for (Iterator<Integer> parentIterator = parentCheckSet.iterator(); parentIterator.hasNext();) {
                 int parentCheck = parentIterator.next();
-                DoubleArrayTrieNode<T> parentDatNode = datArray[ parentCheck ];
+                int parentBase = baseArray[ parentCheck ];
                 parentIterator.remove();//迭代清空
                 String parentKey = matchedKeys.get( parentCheck );
 
                 for (int j = 0, jsize = oneChar == twoChar ? 1 : 2; j < jsize; ++j) {
                     char nextChar = j == 0 ? oneChar : twoChar;
-                    int index = parentDatNode.mBase + nextChar;
-                    if (index < 0 || index >= datArrayLen) {
-                        //nothing to do:由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+                    int index = parentBase + nextChar;
+                    if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentCheck) {
+                        //nothing to do:由于mBase可能为负,因此这里计算出的index有可能在数组范围外;
+                        //check检查非常关键，如果check不相等，此 index 肯定不是后继节点
                     }
                     else {
-                        DoubleArrayTrieNode<T> childDatNode = datArray[ index ];
-                        if (childDatNode == null || childDatNode.mCheck != parentCheck) {
-                            //nothing to do:check检查非常关键，如果check不相等，此 searchNode 肯定不是后继节点
-                        }
-                        else {
-                            String childKey = parentKey + nextChar;
-                            if (childDatNode.mValue != null) {
-                                if (!aHit.hit( childKey, 0, i + 1, childDatNode.mValue )) {
-                                    return;
-                                }
+                        String childKey = parentKey + nextChar;
+                        T childValue = dat.getValue( index );
+                        if (childValue != null) {
+                            if (!aHit.hit( childKey, 0, i + 1, childValue )) {
+                                return;
                             }
-                            thisCheckSet.add( index );//记录下一层的parentCheck
-                            matchedKeys.put( index, childKey );
                         }
+                        thisCheckSet.add( index );//记录下一层的parentCheck
+                        matchedKeys.put( index, childKey );
                     }
                 }
             }
@@ -171,6 +171,45 @@ public final class DoubleArrayTriePrefixMatcher<T> {
         }
     }
 
+    /**
+     * <p><b><前缀前匹配prefixBeforeMatch></b>的大小写折叠匹配，只用于<code>DoubleArrayTrieMaker::makeDoubleArrayTrieCaseFolded</code>构造的DAT：
+     * aInputText的每个字符先折叠再匹配，因此不区分大小写，但同大小写敏感匹配一样只是单状态遍历，没有任何对象分配。
+     * 通知的aSearchText就是aInputText</p>
+     * @param aInputText 输入字串
+     * @param aHit 匹配后的回调
+     */
+    public void prefixBeforeMatchCaseFolded(CharSequence aInputText, Hit<T> aHit) {
+        boolean whetherContinueHit = true;
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
+        //总是从虚根开始
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = checkArray.length; whetherContinueHit && i < keyCharLen; ++i) {
+            int index = baseArray[ parentIndex ] + CaseFolding.fold( aInputText.charAt( i ) );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentIndex) {
+                break;
+            }
+            else {
+                T value = dat.getValue( index );
+                if (value != null) {
+                    whetherContinueHit = aHit.hit( aInputText, 0, i + 1, value );
+                }
+                parentIndex = index;
+            }
+        }
+    }
+
+    /**
+     * <p><b><前缀后匹配prefixAfterMatch></b>的大小写折叠匹配，只用于<code>DoubleArrayTrieMaker::makeDoubleArrayTrieCaseFolded</code>构造的DAT。
+     * 通知的aSearchText是折叠后的关键字串</p>
+     * @param aInputText 输入字串
+     * @param aHit 匹配后的回调
+     */
+    public void prefixAfterMatchCaseFolded(CharSequence aInputText, Hit<T> aHit) {
+        this.prefixAfterMatchCaseSensitive( CaseFolding.fold( aInputText ), aHit );
+    }
+
     /**
      * <p><b><前缀后匹配prefixAfterMatch>：输入字串是匹配结果的关键字串的前缀。</b>这是<b>大小写敏感</b>匹配。参见前面概念定义说明。</p>
      * <p>如果是对偶DAT，本方法本质上是<后缀后匹配suffixAfterMatch>的大小写敏感匹配实现,此时的输入字串aInputText也应该是正向DAT输入字串的对偶</p>
@@ -183,42 +222,33 @@ public final class DoubleArrayTriePrefixMatcher<T> {
             //不支持空串，因为全匹配实在是无意义的空耗
             return;
         }
-        DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
         //总是从虚根开始，先匹配出所有 aInputText 的前缀
-        DoubleArrayTrieNode<T> searchNode = datArray[ 0 ];
-        int parentCheck = searchNode.mCheck;
-        for (int i = 0, datArrayLen = datArray.length; i < keyCharLen; ++i) {
+        int parentCheck = 0;
+        for (int i = 0, datArrayLen = checkArray.length; i < keyCharLen; ++i) {
             char nextChar = aInputText.charAt( i );
-            int index = searchNode.mBase + nextChar;
-            if (index < 0 || index >= datArrayLen) {
-                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+            int index = baseArray[ parentCheck ] + nextChar;
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentCheck) {
+                //由于mBase可能为负,因此这里计算出的index有可能在数组范围外;
+                //check检查非常关键，如果check不相等，此 index 肯定不是后继节点
                 return;//直接结束，因为找不到任何数据使得输入字串是此数据的前缀
             }
             else {
-                searchNode = datArray[ index ];
-                if (searchNode == null || searchNode.mCheck != parentCheck) {
-                    //check检查非常关键，如果check不相等，此 searchNode 肯定不是后继节点
-                    return;//直接结束，因为找不到任何数据使得输入字串是此数据的前缀
-                }
-                else {
-                    parentCheck = index;
-                }
+                parentCheck = index;
             }
         }
         //走到这里说明已经把输入字串aInputText每个字符都匹配到了,就从parentCheck位置的节点分支开始遍历所有子孙即可
-        searchNode = datArray[ parentCheck ];
-        if (searchNode.mValue != null) {
+        T searchValue = dat.getValue( parentCheck );
+        if (searchValue != null) {
             //先通知自身相等串
-            if (!aHit.hit( aInputText, 0, aInputText.length(), searchNode.mValue )) {
+            if (!aHit.hit( aInputText, 0, aInputText.length(), searchValue )) {
                 return;
             }
         }
-        PrefixTrieNode<T> [] prefixTrieArray = this.getPrefixTrieArray();
-        PrefixTrieNode<T> branchRootPrefixNode = prefixTrieArray[ parentCheck ];
-        StringBuilder keyCharBuffer = new StringBuilder( aInputText );
-        if (branchRootPrefixNode.mChildrenIndexes != null) {
-            branchRootPrefixNode.prefixAfterMatch( datArray, prefixTrieArray, keyCharBuffer, aHit );
-        }
+        //前缀后匹配才用到父子关系索引，第一次用到时才建立
+        DoubleArrayTriePrefixMatcher.completeAfter( dat, parentCheck, parentCheck, new StringBuilder( aInputText ), 0, Integer.MAX_VALUE, Integer.MAX_VALUE, aHit );
     }
 
     /**
@@ -233,38 +263,35 @@ public final class DoubleArrayTriePrefixMatcher<T> {
             //不支持空串，因为全匹配实在是无意义的空耗
             return;
         }
-        DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
         HashSet<Integer> parentCheckSet = new HashSet<Integer>();
         HashSet<Integer> thisCheckSet = new HashSet<Integer>();
         IntHash<String> matchedKeys = new IntHash<String>( aInputText.length() );
         matchedKeys.put( 0, "" );//虚根对应空串
-        parentCheckSet.add( datArray[ 0 ].mCheck );//always root as first parent
-        for (int i = 0, datArrayLen = datArray.length; i < keyCharLen; ++i) {
+        parentCheckSet.add( 0 );//always root as first parent
+        for (int i = 0, datArrayLen = checkArray.length; i < keyCharLen; ++i) {
             char oneChar = aInputText.charAt( i );
             char twoChar = Character.isUpperCase( oneChar ) ? Character.toLowerCase( oneChar ) : (Character.isLowerCase( oneChar ) ? Character.toUpperCase( oneChar ) : oneChar);
 
             for (Iterator<Integer> parentIterator = parentCheckSet.iterator(); parentIterator.hasNext();) {
                 int parentCheck = parentIterator.next();
-                DoubleArrayTrieNode<T> parentDatNode = datArray[ parentCheck ];
+                int parentBase = baseArray[ parentCheck ];
                 parentIterator.remove();//迭代清空
                 String parentKey = matchedKeys.get( parentCheck );
 
                 for (int j = 0, jsize = oneChar == twoChar ? 1 : 2; j < jsize; ++j) {
                     char nextChar = j == 0 ? oneChar : twoChar;
-                    int index = parentDatNode.mBase + nextChar;
-                    if (index < 0 || index >= datArrayLen) {
-                        //nothing to do:由于mBase可能为负,因此这里计算出的index有可能在数组范围外
+                    int index = parentBase + nextChar;
+                    if (index <= 0 || index >= datArrayLen || checkArray[ index ] != parentCheck) {
+                        //nothing to do:由于mBase可能为负,因此这里计算出的index有可能在数组范围外;
+                        //check检查非常关键，如果check不相等，此 index 肯定不是后继节点
                     }
                     else {
-                        DoubleArrayTrieNode<T> childDatNode = datArray[ index ];
-                        if (childDatNode == null || childDatNode.mCheck != parentCheck) {
-                            //nothing to do:check检查非常关键，如果check不相等，此 searchNode 肯定不是后继节点
-                        }
-                        else {
-                            thisCheckSet.add( index );//记录下一层的parentCheck
-                            String childKey = parentKey + nextChar;
-                            matchedKeys.put( index, childKey );
-                        }
+                        thisCheckSet.add( index );//记录下一层的parentCheck
+                        String childKey = parentKey + nextChar;
+                        matchedKeys.put( index, childKey );
                     }
                 }
             }
@@ -280,76 +307,78 @@ public final class DoubleArrayTriePrefixMatcher<T> {
         }
         //走到这里说明已经把输入字串aInputText每个字符都匹配到了,就从parentCheckSet中位置的节点分支开始遍历所有子孙即可
         for (Integer parentCheck : parentCheckSet) {
-            DoubleArrayTrieNode<T> searchNode = datArray[ parentCheck ];
+            T searchValue = dat.getValue( parentCheck );
             String realKey = matchedKeys.get( parentCheck );
-            if (searchNode.mValue != null) {
+            if (searchValue != null) {
                 //先通知自身相等串,这里的相等可能是大小写非敏感意义下的相等，如a相等成A
-                if (!aHit.hit( realKey, 0, aInputText.length(), searchNode.mValue )) {
+                if (!aHit.hit( realKey, 0, aInputText.length(), searchValue )) {
                     return;
                 }
             }
-            PrefixTrieNode<T> [] prefixTrieArray = this.getPrefixTrieArray();
-            PrefixTrieNode<T> branchRootPrefixNode = prefixTrieArray[ parentCheck ];
-            StringBuilder keyCharBuffer = new StringBuilder( realKey );
-            if (branchRootPrefixNode.mChildrenIndexes != null) {
-                if (!branchRootPrefixNode.prefixAfterMatch( datArray, prefixTrieArray, keyCharBuffer, aHit )) {
-                    return;
-                }
+            if (DoubleArrayTriePrefixMatcher.completeAfter( dat, parentCheck, parentCheck, new StringBuilder( realKey ), 0, Integer.MAX_VALUE, Integer.MAX_VALUE, aHit ) != COMPLETION_END) {
+                return;
             }
         }
     }
 
-    private PrefixTrieNode<T> [] getPrefixTrieArray() {
-        //只有<前缀后匹配prefixAfterMatch>的时候采用用到，因此采用延迟初始化构造整棵Trie结构
-        //不变对象指内部结构或状态的实质改变，例如增删DAT数据，而这里建立Trie结构和改变DAT数据无关，
-        //本质上是类似缓存用途性质的，因此依然符合不变对象。
-        if (this.mPrefixTrieArray == null) {
-            //扫描一遍就建立trie结构，很快
-            DoubleArrayTrieNode<T> [] datArray = this.mOwnerDat.mDatArray;
-            int datArrayLength = datArray.length;
-            @SuppressWarnings("unchecked")
-            PrefixTrieNode<T> [] prefixTrieArray = new PrefixTrieNode [ datArrayLength ];
-            for (int i = 0; i < datArrayLength; ++i) {
-                if (datArray[ i ] != null) {
-                    prefixTrieArray[ i ] = new PrefixTrieNode<T>();
-                }
+    /**
+     * <p>分页的<前缀后匹配prefixAfterMatch>，大小写敏感，用于输入提示(autocomplete)：按字典序通知关键字以aPrefix开头的数据，
+     * aPrefix本身是关键字的话最先通知。每次最多通知aLimit个，返回续取标记，下一页把它作为aToken传回来就从上次停下的地方继续，
+     * 取一页只需要O(页大小×关键字长度)，不会因为前缀很短就遍历整个子树；不递归，关键字多长都不会栈溢出。</p>
+     * <p>通知的aSearchText是一个复用的StringBuilder，在回调中就要取出内容。续取标记是DAT数组下标，只对同一个DAT和同一个aPrefix有效，
+     * aMaxDepth可以每页不同。</p>
+     * @param aPrefix 前缀，不支持空串
+     * @param aToken 第一页用<code>COMPLETION_START</code>，之后用上一页的返回值
+     * @param aLimit 本页最多通知的个数
+     * @param aMaxDepth 前缀之后最多再补全几个字符，不限制用Integer.MAX_VALUE
+     * @param aHit 回调，返回false也会停下来，返回值可以用来从停下处继续
+     * @return 续取标记，<code>COMPLETION_END</code>表示已经全部通知完了
+     */
+    public int complete(CharSequence aPrefix, int aToken, int aLimit, int aMaxDepth, Hit<T> aHit) {
+        int prefixLength = aPrefix.length();
+        if (aToken == COMPLETION_END || aLimit <= 0 || prefixLength == 0) {
+            return aLimit <= 0 ? aToken : COMPLETION_END;
+        }
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
+        int prefixNode = 0;
+        for (int i = 0, datArrayLen = checkArray.length; i < prefixLength; ++i) {
+            int index = baseArray[ prefixNode ] + aPrefix.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != prefixNode) {
+                return COMPLETION_END;
             }
-            @SuppressWarnings("unchecked")
-            LinkedList<Integer> [] trie = new LinkedList [ datArrayLength ];
-            for (int i = 1; i < datArrayLength; ++i) {//从1开始，0是虚根
-                DoubleArrayTrieNode<T> parentDatNode = datArray[ i ];
-                if (parentDatNode != null) {
-                    //其实就是根据mCheck找到父亲节点建立父子关系
-                    int parentIndex = parentDatNode.mCheck;
-                    LinkedList<Integer> childrenOfParentNode = trie[ parentIndex ];
-                    if (childrenOfParentNode == null) {
-                        childrenOfParentNode = new LinkedList<Integer>();
-                        trie[ parentIndex ] = childrenOfParentNode;
-                    }
-                    childrenOfParentNode.add( i );
-                }
+            prefixNode = index;
+        }
+        StringBuilder keyCharBuffer = new StringBuilder( prefixLength + 16 ).append( aPrefix );
+        if (aToken == COMPLETION_START) {
+            T prefixValue = dat.getValue( prefixNode );
+            if (prefixValue != null && (!aHit.hit( keyCharBuffer, 0, prefixLength, prefixValue ) || aLimit == 1)) {
+                return prefixNode;
             }
-            LinkedList<Integer> indexQueue = new LinkedList<Integer>();
-            indexQueue.addLast( 0 );
-            while (!indexQueue.isEmpty()) {
-                Integer parentIndex = indexQueue.removeFirst();
-                LinkedList<Integer> childrenIndexesList = trie[ parentIndex ];
-                int [] childrenIndexes = new int [ childrenIndexesList.size() ];
-                int from = 0;
-                for (Iterator<Integer> it = childrenIndexesList.iterator(); it.hasNext();) {
-                    Integer nextChildIndex = it.next();
-                    if (trie[ nextChildIndex ] != null) {
-                        indexQueue.addLast( nextChildIndex );
-                    }
-                    childrenIndexes[ from++ ] = nextChildIndex;
-                    it.remove();//fast GC it
-                }
-                //建立Trie的父子关系
-                prefixTrieArray[ parentIndex ].mChildrenIndexes = childrenIndexes;
+            return DoubleArrayTriePrefixMatcher.completeAfter( dat, prefixNode, prefixNode, keyCharBuffer, 0, prefixValue != null ? aLimit - 1 : aLimit, aMaxDepth, aHit );
+        }
+        //从续取标记沿check上溯到前缀节点，恢复出它的关键字串
+        int tokenDepth = 0;
+        for (int node = aToken; node != prefixNode; node = checkArray[ node ]) {
+            if (node <= 0 || node >= checkArray.length || checkArray[ node ] == DoubleArrayTrie.EMPTY_CHECK) {
+                throw new Error( "续取标记同前缀" + aPrefix + "不匹配: " + aToken );
             }
-            this.mPrefixTrieArray = prefixTrieArray;
+            ++tokenDepth;
         }
-        return this.mPrefixTrieArray;
+        keyCharBuffer.setLength( prefixLength + tokenDepth );
+        for (int node = aToken, i = prefixLength + tokenDepth - 1; node != prefixNode; node = checkArray[ node ], --i) {
+            keyCharBuffer.setCharAt( i, dat.getChar( node ) );
+        }
+        return DoubleArrayTriePrefixMatcher.completeAfter( dat, prefixNode, aToken, keyCharBuffer, tokenDepth, aLimit, aMaxDepth, aHit );
+    }
+
+    /**
+     * 生成带权重的Top-K输入提示，aScorer给出每个数据的权重，生成时一次性算好，参见<code>DoubleArrayTrieTopKCompleter</code>。
+     * 每次调用都重新生成，应该保存起来复用
+     */
+    public DoubleArrayTrieTopKCompleter<T> newTopKCompleter(ToDoubleFunction<? super T> aScorer) {
+        return new DoubleArrayTrieTopKCompleter<T>( this.mOwnerDat, aScorer );
     }
 
     /**
@@ -359,37 +388,50 @@ public final class DoubleArrayTriePrefixMatcher<T> {
         return this.mOwnerDat;
     }
 
-    static final class PrefixTrieNode<T> {
-        //各个儿子在DAT数组中的下标,形成一棵完整的Trie树结构,目的是进行快速的层层遍历
-        int [] mChildrenIndexes;
-
-        PrefixTrieNode() {
-        }
-
-        boolean prefixAfterMatch(DoubleArrayTrieNode<T> [] aDatArray, PrefixTrieNode<T> [] aPrefixArray, StringBuilder aKeyCharBuffer, Hit<T> aHit) {
-            int [] childrenIndexes = this.mChildrenIndexes;
-            int keyCharLength = aKeyCharBuffer.length();
-            int childKeyCharLength = keyCharLength + 1;
-            for (int i = 0, childCount = childrenIndexes.length; i < childCount; ++i) {
-                int nextChildNodeIndex = childrenIndexes[ i ];
-                DoubleArrayTrieNode<T> nextChildDatNode = aDatArray[ nextChildNodeIndex ];
-                PrefixTrieNode<T> nextChildPrefixNode = aPrefixArray[ nextChildNodeIndex ];
-
-                char cc = aDatArray[ nextChildNodeIndex ].getChar( aDatArray, nextChildNodeIndex );
-                aKeyCharBuffer.append( cc );
-                if (nextChildDatNode.mValue != null) {
-                    if (!aHit.hit( aKeyCharBuffer, 0, childKeyCharLength, nextChildDatNode.mValue )) {
-                        return false;
+    /**
+     * 从aFromNode之后按字典序(先序)继续通知aRootNode的子孙数据，不递归：往下走第一个儿子，走不下去就沿check上溯找下一个兄弟，
+     * 兄弟在父节点的儿子区间中二分查找定位，因此任意节点都可以作为续取的起点，不需要保存遍历栈。
+     * aKeyCharBuffer是aFromNode对应的关键字串，aFromDepth是aFromNode在aRootNode之下的深度
+     * @return 通知了aLimit个或者aHit返回false时返回最后通知的节点，子孙都通知完了返回COMPLETION_END
+     */
+    private static <T> int completeAfter(DoubleArrayTrie<T> aDat, int aRootNode, int aFromNode, StringBuilder aKeyCharBuffer, int aFromDepth, int aLimit, int aMaxDepth, Hit<T> aHit) {
+        ChildIndex childIndex = aDat.getChildIndex();
+        int [] childStartArray = childIndex.mChildStartArray;
+        int [] childArray = childIndex.mChildArray;
+        int [] checkArray = aDat.mCheckArray;
+        int node = aFromNode;
+        int depth = aFromDepth;
+        int hitCount = 0;
+        while (true) {
+            if (depth < aMaxDepth && childStartArray[ node ] != childStartArray[ node + 1 ]) {
+                //先序：第一个儿子
+                node = childArray[ childStartArray[ node ] ];
+                ++depth;
+                aKeyCharBuffer.append( aDat.getChar( node ) );
+            }
+            else {
+                //下一个兄弟，没有就上溯到父节点再找父节点的下一个兄弟
+                while (true) {
+                    if (node == aRootNode) {
+                        return COMPLETION_END;
                     }
-                }
-                if (nextChildPrefixNode.mChildrenIndexes != null) {
-                    if (!nextChildPrefixNode.prefixAfterMatch( aDatArray, aPrefixArray, aKeyCharBuffer, aHit )) {
-                        return false;
+                    int parentNode = checkArray[ node ];
+                    int childEnd = childStartArray[ parentNode + 1 ];
+                    int childPos = Arrays.binarySearch( childArray, childStartArray[ parentNode ], childEnd, node );
+                    aKeyCharBuffer.setLength( aKeyCharBuffer.length() - 1 );
+                    if (childPos + 1 < childEnd) {
+                        node = childArray[ childPos + 1 ];
+                        aKeyCharBuffer.append( aDat.getChar( node ) );
+                        break;
                     }
+                    node = parentNode;
+                    --depth;
                 }
-                aKeyCharBuffer.setLength( keyCharLength );
             }
-            return true;
+            T value = aDat.getValue( node );
+            if (value != null && (!aHit.hit( aKeyCharBuffer, 0, aKeyCharBuffer.length(), value ) || ++hitCount == aLimit)) {
+                return node;
+            }
         }
     }
 }
@@ -0,0 +1,203 @@
+package org.langzhaozhi.dat;
+
+import java.io.File;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * <p>可热替换的DAT注册表：生产环境中词典更新时，在后台线程里重新构造或加载新版本的DAT，并预先构造好
+ * <code>asAhoCorasick()</code>和<code>asPrefixMatcher()</code>，然后再原子地发布出去，这样请求线程永远不会
+ * 碰上延迟构造AC自动机的卡顿。</p>
+ * <p>读者有两种用法：
+ * <ul>
+ * <li><code>get()</code>：直接拿当前版本，只是一次volatile读，最快，适合用完就丢不关心旧版本何时退役的场合；</li>
+ * <li><code>acquire()</code>：拿到一个<code>Lease</code>，用完后<code>close()</code>，旧版本在新版本发布后并且所有租用它的读者都归还后才退役，
+ * 退役时回调构造时指定的aRetireListener，可以在这里释放旧版本相关的资源或者做统计。</li>
+ * </ul>
+ * </p>
+ * <p>所有的重新加载都在同一个后台线程中顺序执行，因此不会有两个版本同时在构造；加载失败时保留当前版本不变，
+ * 失败原因通过<code>reload()</code>返回的CompletableFuture得到。</p>
+ *
+ * @param <T>
+ */
+public final class DoubleArrayTrieRegistry<T> implements AutoCloseable {
+    private final Callable<DoubleArrayTrie<T>> mLoader;
+    private final Consumer<DoubleArrayTrie<T>> mRetireListener;
+    //后台加载和监视都在这一个线程中执行
+    private final ScheduledExecutorService mExecutor;
+    private volatile Version<T> mCurrentVersion;
+    private ScheduledFuture<?> mWatchFuture;
+
+    /**
+     * 同步地加载第一个版本，加载失败直接抛出异常
+     *
+     * @param aLoader 构造或加载DAT，比如调用<code>DoubleArrayTrieMaker::deserializeDoubleArrayTrieFromFile</code>
+     * @param aRetireListener 旧版本退役时回调，可以为null
+     */
+    public DoubleArrayTrieRegistry(Callable<DoubleArrayTrie<T>> aLoader, Consumer<DoubleArrayTrie<T>> aRetireListener) {
+        this.mLoader = aLoader;
+        this.mRetireListener = aRetireListener;
+        this.mExecutor = Executors.newSingleThreadScheduledExecutor( (aRunnable) -> {
+            Thread thread = new Thread( aRunnable, "DoubleArrayTrieRegistry" );
+            thread.setDaemon( true );
+            return thread;
+        } );
+        try {
+            this.mCurrentVersion = new Version<T>( DoubleArrayTrieRegistry.load( aLoader ), aRetireListener );
+        }
+        catch (Exception e) {
+            this.mExecutor.shutdownNow();
+            throw new Error( "加载DAT失败", e );
+        }
+    }
+
+    /**
+     * 从持久化文件加载DAT的注册表，通常再调用<code>watchFile()</code>在文件更新时自动重新加载
+     */
+    public static <T> DoubleArrayTrieRegistry<T> ofFile(File aInputFile, ValueDeserializer<T> aValueDeserializer) {
+        return new DoubleArrayTrieRegistry<T>( () -> DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( aInputFile, aValueDeserializer ), null );
+    }
+
+    /**
+     * 当前版本，只是一次volatile读。返回的DAT的AC自动机和前缀匹配都已经构造好了
+     */
+    public DoubleArrayTrie<T> get() {
+        return this.mCurrentVersion.mDat;
+    }
+
+    /**
+     * 租用当前版本，用完必须<code>close()</code>，建议用try-with-resources
+     */
+    public Lease<T> acquire() {
+        while (true) {
+            Version<T> version = this.mCurrentVersion;
+            if (version.tryAcquire()) {
+                return new Lease<T>( version );
+            }
+            //刚好被替换并且已经退役了，新版本肯定已经发布，重新读一次
+        }
+    }
+
+    /**
+     * 在后台线程中重新加载，加载并预构造完成后原子地发布。加载失败时当前版本保持不变，返回的CompletableFuture异常结束
+     */
+    public CompletableFuture<DoubleArrayTrie<T>> reload() {
+        CompletableFuture<DoubleArrayTrie<T>> future = new CompletableFuture<DoubleArrayTrie<T>>();
+        this.mExecutor.execute( () -> {
+            try {
+                DoubleArrayTrie<T> newDat = DoubleArrayTrieRegistry.load( this.mLoader );
+                this.publish( newDat );
+                future.complete( newDat );
+            }
+            catch (Throwable e) {
+                future.completeExceptionally( e );
+            }
+        } );
+        return future;
+    }
+
+    /**
+     * 每隔aPeriod检查一次文件的修改时间和长度，有变化就在后台重新加载。
+     * 文件最好是先写到临时文件再rename过来，否则有可能读到写了一半的文件，这种情况下加载会失败(校验和不对)并保留当前版本，下次检查时再重试。
+     */
+    public synchronized void watchFile(File aWatchFile, long aPeriod, TimeUnit aTimeUnit) {
+        if (this.mWatchFuture != null) {
+            this.mWatchFuture.cancel( false );
+        }
+        long [] lastStamp = { aWatchFile.lastModified(), aWatchFile.length() };
+        this.mWatchFuture = this.mExecutor.scheduleWithFixedDelay( () -> {
+            long lastModified = aWatchFile.lastModified();
+            long length = aWatchFile.length();
+            if (lastModified != 0 && (lastModified != lastStamp[ 0 ] || length != lastStamp[ 1 ])) {
+                try {
+                    this.publish( DoubleArrayTrieRegistry.load( this.mLoader ) );
+                    lastStamp[ 0 ] = lastModified;
+                    lastStamp[ 1 ] = length;
+                }
+                catch (Throwable e) {
+                    //保留当前版本，下次检查时重试。异常不能抛出去，否则定时任务就被取消了
+                }
+            }
+        }, aPeriod, aPeriod, aTimeUnit );
+    }
+
+    /**
+     * 停止监视和后台线程，当前版本仍然可用
+     */
+    @Override
+    public void close() {
+        this.mExecutor.shutdownNow();
+    }
+
+    private void publish(DoubleArrayTrie<T> aNewDat) {
+        //只在后台线程中调用，因此不会并发发布
+        Version<T> oldVersion = this.mCurrentVersion;
+        this.mCurrentVersion = new Version<T>( aNewDat, this.mRetireListener );
+        //释放注册表自己持有的那一份，读者都归还后就退役
+        oldVersion.release();
+    }
+
+    private static <T> DoubleArrayTrie<T> load(Callable<DoubleArrayTrie<T>> aLoader) throws Exception {
+        //预先构造好，之后通过volatile发布，读者看到的肯定是构造好的
+        return aLoader.call().warmUp();
+    }
+
+    /**
+     * 租用的版本，<code>close()</code>后就不能再使用此DAT
+     */
+    public static final class Lease<T> implements AutoCloseable {
+        private final Version<T> mVersion;
+        private boolean mClosed;
+
+        Lease(Version<T> aVersion) {
+            this.mVersion = aVersion;
+        }
+
+        public DoubleArrayTrie<T> get() {
+            return this.mVersion.mDat;
+        }
+
+        @Override
+        public void close() {
+            if (!this.mClosed) {
+                this.mClosed = true;
+                this.mVersion.release();
+            }
+        }
+    }
+
+    /**
+     * 一个版本的DAT及其租用计数：注册表自己持有1，每个读者持有1，计数降到0就退役，退役后不能再租用
+     */
+    private static final class Version<T> {
+        private final DoubleArrayTrie<T> mDat;
+        private final Consumer<DoubleArrayTrie<T>> mRetireListener;
+        private final AtomicInteger mRefCount = new AtomicInteger( 1 );
+
+        Version(DoubleArrayTrie<T> aDat, Consumer<DoubleArrayTrie<T>> aRetireListener) {
+            this.mDat = aDat;
+            this.mRetireListener = aRetireListener;
+        }
+
+        boolean tryAcquire() {
+            for (int refCount = this.mRefCount.get(); refCount > 0; refCount = this.mRefCount.get()) {
+                if (this.mRefCount.compareAndSet( refCount, refCount + 1 )) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release() {
+            if (this.mRefCount.decrementAndGet() == 0 && this.mRetireListener != null) {
+                this.mRetireListener.accept( this.mDat );
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package org.langzhaozhi.dat;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * <p>流式DAT构造器：对已经按字典序排好序的数据只顺序读一遍，内存中只保留当前关键字路径上的节点(前沿)，
+ * 不需要<code>DoubleArrayTrieMaker::makeDoubleArrayTrie</code>那样把所有数据和每个节点的ProccessingNode都放在内存中。</p>
+ * <p>由于数据是排好序的，一旦下一个关键字同当前路径在某一层分叉，那么分叉点以下的节点的所有子孙都已经到齐了，就可以自底向上地完成：
+ * 一个节点完成时为它的儿子们选定base，把儿子的base和value直接写进输出数组。儿子的check就是本节点的下标，但本节点的下标要等到父节点完成时才知道，
+ * 因此每个完成的节点暂时记住自己儿子的字符，等父节点为它选定位置后再回填儿子的check。
+ * value在节点完成时就序列化顺序写到临时文件中，因此任何时候都不会有全部的value在内存中。</p>
+ * <p>最终输出的是版本2的列式文件，参见<code>DoubleArrayTrieFile</code>，
+ * 同<code>DoubleArrayTrieMaker::serializeDoubleArrayTrieToFile</code>的结果一样可以加载或内存映象，
+ * 上亿个关键字的value数据块超过2G也没关系，映象时是分段的。</p>
+ */
+final class DoubleArrayTrieStreamMaker<T> {
+    private final ValueSerializer<T> mValueSerializer;
+    private final DataOutputStream mBlobWriter;
+    private final DataOutputStream mValueOffsetWriter;
+    private long mBlobLength;
+    private int mValueCount;
+
+    private int [] mBaseArray;
+    private int [] mCheckArray;
+    private int [] mValueIdArray;
+    //被占用的下标，check要等父节点完成时才回填，因此不能用check判断是否被占用
+    private final BitSet mUsedIndexes = new BitSet();
+    //第一个空位下标，寻找base的时候就从这里开始
+    private int mFirstEmptyIndex = 1;
+
+    //当前关键字的路径，下标就是深度，0是虚根；mDepth是当前关键字的长度
+    private final ArrayList<PathNode<T>> mPath = new ArrayList<PathNode<T>>();
+    private int mDepth;
+
+    private DoubleArrayTrieStreamMaker(ValueSerializer<T> aValueSerializer, DataOutputStream aBlobWriter, DataOutputStream aValueOffsetWriter) {
+        this.mValueSerializer = aValueSerializer;
+        this.mBlobWriter = aBlobWriter;
+        this.mValueOffsetWriter = aValueOffsetWriter;
+        int initLength = 1024;
+        this.mBaseArray = new int [ initLength ];
+        this.mCheckArray = new int [ initLength ];
+        this.mValueIdArray = new int [ initLength ];
+        Arrays.fill( this.mCheckArray, DoubleArrayTrie.EMPTY_CHECK );
+        Arrays.fill( this.mValueIdArray, DoubleArrayTrieFile.NO_VALUE_ID );
+        this.mUsedIndexes.set( 0 );//虚根
+        this.mPath.add( new PathNode<T>( '\0' ) );
+    }
+
+    static <T> void make(Iterator<PairString<T>> aSortedPairs, File aOutputFile, ValueSerializer<T> aValueSerializer) throws IOException {
+        File tmpDir = aOutputFile.getAbsoluteFile().getParentFile();
+        File blobFile = File.createTempFile( "datblob", ".tmp", tmpDir );
+        File valueOffsetFile = File.createTempFile( "datoffset", ".tmp", tmpDir );
+        try {
+            DoubleArrayTrieStreamMaker<T> maker;
+            try (DataOutputStream blobWriter = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( blobFile ), 1024 << 6 ) ); DataOutputStream valueOffsetWriter = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( valueOffsetFile ), 1024 << 6 ) )) {
+                maker = new DoubleArrayTrieStreamMaker<T>( aValueSerializer, blobWriter, valueOffsetWriter );
+                while (aSortedPairs.hasNext()) {
+                    PairString<T> nextPair = aSortedPairs.next();
+                    maker.add( nextPair.mKey, nextPair.mValue );
+                }
+                maker.finish();
+            }
+            DoubleArrayTrieFile.write( maker.mBaseArray, maker.mCheckArray, maker.mValueIdArray, maker.mUsedIndexes.length(), maker.mValueCount, blobFile, valueOffsetFile, maker.mBlobLength, aOutputFile );
+        }
+        finally {
+            blobFile.delete();
+            valueOffsetFile.delete();
+        }
+    }
+
+    private void add(CharSequence aKey, T aValue) throws IOException {
+        ArrayList<PathNode<T>> path = this.mPath;
+        int depth = this.mDepth;
+        int keyCharCount = aKey.length();
+        //同当前路径的公共前缀长度
+        int commonDepth = 0;
+        while (commonDepth < depth && commonDepth < keyCharCount && path.get( commonDepth + 1 ).mChar == aKey.charAt( commonDepth )) {
+            ++commonDepth;
+        }
+        if (commonDepth < depth && (commonDepth == keyCharCount || aKey.charAt( commonDepth ) < path.get( commonDepth + 1 ).mChar)) {
+            throw new Error( "流式构造DAT的数据必须按字典序排好序:" + aKey );
+        }
+        //分叉点以下的节点都已经到齐了，自底向上完成
+        for (int i = depth; i > commonDepth; --i) {
+            path.get( i - 1 ).mDoneChildren.add( this.complete( path.get( i ) ) );
+        }
+        for (int i = commonDepth + 1; i <= keyCharCount; ++i) {
+            if (i < path.size()) {
+                path.get( i ).mChar = aKey.charAt( i - 1 );
+            }
+            else {
+                path.add( new PathNode<T>( aKey.charAt( i - 1 ) ) );
+            }
+        }
+        //相同的关键字后面的覆盖前面的，同makeDoubleArrayTrie一样
+        path.get( keyCharCount ).mValue = aValue;
+        this.mDepth = keyCharCount;
+    }
+
+    private void finish() throws IOException {
+        ArrayList<PathNode<T>> path = this.mPath;
+        for (int i = this.mDepth; i > 0; --i) {
+            path.get( i - 1 ).mDoneChildren.add( this.complete( path.get( i ) ) );
+        }
+        //最后完成虚根，虚根的下标是0，它的儿子的check就是0
+        DoneNode rootNode = this.complete( path.get( 0 ) );
+        this.mBaseArray[ 0 ] = rootNode.mBase;
+        this.mCheckArray[ 0 ] = 0;
+        this.mValueIdArray[ 0 ] = rootNode.mValueId;
+        this.fillChildCheck( rootNode, 0 );
+        this.mValueOffsetWriter.flush();
+        this.mBlobWriter.flush();
+    }
+
+    private DoneNode complete(PathNode<T> aPathNode) throws IOException {
+        DoneNode doneNode = new DoneNode( aPathNode.mChar );
+        if (aPathNode.mValue != null) {
+            doneNode.mValueId = this.mValueCount++;
+            this.mValueOffsetWriter.writeLong( this.mBlobLength );
+            this.mBlobLength += DoubleArrayTrieFile.writeValue( this.mBlobWriter, this.mValueSerializer.serialize( aPathNode.mValue ) );
+        }
+        ArrayList<DoneNode> doneChildren = aPathNode.mDoneChildren;
+        if (!doneChildren.isEmpty()) {
+            int childCount = doneChildren.size();
+            char [] childChars = new char [ childCount ];
+            for (int i = 0; i < childCount; ++i) {
+                childChars[ i ] = doneChildren.get( i ).mChar;
+            }
+            int base = this.findBase( childChars );
+            for (int i = 0; i < childCount; ++i) {
+                DoneNode childNode = doneChildren.get( i );
+                int childIndex = base + childNode.mChar;
+                this.mBaseArray[ childIndex ] = childNode.mBase;
+                this.mValueIdArray[ childIndex ] = childNode.mValueId;
+                //儿子的下标现在才确定，回填孙子的check
+                this.fillChildCheck( childNode, childIndex );
+            }
+            doneNode.mBase = base;
+            doneNode.mChildChars = childChars;
+        }
+        //路径节点复用给下一个关键字
+        aPathNode.mValue = null;
+        doneChildren.clear();
+        return doneNode;
+    }
+
+    private void fillChildCheck(DoneNode aDoneNode, int aIndex) {
+        char [] childChars = aDoneNode.mChildChars;
+        if (childChars != null) {
+            for (char nextChildChar : childChars) {
+                this.mCheckArray[ aDoneNode.mBase + nextChildChar ] = aIndex;
+            }
+        }
+    }
+
+    private int findBase(char [] aChildChars) {
+        //儿子字符是升序的，第一个儿子只可能放在空位上，冲突时直接跳到下一个空位
+        BitSet usedIndexes = this.mUsedIndexes;
+        int firstChildChar = aChildChars[ 0 ];
+        int lastChildChar = aChildChars[ aChildChars.length - 1 ];
+        int emptyIndex = usedIndexes.nextClearBit( this.mFirstEmptyIndex );
+        this.mFirstEmptyIndex = emptyIndex;
+        int base = emptyIndex - firstChildChar;
+        for (int i = 1; i < aChildChars.length; ++i) {
+            if (usedIndexes.get( base + aChildChars[ i ] )) {
+                emptyIndex = usedIndexes.nextClearBit( emptyIndex + 1 );
+                base = emptyIndex - firstChildChar;
+                i = 0;
+            }
+        }
+        this.ensureLength( base + lastChildChar + 1 );
+        for (char nextChildChar : aChildChars) {
+            usedIndexes.set( base + nextChildChar );
+        }
+        return base;
+    }
+
+    private void ensureLength(int aLength) {
+        int oldLength = this.mBaseArray.length;
+        if (oldLength < aLength) {
+            int newLength = Math.max( aLength + 1024, oldLength + (oldLength >> 1) );
+            this.mBaseArray = Arrays.copyOf( this.mBaseArray, newLength );
+            this.mCheckArray = Arrays.copyOf( this.mCheckArray, newLength );
+            this.mValueIdArray = Arrays.copyOf( this.mValueIdArray, newLength );
+            Arrays.fill( this.mCheckArray, oldLength, newLength, DoubleArrayTrie.EMPTY_CHECK );
+            Arrays.fill( this.mValueIdArray, oldLength, newLength, DoubleArrayTrieFile.NO_VALUE_ID );
+        }
+    }
+
+    /**
+     * 当前路径上还没有完成的节点，mDoneChildren是它已经完成的儿子，按字符升序
+     */
+    private static final class PathNode<T> {
+        private char mChar;
+        private T mValue;
+        private final ArrayList<DoneNode> mDoneChildren = new ArrayList<DoneNode>();
+
+        PathNode(char aChar) {
+            this.mChar = aChar;
+        }
+    }
+
+    /**
+     * 已经完成的节点，自己的下标要等父节点完成时才确定，确定后回填mChildChars这些儿子的check
+     */
+    private static final class DoneNode {
+        private final char mChar;
+        private int mBase = Integer.MIN_VALUE;//叶子节点的mBase用Integer.MIN_VALUE,同DoubleArrayTrieMaker
+        private int mValueId = DoubleArrayTrieFile.NO_VALUE_ID;
+        private char [] mChildChars;
+
+        DoneNode(char aChar) {
+            this.mChar = aChar;
+        }
+    }
+}
@@ -0,0 +1,146 @@
+package org.langzhaozhi.dat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+
+/**
+ * <p>流式AC多模式串匹配，通过<code>DoubleArrayTrieAhoCorasick::newStreamMatcher</code>来生成</p>
+ * <p><code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>要求整个文本是一个CharSequence，每次都从虚根开始。
+ * 对几个G的日志流或者网络数据，这里可以把文本分成任意大小的块一块一块地喂进来，块与块之间保留自动机的当前状态，
+ * 因此跨越块边界的关键字照样能匹配到，命中位置是从流开头算起的绝对位置(long)。结果及其先后顺序同把整个流拼起来一次
+ * <code>matchCaseSensitive</code>完全一样，只提供大小写敏感的匹配。</p>
+ * <p>有状态的对象，非线程安全的，每个流用自己的匹配器；生成它的<code>DoubleArrayTrieAhoCorasick</code>则可以被任意多个匹配器共享。</p>
+ *
+ * @see DoubleArrayTrieAhoCorasick
+ */
+public final class DoubleArrayTrieStreamMatcher<T> {
+    private final DoubleArrayTrieAhoCorasick<T> mAhoCorasick;
+    private final StreamHit<T> mStreamHit;
+    //当前自动机状态，也就是DAT数组下标
+    private int mCurrentState;
+    //已经喂进来的字符个数，也就是下一个字符在流中的绝对位置
+    private long mPosition;
+    //aStreamHit返回了false，之后喂进来的都忽略
+    private boolean mStopped;
+
+    DoubleArrayTrieStreamMatcher(DoubleArrayTrieAhoCorasick<T> aAhoCorasick, StreamHit<T> aStreamHit) {
+        this.mAhoCorasick = aAhoCorasick;
+        this.mStreamHit = aStreamHit;
+    }
+
+    /**
+     * 喂进一块字符
+     * @return 返回false表示StreamHit已经要求停止匹配，之后再喂进来的都忽略
+     */
+    public boolean feed(char [] aChars, int aOffset, int aLength) {
+        if (this.mStopped) {
+            return false;
+        }
+        DoubleArrayTrieAhoCorasick<T> ac = this.mAhoCorasick;
+        Object [] valueArray = ac.asDoubleArrayTrie().mValueArray;
+        int [] outputLinkArray = ac.mOutputLinkArray;
+        int currentState = this.mCurrentState;
+        long position = this.mPosition;
+        for (int i = aOffset, iend = aOffset + aLength; i < iend; ++i, ++position) {
+            currentState = ac.nextTransitionState( currentState, aChars[ i ] );
+            if ((valueArray[ currentState ] != null || outputLinkArray[ currentState ] != 0) && !this.tryHit( currentState, position )) {
+                this.mStopped = true;
+                break;
+            }
+        }
+        this.mCurrentState = currentState;
+        this.mPosition = position + (this.mStopped ? 1 : 0);
+        return !this.mStopped;
+    }
+
+    /**
+     * 喂进aCharBuffer中剩余的字符，喂完后aCharBuffer的position前进到limit
+     */
+    public boolean feed(CharBuffer aCharBuffer) {
+        int length = aCharBuffer.remaining();
+        if (aCharBuffer.hasArray()) {
+            boolean whetherContinueHit = this.feed( aCharBuffer.array(), aCharBuffer.arrayOffset() + aCharBuffer.position(), length );
+            aCharBuffer.position( aCharBuffer.limit() );
+            return whetherContinueHit;
+        }
+        else {
+            //直接缓冲区，分段拷贝出来
+            char [] chunk = new char [ Math.min( length, 1024 << 3 ) ];
+            boolean whetherContinueHit = true;
+            while (whetherContinueHit && aCharBuffer.hasRemaining()) {
+                int chunkLength = Math.min( chunk.length, aCharBuffer.remaining() );
+                aCharBuffer.get( chunk, 0, chunkLength );
+                whetherContinueHit = this.feed( chunk, 0, chunkLength );
+            }
+            return whetherContinueHit;
+        }
+    }
+
+    /**
+     * 喂进一块字符
+     */
+    public boolean feed(CharSequence aChunk) {
+        if (this.mStopped) {
+            return false;
+        }
+        DoubleArrayTrieAhoCorasick<T> ac = this.mAhoCorasick;
+        Object [] valueArray = ac.asDoubleArrayTrie().mValueArray;
+        int [] outputLinkArray = ac.mOutputLinkArray;
+        int currentState = this.mCurrentState;
+        long position = this.mPosition;
+        for (int i = 0, count = aChunk.length(); i < count; ++i, ++position) {
+            currentState = ac.nextTransitionState( currentState, aChunk.charAt( i ) );
+            if ((valueArray[ currentState ] != null || outputLinkArray[ currentState ] != 0) && !this.tryHit( currentState, position )) {
+                this.mStopped = true;
+                break;
+            }
+        }
+        this.mCurrentState = currentState;
+        this.mPosition = position + (this.mStopped ? 1 : 0);
+        return !this.mStopped;
+    }
+
+    /**
+     * 从aReader一直读到结束或者StreamHit要求停止，aReader不会被关闭
+     * @return 返回false表示StreamHit要求停止了
+     */
+    public boolean feed(Reader aReader) throws IOException {
+        char [] chunk = new char [ 1024 << 3 ];
+        boolean whetherContinueHit = !this.mStopped;
+        for (int readLength; whetherContinueHit && (readLength = aReader.read( chunk )) >= 0;) {
+            whetherContinueHit = this.feed( chunk, 0, readLength );
+        }
+        return whetherContinueHit;
+    }
+
+    /**
+     * 已经喂进来的字符个数，也就是下一个字符在流中的绝对位置
+     */
+    public long getPosition() {
+        return this.mPosition;
+    }
+
+    /**
+     * 回到虚根和位置0，开始匹配一个新的流
+     */
+    public void reset() {
+        this.mCurrentState = 0;
+        this.mPosition = 0;
+        this.mStopped = false;
+    }
+
+    private boolean tryHit(int aState, long aPosition) {
+        DoubleArrayTrieAhoCorasick<T> ac = this.mAhoCorasick;
+        DoubleArrayTrie<T> dat = ac.asDoubleArrayTrie();
+        int [] depthArray = ac.mDepthArray;
+        int [] outputLinkArray = ac.mOutputLinkArray;
+        //自己不是数据状态就直接从输出链开始
+        for (int hitState = dat.mValueArray[ aState ] != null ? aState : outputLinkArray[ aState ]; hitState != 0; hitState = outputLinkArray[ hitState ]) {
+            if (!this.mStreamHit.hit( aPosition - depthArray[ hitState ] + 1, aPosition + 1, dat.getValue( hitState ) )) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
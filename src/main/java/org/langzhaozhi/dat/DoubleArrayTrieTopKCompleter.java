@@ -0,0 +1,233 @@
+package org.langzhaozhi.dat;
+
+import java.util.Arrays;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * <p>带权重的Top-K输入提示，通过<code>DoubleArrayTriePrefixMatcher::newTopKCompleter</code>生成：
+ * 对关键字以某前缀开头的所有数据，只按权重从高到低通知最高的K个，而不是像<code>prefixAfterMatchCaseSensitive</code>那样遍历整个子树再自己排序。</p>
+ * <p>生成时为每个DAT节点预先计算好自己的权重和子树中的最大权重，并把每个节点的儿子按子树最大权重降序排好。
+ * 查询时从前缀节点开始最佳优先搜索：优先队列中的子树项以子树最大权重为优先级，弹出一个子树项时只压入它自己的数据项、
+ * 最好的儿子和下一个兄弟，因此取K个大约是O(K×关键字长度×logK)，同子树大小和分支数都无关。</p>
+ * <p>每个DAT数组位置额外占两个double和一个int。不变对象，可以任意多线程并发访问；DAT本身不变，权重也就不变，要改权重就重新生成。</p>
+ *
+ * @see DoubleArrayTriePrefixMatcher
+ */
+public final class DoubleArrayTrieTopKCompleter<T> {
+    private final DoubleArrayTrie<T> mOwnerDat;
+    //每个节点自己的权重，不是数据节点的为负无穷
+    private final double [] mScoreArray;
+    //每个节点的子树(包括自己)中的最大权重
+    private final double [] mSubtreeMaxArray;
+    //同ChildIndex.mChildArray一样按父节点分区间，只是每个区间内按子树最大权重降序
+    private final int [] mRankedChildArray;
+    private final int [] mChildStartArray;
+
+    DoubleArrayTrieTopKCompleter(DoubleArrayTrie<T> aOwnerDat, ToDoubleFunction<? super T> aScorer) {
+        this.mOwnerDat = aOwnerDat;
+        ChildIndex childIndex = aOwnerDat.getChildIndex();
+        int [] childStartArray = childIndex.mChildStartArray;
+        int [] childArray = childIndex.mChildArray;
+        int datArrayLength = aOwnerDat.mCheckArray.length;
+        double [] scoreArray = new double [ datArrayLength ];
+        double [] subtreeMaxArray = new double [ datArrayLength ];
+        for (int i = 0; i < datArrayLength; ++i) {
+            scoreArray[ i ] = aOwnerDat.mValueArray[ i ] != null ? aScorer.applyAsDouble( aOwnerDat.getValue( i ) ) : Double.NEGATIVE_INFINITY;
+            subtreeMaxArray[ i ] = scoreArray[ i ];
+        }
+        //bfs序倒过来就是儿子总在父节点之前，一趟就把子树最大权重归并上去
+        int [] bfsOrder = new int [ childArray.length + 1 ];
+        int bfsLength = 0;
+        bfsOrder[ bfsLength++ ] = 0;
+        for (int head = 0; head < bfsLength; ++head) {
+            int parentNode = bfsOrder[ head ];
+            for (int i = childStartArray[ parentNode ], iend = childStartArray[ parentNode + 1 ]; i < iend; ++i) {
+                bfsOrder[ bfsLength++ ] = childArray[ i ];
+            }
+        }
+        int [] checkArray = aOwnerDat.mCheckArray;
+        for (int i = bfsLength - 1; i > 0; --i) {
+            int node = bfsOrder[ i ];
+            int parentNode = checkArray[ node ];
+            if (subtreeMaxArray[ node ] > subtreeMaxArray[ parentNode ]) {
+                subtreeMaxArray[ parentNode ] = subtreeMaxArray[ node ];
+            }
+        }
+        int [] rankedChildArray = childArray.clone();
+        int [] mergeBuffer = new int [ rankedChildArray.length ];
+        for (int i = 0; i < datArrayLength; ++i) {
+            DoubleArrayTrieTopKCompleter.sortBySubtreeMax( rankedChildArray, childStartArray[ i ], childStartArray[ i + 1 ], subtreeMaxArray, mergeBuffer );
+        }
+        this.mScoreArray = scoreArray;
+        this.mSubtreeMaxArray = subtreeMaxArray;
+        this.mRankedChildArray = rankedChildArray;
+        this.mChildStartArray = childStartArray;
+    }
+
+    /**
+     * 按权重从高到低通知关键字以aPrefix开头的数据中权重最高的aK个(大小写敏感)，aPrefix本身是关键字的话也参与排名，权重相同时先后不确定
+     * @param aPrefix 前缀，空串就是全体数据的Top-K
+     * @param aK 最多通知的个数
+     * @param aHit 回调，返回false提前结束
+     * @return 实际通知的个数
+     */
+    public int topK(CharSequence aPrefix, int aK, Hit<T> aHit) {
+        DoubleArrayTrie<T> dat = this.mOwnerDat;
+        int [] baseArray = dat.mBaseArray;
+        int [] checkArray = dat.mCheckArray;
+        int prefixNode = 0;
+        for (int i = 0, prefixLength = aPrefix.length(), datArrayLen = checkArray.length; i < prefixLength; ++i) {
+            int index = baseArray[ prefixNode ] + aPrefix.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkArray[ index ] != prefixNode) {
+                return 0;
+            }
+            prefixNode = index;
+        }
+        if (aK <= 0) {
+            return 0;
+        }
+        double [] scoreArray = this.mScoreArray;
+        double [] subtreeMaxArray = this.mSubtreeMaxArray;
+        int [] rankedChildArray = this.mRankedChildArray;
+        int [] childStartArray = this.mChildStartArray;
+        //每弹出一个子树项最多压入3项，弹出K个数据项之前最多弹出K×关键字长度个子树项，一般远远用不满，不够时扩容
+        ScoreHeap heap = new ScoreHeap( Math.max( 16, aK << 2 ) );
+        if (dat.mValueArray[ prefixNode ] != null) {
+            heap.push( scoreArray[ prefixNode ], ~prefixNode );
+        }
+        if (childStartArray[ prefixNode ] != childStartArray[ prefixNode + 1 ]) {
+            int firstPos = childStartArray[ prefixNode ];
+            heap.push( subtreeMaxArray[ rankedChildArray[ firstPos ] ], firstPos );
+        }
+        StringBuilder keyCharBuffer = new StringBuilder( aPrefix.length() + 16 );
+        int hitCount = 0;
+        while (hitCount < aK && heap.mSize > 0) {
+            int code = heap.pop();
+            if (code < 0) {
+                //数据项：从节点沿check上溯到前缀节点恢复出关键字串
+                int node = ~code;
+                int depth = 0;
+                for (int n = node; n != prefixNode; n = checkArray[ n ]) {
+                    ++depth;
+                }
+                keyCharBuffer.setLength( 0 );
+                keyCharBuffer.append( aPrefix ).setLength( aPrefix.length() + depth );
+                for (int n = node, i = keyCharBuffer.length() - 1; n != prefixNode; n = checkArray[ n ], --i) {
+                    keyCharBuffer.setCharAt( i, dat.getChar( n ) );
+                }
+                ++hitCount;
+                if (!aHit.hit( keyCharBuffer, 0, keyCharBuffer.length(), dat.getValue( node ) )) {
+                    break;
+                }
+            }
+            else {
+                //子树项：下一个兄弟、自己的数据项、最好的儿子
+                int node = rankedChildArray[ code ];
+                if (code + 1 < childStartArray[ checkArray[ node ] + 1 ]) {
+                    heap.push( subtreeMaxArray[ rankedChildArray[ code + 1 ] ], code + 1 );
+                }
+                if (dat.mValueArray[ node ] != null) {
+                    heap.push( scoreArray[ node ], ~node );
+                }
+                if (childStartArray[ node ] != childStartArray[ node + 1 ]) {
+                    int firstPos = childStartArray[ node ];
+                    heap.push( subtreeMaxArray[ rankedChildArray[ firstPos ] ], firstPos );
+                }
+            }
+        }
+        return hitCount;
+    }
+
+    /**
+     * 把aArray的[aFrom, aTo)按aKeyArray降序排列，归并排序，稳定，不装箱
+     */
+    private static void sortBySubtreeMax(int [] aArray, int aFrom, int aTo, double [] aKeyArray, int [] aBuffer) {
+        if (aTo - aFrom <= 16) {
+            for (int i = aFrom + 1; i < aTo; ++i) {
+                int node = aArray[ i ];
+                double key = aKeyArray[ node ];
+                int j = i - 1;
+                for (; j >= aFrom && aKeyArray[ aArray[ j ] ] < key; --j) {
+                    aArray[ j + 1 ] = aArray[ j ];
+                }
+                aArray[ j + 1 ] = node;
+            }
+            return;
+        }
+        int middle = (aFrom + aTo) >>> 1;
+        DoubleArrayTrieTopKCompleter.sortBySubtreeMax( aArray, aFrom, middle, aKeyArray, aBuffer );
+        DoubleArrayTrieTopKCompleter.sortBySubtreeMax( aArray, middle, aTo, aKeyArray, aBuffer );
+        System.arraycopy( aArray, aFrom, aBuffer, aFrom, aTo - aFrom );
+        for (int i = aFrom, left = aFrom, right = middle; i < aTo; ++i) {
+            if (right >= aTo || (left < middle && aKeyArray[ aBuffer[ left ] ] >= aKeyArray[ aBuffer[ right ] ])) {
+                aArray[ i ] = aBuffer[ left++ ];
+            }
+            else {
+                aArray[ i ] = aBuffer[ right++ ];
+            }
+        }
+    }
+
+    /**
+     * 以double为优先级的最大堆，元素是int编码：非负是子树项(儿子区间中的位置)，负数是数据项(~节点下标)
+     */
+    private static final class ScoreHeap {
+        private double [] mPriorityArray;
+        private int [] mCodeArray;
+        private int mSize;
+
+        ScoreHeap(int aCapacity) {
+            this.mPriorityArray = new double [ aCapacity ];
+            this.mCodeArray = new int [ aCapacity ];
+        }
+
+        void push(double aPriority, int aCode) {
+            if (this.mSize == this.mCodeArray.length) {
+                this.mPriorityArray = Arrays.copyOf( this.mPriorityArray, this.mSize << 1 );
+                this.mCodeArray = Arrays.copyOf( this.mCodeArray, this.mSize << 1 );
+            }
+            double [] priorityArray = this.mPriorityArray;
+            int [] codeArray = this.mCodeArray;
+            int i = this.mSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (priorityArray[ parent ] >= aPriority) {
+                    break;
+                }
+                priorityArray[ i ] = priorityArray[ parent ];
+                codeArray[ i ] = codeArray[ parent ];
+                i = parent;
+            }
+            priorityArray[ i ] = aPriority;
+            codeArray[ i ] = aCode;
+        }
+
+        int pop() {
+            double [] priorityArray = this.mPriorityArray;
+            int [] codeArray = this.mCodeArray;
+            int topCode = codeArray[ 0 ];
+            int size = --this.mSize;
+            double lastPriority = priorityArray[ size ];
+            int lastCode = codeArray[ size ];
+            int i = 0;
+            while (true) {
+                int child = (i << 1) + 1;
+                if (child >= size) {
+                    break;
+                }
+                if (child + 1 < size && priorityArray[ child + 1 ] > priorityArray[ child ]) {
+                    ++child;
+                }
+                if (priorityArray[ child ] <= lastPriority) {
+                    break;
+                }
+                priorityArray[ i ] = priorityArray[ child ];
+                codeArray[ i ] = codeArray[ child ];
+                i = child;
+            }
+            priorityArray[ i ] = lastPriority;
+            codeArray[ i ] = lastCode;
+            return topCode;
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package org.langzhaozhi.dat;
+
+/**
+ * <p>DAT的按字典序计数索引：每个节点的子树中有多少个关键字，以及子树中最小的那个关键字在全体关键字字典序中的序号。
+ * 同一父节点的儿子按下标升序也就是按字符升序，父节点自己的关键字比所有儿子的都小，因此先序就是字典序(同String::compareTo的UTF-16序一致)。</p>
+ * <p>有了它前缀计数、关键字的序号、按序号取关键字都只沿关键字走一遍，不需要枚举子树。
+ * 只有两个int数组，每个DAT只建立一次(参见<code>DoubleArrayTrie::getKeyRanks</code>)。</p>
+ */
+final class KeyRanks {
+    //节点子树(包括自己)中关键字的个数，空闲位置为0
+    final int [] mSubtreeCountArray;
+    //节点子树中最小关键字的字典序序号，也就是字典序排在整个子树之前的关键字个数
+    final int [] mRankBaseArray;
+
+    private KeyRanks(int [] aSubtreeCountArray, int [] aRankBaseArray) {
+        this.mSubtreeCountArray = aSubtreeCountArray;
+        this.mRankBaseArray = aRankBaseArray;
+    }
+
+    /**
+     * 一趟bfs得到层序，倒过来累加出子树计数，再顺过来由父节点分配各儿子的序号起点，线性时间
+     */
+    static KeyRanks build(int [] aCheckArray, Object [] aValueArray, ChildIndex aChildIndex) {
+        int datArrayLength = aCheckArray.length;
+        int [] childStartArray = aChildIndex.mChildStartArray;
+        int [] childArray = aChildIndex.mChildArray;
+        int [] bfsOrder = new int [ childArray.length + 1 ];
+        int bfsLength = 0;
+        bfsOrder[ bfsLength++ ] = 0;
+        for (int head = 0; head < bfsLength; ++head) {
+            int parentIndex = bfsOrder[ head ];
+            for (int i = childStartArray[ parentIndex ], iend = childStartArray[ parentIndex + 1 ]; i < iend; ++i) {
+                bfsOrder[ bfsLength++ ] = childArray[ i ];
+            }
+        }
+        int [] subtreeCountArray = new int [ datArrayLength ];
+        for (int i = bfsLength - 1; i >= 0; --i) {
+            int index = bfsOrder[ i ];
+            if (aValueArray[ index ] != null) {
+                ++subtreeCountArray[ index ];
+            }
+            if (index != 0) {
+                subtreeCountArray[ aCheckArray[ index ] ] += subtreeCountArray[ index ];
+            }
+        }
+        int [] rankBaseArray = new int [ datArrayLength ];
+        for (int i = 0; i < bfsLength; ++i) {
+            int parentIndex = bfsOrder[ i ];
+            int nextRank = rankBaseArray[ parentIndex ] + (aValueArray[ parentIndex ] != null ? 1 : 0);
+            for (int j = childStartArray[ parentIndex ], jend = childStartArray[ parentIndex + 1 ]; j < jend; ++j) {
+                int childIndex = childArray[ j ];
+                rankBaseArray[ childIndex ] = nextRank;
+                nextRank += subtreeCountArray[ childIndex ];
+            }
+        }
+        return new KeyRanks( subtreeCountArray, rankBaseArray );
+    }
+}
@@ -0,0 +1,44 @@
+package org.langzhaozhi.dat;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * <p>延迟反序列化的value表：value依然以序列化字节的形式留在映象文件中，通过value偏移表定位，
+ * 只有第一次被访问的时候才反序列化并缓存起来，以后再访问直接返回缓存。</p>
+ * <p>DAT的mValueArray中对应位置只放一个共享的占位对象<code>LAZY_VALUE</code>，因此判断是否是数据节点依然只需要判断非空，
+ * 不需要为每个value额外创建任何对象。缓存采用<code>AtomicReferenceArray</code>，通过CAS发布，
+ * 即使多个线程并发地第一次访问同一个value，也保证所有线程看到的是同一个完整构造的对象。</p>
+ */
+final class LazyValueTable<T> {
+    /**
+     * 延迟value的占位对象
+     */
+    static final Object LAZY_VALUE = new Object();
+
+    private final DoubleArrayTrieFile.Sections mSections;
+    private final ValueDeserializer<T> mValueDeserializer;
+    private final AtomicReferenceArray<T> mValueCache;
+
+    LazyValueTable(DoubleArrayTrieFile.Sections aSections, ValueDeserializer<T> aValueDeserializer) {
+        this.mSections = aSections;
+        this.mValueDeserializer = aValueDeserializer;
+        this.mValueCache = new AtomicReferenceArray<T>( aSections.mValueCount );
+    }
+
+    /**
+     * 获取DAT下标 aDatIndex 处的value，第一次访问时才反序列化
+     */
+    T get(int aDatIndex) {
+        int valueId = this.mSections.mValueIdBuffer.get( aDatIndex );
+        AtomicReferenceArray<T> valueCache = this.mValueCache;
+        T value = valueCache.get( valueId );
+        if (value == null) {
+            value = this.mValueDeserializer.deserialize( this.mSections.getValueBytes( valueId ) );
+            if (!valueCache.compareAndSet( valueId, null, value )) {
+                //别的线程抢先反序列化了，用别人的，保证所有线程看到同一个对象
+                value = valueCache.get( valueId );
+            }
+        }
+        return value;
+    }
+}
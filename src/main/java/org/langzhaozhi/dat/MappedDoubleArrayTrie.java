@@ -0,0 +1,330 @@
+package org.langzhaozhi.dat;
+
+import java.nio.IntBuffer;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.langzhaozhi.util.IntHash;
+
+/**
+ * <p>直接基于内存映象文件的只读DAT，base和check直接从映象中读取，不创建任何节点对象，只有命中的时候才对value进行反序列化。</p>
+ * <p>加载几乎就是一次mmap调用，启动极快且不占用堆内存，同一台机器上的多个JVM加载同一个DAT文件还可以共享操作系统的页缓存。
+ * 代价是每次访问比堆上的<code>DoubleArrayTrie</code>稍慢一点，而且每次命中都要反序列化一次value，因此适合数据量巨大而命中比例很小的场合。</p>
+ * <p>不变对象，意味着一旦构造就不再改变，因此可以任意多线程并发访问。</p>
+ * <p>精确匹配、前缀前匹配和前缀后匹配(大小写敏感和非敏感)同<code>DoubleArrayTriePrefixMatcher</code>一样。前缀后匹配要从父节点找儿子，
+ * 第一次用到时才对映象中的check建立父子关系索引(堆上两个int数组)，AC没有持久化的时候构造AC也共用这个索引</p>
+ * <p>只能通过<code>DoubleArrayTrieMaker::mapDoubleArrayTrieFromFile</code>加载由
+ * <code>DoubleArrayTrieMaker::serializeDoubleArrayTrieToFile</code>持久化的文件</p>
+ *
+ * @see DoubleArrayTrie
+ */
+public final class MappedDoubleArrayTrie<T> {
+    private final DoubleArrayTrieFile.Sections mSections;
+    private final IntBuffer mBaseBuffer;
+    private final IntBuffer mCheckBuffer;
+    private final IntBuffer mValueIdBuffer;
+    private final int mDatArrayLength;
+    private final ValueDeserializer<T> mValueDeserializer;
+    //AC状态数据，文件中持久化了的话直接就是映象，否则第一次进行多模式串匹配的时候才在堆上建立
+    private volatile AhoCorasickStates mAhoCorasickStates;
+    //父子关系索引，第一次前缀后匹配或者在堆上构造AC时才建立
+    private volatile ChildIndex mChildIndex;
+    //各自用自己的锁，同DoubleArrayTrie一样锁的顺序总是先AC后索引
+    private final Object mAhoCorasickStatesLock = new Object();
+    private final Object mChildIndexLock = new Object();
+
+    MappedDoubleArrayTrie(DoubleArrayTrieFile.Sections aSections, ValueDeserializer<T> aValueDeserializer) {
+        //from DoubleArrayTrieMaker.mapDoubleArrayTrieFromFile()
+        this.mSections = aSections;
+        this.mBaseBuffer = aSections.mBaseBuffer;
+        this.mCheckBuffer = aSections.mCheckBuffer;
+        this.mValueIdBuffer = aSections.mValueIdBuffer;
+        this.mDatArrayLength = aSections.mDatArrayLength;
+        this.mValueDeserializer = aValueDeserializer;
+        this.mAhoCorasickStates = aSections.mAhoCorasickStates;
+    }
+
+    /**
+     * 精确匹配，同<code>DoubleArrayTrie::exactMatch</code>
+     */
+    public T exactMatch(CharSequence aKey) {
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        //总是从虚根开始
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(), datArrayLen = this.mDatArrayLength; i < keyCharLen; ++i) {
+            int index = baseBuffer.get( parentIndex ) + aKey.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkBuffer.get( index ) != parentIndex) {
+                return null;
+            }
+            parentIndex = index;
+        }
+        return this.getValue( parentIndex );
+    }
+
+    /**
+     * <前缀前匹配prefixBeforeMatch>的大小写敏感匹配，同<code>DoubleArrayTriePrefixMatcher::prefixBeforeMatchCaseSensitive</code>
+     */
+    public void prefixBeforeMatchCaseSensitive(CharSequence aInputText, Hit<T> aHit) {
+        boolean whetherContinueHit = true;
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        IntBuffer valueIdBuffer = this.mValueIdBuffer;
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = this.mDatArrayLength; whetherContinueHit && i < keyCharLen; ++i) {
+            int index = baseBuffer.get( parentIndex ) + aInputText.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkBuffer.get( index ) != parentIndex) {
+                break;
+            }
+            int valueId = valueIdBuffer.get( index );
+            if (valueId != DoubleArrayTrieFile.NO_VALUE_ID) {
+                whetherContinueHit = aHit.hit( aInputText, 0, i + 1, this.decodeValue( valueId ) );
+            }
+            parentIndex = index;
+        }
+    }
+
+    /**
+     * <前缀前匹配prefixBeforeMatch>的大小写非敏感匹配，同<code>DoubleArrayTriePrefixMatcher::prefixBeforeMatchCaseInsensitive</code>
+     */
+    public void prefixBeforeMatchCaseInsensitive(CharSequence aInputText, Hit<T> aHit) {
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        IntBuffer valueIdBuffer = this.mValueIdBuffer;
+        HashSet<Integer> parentCheckSet = new HashSet<Integer>();
+        HashSet<Integer> thisCheckSet = new HashSet<Integer>();
+        //记录真正匹配到的关键字串,以便正确 hit 回调的时候把DAT中对应的真正关键字进行通知
+        IntHash<String> matchedKeys = new IntHash<String>( aInputText.length() );
+        matchedKeys.put( 0, "" );//虚根对应空串
+        parentCheckSet.add( 0 );
+        for (int i = 0, keyCharLen = aInputText.length(), datArrayLen = this.mDatArrayLength; i < keyCharLen; ++i) {
+            char oneChar = aInputText.charAt( i );
+            char twoChar = Character.isUpperCase( oneChar ) ? Character.toLowerCase( oneChar ) : (Character.isLowerCase( oneChar ) ? Character.toUpperCase( oneChar ) : oneChar);
+            for (Iterator<Integer> parentIterator = parentCheckSet.iterator(); parentIterator.hasNext();) {
+                int parentCheck = parentIterator.next();
+                int parentBase = baseBuffer.get( parentCheck );
+                parentIterator.remove();//迭代清空
+                String parentKey = matchedKeys.get( parentCheck );
+                for (int j = 0, jsize = oneChar == twoChar ? 1 : 2; j < jsize; ++j) {
+                    char nextChar = j == 0 ? oneChar : twoChar;
+                    int index = parentBase + nextChar;
+                    if (index > 0 && index < datArrayLen && checkBuffer.get( index ) == parentCheck) {
+                        String childKey = parentKey + nextChar;
+                        int valueId = valueIdBuffer.get( index );
+                        if (valueId != DoubleArrayTrieFile.NO_VALUE_ID && !aHit.hit( childKey, 0, i + 1, this.decodeValue( valueId ) )) {
+                            return;
+                        }
+                        thisCheckSet.add( index );//记录下一层的parentCheck
+                        matchedKeys.put( index, childKey );
+                    }
+                }
+            }
+            if (thisCheckSet.isEmpty()) {
+                //当前字符无论大小写都没有匹配到数据，后面的不用匹配了
+                break;
+            }
+            HashSet<Integer> tmp = parentCheckSet;//已经被清空了的
+            parentCheckSet = thisCheckSet;
+            thisCheckSet = tmp;
+        }
+    }
+
+    /**
+     * <前缀后匹配prefixAfterMatch>的大小写敏感匹配，同<code>DoubleArrayTriePrefixMatcher::prefixAfterMatchCaseSensitive</code>，
+     * 按字典序通知
+     */
+    public void prefixAfterMatchCaseSensitive(CharSequence aInputText, Hit<T> aHit) {
+        int keyCharLen = aInputText.length();
+        if (keyCharLen == 0) {
+            //不支持空串，因为全匹配实在是无意义的空耗
+            return;
+        }
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        int parentCheck = 0;
+        for (int i = 0, datArrayLen = this.mDatArrayLength; i < keyCharLen; ++i) {
+            int index = baseBuffer.get( parentCheck ) + aInputText.charAt( i );
+            if (index <= 0 || index >= datArrayLen || checkBuffer.get( index ) != parentCheck) {
+                //找不到任何数据使得输入字串是此数据的前缀
+                return;
+            }
+            parentCheck = index;
+        }
+        int valueId = this.mValueIdBuffer.get( parentCheck );
+        if (valueId != DoubleArrayTrieFile.NO_VALUE_ID && !aHit.hit( aInputText, 0, keyCharLen, this.decodeValue( valueId ) )) {
+            return;
+        }
+        this.prefixAfterMatch( this.getChildIndex(), parentCheck, new StringBuilder( aInputText ), aHit );
+    }
+
+    /**
+     * <前缀后匹配prefixAfterMatch>的大小写非敏感匹配，同<code>DoubleArrayTriePrefixMatcher::prefixAfterMatchCaseInsensitive</code>
+     */
+    public void prefixAfterMatchCaseInsensitive(CharSequence aInputText, Hit<T> aHit) {
+        int keyCharLen = aInputText.length();
+        if (keyCharLen == 0) {
+            //不支持空串，因为全匹配实在是无意义的空耗
+            return;
+        }
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        HashSet<Integer> parentCheckSet = new HashSet<Integer>();
+        HashSet<Integer> thisCheckSet = new HashSet<Integer>();
+        IntHash<String> matchedKeys = new IntHash<String>( keyCharLen );
+        matchedKeys.put( 0, "" );//虚根对应空串
+        parentCheckSet.add( 0 );
+        for (int i = 0, datArrayLen = this.mDatArrayLength; i < keyCharLen; ++i) {
+            char oneChar = aInputText.charAt( i );
+            char twoChar = Character.isUpperCase( oneChar ) ? Character.toLowerCase( oneChar ) : (Character.isLowerCase( oneChar ) ? Character.toUpperCase( oneChar ) : oneChar);
+            for (Iterator<Integer> parentIterator = parentCheckSet.iterator(); parentIterator.hasNext();) {
+                int parentCheck = parentIterator.next();
+                int parentBase = baseBuffer.get( parentCheck );
+                parentIterator.remove();//迭代清空
+                String parentKey = matchedKeys.get( parentCheck );
+                for (int j = 0, jsize = oneChar == twoChar ? 1 : 2; j < jsize; ++j) {
+                    char nextChar = j == 0 ? oneChar : twoChar;
+                    int index = parentBase + nextChar;
+                    if (index > 0 && index < datArrayLen && checkBuffer.get( index ) == parentCheck) {
+                        thisCheckSet.add( index );//记录下一层的parentCheck
+                        matchedKeys.put( index, parentKey + nextChar );
+                    }
+                }
+            }
+            if (thisCheckSet.isEmpty()) {
+                //不区分大小写也找不到任何数据使得输入字串是此数据的前缀
+                return;
+            }
+            HashSet<Integer> tmp = parentCheckSet;//已经被清空了的
+            parentCheckSet = thisCheckSet;
+            thisCheckSet = tmp;
+        }
+        ChildIndex childIndex = this.getChildIndex();
+        for (Integer parentCheck : parentCheckSet) {
+            int valueId = this.mValueIdBuffer.get( parentCheck );
+            String realKey = matchedKeys.get( parentCheck );
+            //先通知自身相等串,这里的相等可能是大小写非敏感意义下的相等，如a相等成A
+            if (valueId != DoubleArrayTrieFile.NO_VALUE_ID && !aHit.hit( realKey, 0, keyCharLen, this.decodeValue( valueId ) )) {
+                return;
+            }
+            if (!this.prefixAfterMatch( childIndex, parentCheck, new StringBuilder( realKey ), aHit )) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * AC多模式串匹配，字符大小写敏感，同<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>。
+     * 文件中没有持久化AC状态数据的话，第一次调用的时候才在堆上建立AC的failure表
+     */
+    public void matchCaseSensitive(CharSequence aMatcherText, Hit<T> aHit) {
+        AhoCorasickStates acStates = this.mAhoCorasickStates;
+        if (acStates == null) {
+            //同DoubleArrayTrie::asAhoCorasick一样，并发的第一批调用者只有一个真正构造
+            synchronized (this.mAhoCorasickStatesLock) {
+                acStates = this.mAhoCorasickStates;
+                if (acStates == null) {
+                    IntBuffer valueIdBuffer = this.mValueIdBuffer;
+                    acStates = AhoCorasickStates.construct( this.mBaseBuffer, this.mCheckBuffer, this.getChildIndex(), (aDatIndex) -> valueIdBuffer.get( aDatIndex ) != DoubleArrayTrieFile.NO_VALUE_ID );
+                    this.mAhoCorasickStates = acStates;
+                }
+            }
+        }
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        IntBuffer valueIdBuffer = this.mValueIdBuffer;
+        IntBuffer depthBuffer = acStates.mDepthBuffer;
+        IntBuffer failureBuffer = acStates.mFailureBuffer;
+        IntBuffer outputLinkBuffer = acStates.mOutputLinkBuffer;
+        int currentState = 0;
+        for (int i = 0, count = aMatcherText.length(); i < count; ++i) {
+            currentState = AhoCorasickStates.nextTransitionState( baseBuffer, checkBuffer, failureBuffer, currentState, aMatcherText.charAt( i ) );
+            //自己不是数据状态就直接从输出链开始
+            int hitState = valueIdBuffer.get( currentState ) != DoubleArrayTrieFile.NO_VALUE_ID ? currentState : outputLinkBuffer.get( currentState );
+            for (; hitState != 0; hitState = outputLinkBuffer.get( hitState )) {
+                if (!aHit.hit( aMatcherText, i - depthBuffer.get( hitState ) + 1, i + 1, this.decodeValue( valueIdBuffer.get( hitState ) ) )) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * 快速遍历所有的数据，同<code>DoubleArrayTrie::forEachFast</code>
+     */
+    public void forEachFast(boolean aNeedKey, Hit<T> aHit) {
+        IntBuffer baseBuffer = this.mBaseBuffer;
+        IntBuffer checkBuffer = this.mCheckBuffer;
+        IntBuffer valueIdBuffer = this.mValueIdBuffer;
+        StringBuilder keyBuffer = aNeedKey ? new StringBuilder() : null;
+        for (int i = 0, isize = this.mDatArrayLength; i < isize; ++i) {
+            int valueId = valueIdBuffer.get( i );
+            if (valueId != DoubleArrayTrieFile.NO_VALUE_ID) {
+                if (aNeedKey) {
+                    keyBuffer.setLength( 0 );
+                    for (int ancestorIndex = i; ancestorIndex != 0;) {
+                        int parentIndex = checkBuffer.get( ancestorIndex );
+                        keyBuffer.append( ( char )(ancestorIndex - baseBuffer.get( parentIndex )) );
+                        ancestorIndex = parentIndex;
+                    }
+                    keyBuffer.reverse();
+                }
+                if (!aHit.hit( aNeedKey ? keyBuffer : "", 0, aNeedKey ? keyBuffer.length() : 0, this.decodeValue( valueId ) )) {
+                    return;
+                }
+            }
+        }
+    }
+
+    public int getDatArrayLength() {
+        return this.mDatArrayLength;
+    }
+
+    /**
+     * 父子关系索引，第一次调用时对映象中的check计数排序建立，同DoubleArrayTrie::getChildIndex一样只构造一次
+     */
+    private ChildIndex getChildIndex() {
+        ChildIndex childIndex = this.mChildIndex;
+        if (childIndex == null) {
+            synchronized (this.mChildIndexLock) {
+                childIndex = this.mChildIndex;
+                if (childIndex == null) {
+                    childIndex = ChildIndex.build( this.mCheckBuffer );
+                    this.mChildIndex = childIndex;
+                }
+            }
+        }
+        return childIndex;
+    }
+
+    /**
+     * 按字典序深度优先通知aParentIndex的所有子孙数据，aKeyCharBuffer是aParentIndex对应的关键字串
+     */
+    private boolean prefixAfterMatch(ChildIndex aChildIndex, int aParentIndex, StringBuilder aKeyCharBuffer, Hit<T> aHit) {
+        int [] childStartArray = aChildIndex.mChildStartArray;
+        int [] childArray = aChildIndex.mChildArray;
+        int parentBase = this.mBaseBuffer.get( aParentIndex );
+        int keyCharLength = aKeyCharBuffer.length();
+        for (int i = childStartArray[ aParentIndex ], iend = childStartArray[ aParentIndex + 1 ]; i < iend; ++i) {
+            int nextChildNodeIndex = childArray[ i ];
+            aKeyCharBuffer.append( ( char )(nextChildNodeIndex - parentBase) );
+            int valueId = this.mValueIdBuffer.get( nextChildNodeIndex );
+            if (valueId != DoubleArrayTrieFile.NO_VALUE_ID && !aHit.hit( aKeyCharBuffer, 0, keyCharLength + 1, this.decodeValue( valueId ) )) {
+                return false;
+            }
+            if (childStartArray[ nextChildNodeIndex ] != childStartArray[ nextChildNodeIndex + 1 ] && !this.prefixAfterMatch( aChildIndex, nextChildNodeIndex, aKeyCharBuffer, aHit )) {
+                return false;
+            }
+            aKeyCharBuffer.setLength( keyCharLength );
+        }
+        return true;
+    }
+
+    private T getValue(int aDatIndex) {
+        int valueId = this.mValueIdBuffer.get( aDatIndex );
+        return valueId != DoubleArrayTrieFile.NO_VALUE_ID ? this.decodeValue( valueId ) : null;
+    }
+
+    private T decodeValue(int aValueId) {
+        return this.mValueDeserializer.deserialize( this.mSections.getValueBytes( aValueId ) );
+    }
+}
@@ -0,0 +1,26 @@
+package org.langzhaozhi.dat;
+
+/**
+ * <p>AC多模式串匹配的命中语义，参见<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive(aMatcherText, aMatchKind, aHit)</code>。
+ * 除了STANDARD之外，其他语义下通知的命中互不重叠，冲突在自动机遍历过程中一趟就解决了，调用者不需要先缓存所有命中再排序取舍，
+ * 适合分词、关键字替换之类的场合。</p>
+ */
+public enum MatchKind {
+    /**
+     * 标准AC语义：所有命中，包括互相重叠、互相包含的，同<code>matchCaseSensitive(aMatcherText, aHit)</code>
+     */
+    STANDARD,
+    /**
+     * 最早结束优先：自动机一发现命中就通知(同一结束位置取最长的)，然后从命中的结束位置回到虚根继续
+     */
+    NON_OVERLAPPING,
+    /**
+     * 最左优先，同一起始位置取关键字顺序最靠前的。DAT中关键字按字典序排列，同一起始位置的候选互为前缀，
+     * 字典序最靠前的就是最短的，因此这里就是最左最短，然后从命中的结束位置继续
+     */
+    LEFTMOST_FIRST,
+    /**
+     * 最左最长：起始位置最靠左的，同一起始位置取最长的，然后从命中的结束位置继续。这是正向最大匹配分词的语义
+     */
+    LEFTMOST_LONGEST
+}
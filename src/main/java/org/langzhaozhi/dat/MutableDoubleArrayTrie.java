@@ -0,0 +1,453 @@
+package org.langzhaozhi.dat;
+
+import java.util.Arrays;
+
+/**
+ * <p>可以增量插入和删除数据的双数组DAT，插入时如果儿子的位置冲突了，就为父节点重新选一个base，把它已有的儿子整体搬过去(base重定位)，
+ * 删除时把不再有数据也没有儿子的节点从叶子往上逐个释放，释放的位置可以被以后的插入重新利用。因此对已有的大DAT做少量的修改只需要很少的时间，
+ * 不必像<code>DoubleArrayTrieMaker::makeDoubleArrayTrie</code>那样全部重新构造。</p>
+ * <p>同<code>Trie</code>一样是非线程安全的，应该确保修改过程是单线程中进行的。修改完毕后通过<code>toDoubleArrayTrie()</code>得到此时刻的
+ * 一个不变的镜像DAT交给读线程并发使用，之后的修改对已经生成的镜像没有任何影响。没有修改的话多次调用<code>toDoubleArrayTrie()</code>返回同一个镜像。</p>
+ * <p>为了能够找到一个节点的所有儿子进行搬迁，每个节点还额外记录第一个儿子的字符和下一个兄弟的字符，儿子按字符升序串起来；
+ * 所有空位用循环双向链表串起来，同<code>DoubleArrayTrieMaker</code>构造时一样，下标0是虚根不可能为空，正好拿来作为链表头。</p>
+ * <p>为了保证每次修改都很快，儿子多的节点搬迁时找不到合适的空位就搬到数组尾部，因此反复大量修改后数组会比重新构造的长，
+ * 这种情况下应该定期用<code>DoubleArrayTrieMaker</code>重新离线构造一次。</p>
+ *
+ * @see DoubleArrayTrie
+ * @see Trie
+ */
+public final class MutableDoubleArrayTrie<T> {
+    //叶子节点的base，同DoubleArrayTrieMaker
+    private static final int LEAF_BASE = Integer.MIN_VALUE;
+    //mFirstChildArray和mSiblingArray中存放的是字符加1，0表示没有
+    private static final int NO_CHAR = 0;
+    //寻找base时最多尝试的空位个数，超过了就直接放到所有已用位置的后面，避免儿子多的节点搬迁时把整个空位链表都试一遍
+    private static final int MAX_EMPTY_TRIAL = 256;
+
+    private int [] mBaseArray;
+    private int [] mCheckArray;
+    private Object [] mValueArray;
+    private int [] mFirstChildArray;
+    private int [] mSiblingArray;
+    private int [] mNextEmptyArray;
+    private int [] mPrevEmptyArray;
+    //所有被占用的下标都小于mUsedLength，释放时不减少，因此这之后肯定都是空位
+    private int mUsedLength = 1;
+    private int mSize;
+    //最近一次生成的镜像，修改后作废
+    private DoubleArrayTrie<T> mSnapshot;
+
+    public MutableDoubleArrayTrie() {
+        this.mBaseArray = new int [ 1024 ];
+        this.mCheckArray = new int [ 1024 ];
+        this.mValueArray = new Object [ 1024 ];
+        this.mFirstChildArray = new int [ 1024 ];
+        this.mSiblingArray = new int [ 1024 ];
+        this.mNextEmptyArray = new int [ 1024 ];
+        this.mPrevEmptyArray = new int [ 1024 ];
+        Arrays.fill( this.mCheckArray, DoubleArrayTrie.EMPTY_CHECK );
+        this.mBaseArray[ 0 ] = LEAF_BASE;
+        this.mCheckArray[ 0 ] = 0;
+        this.linkEmptyIndexes( 1, 1024 );
+    }
+
+    /**
+     * 从一个已有的DAT开始进行修改，aDat本身不受任何影响。如果aDat是延迟加载value的，这里会把所有value都反序列化出来
+     */
+    public MutableDoubleArrayTrie(DoubleArrayTrie<T> aDat) {
+        int datArrayLength = aDat.mCheckArray.length;
+        int capacity = datArrayLength + 1024;
+        this.mBaseArray = Arrays.copyOf( aDat.mBaseArray, capacity );
+        this.mCheckArray = Arrays.copyOf( aDat.mCheckArray, capacity );
+        this.mValueArray = new Object [ capacity ];
+        this.mFirstChildArray = new int [ capacity ];
+        this.mSiblingArray = new int [ capacity ];
+        this.mNextEmptyArray = new int [ capacity ];
+        this.mPrevEmptyArray = new int [ capacity ];
+        int [] baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        Arrays.fill( checkArray, datArrayLength, capacity, DoubleArrayTrie.EMPTY_CHECK );
+        //下标从小到大扫描，同一个父节点的儿子自然就是按字符升序的，lastChildIndexes记录每个父节点当前最后一个儿子的下标
+        int [] lastChildIndexes = new int [ datArrayLength ];
+        int [] nextEmptyArray = this.mNextEmptyArray;
+        int [] prevEmptyArray = this.mPrevEmptyArray;
+        int lastEmptyIndex = 0;
+        for (int i = 0; i < datArrayLength; ++i) {
+            int parentIndex = checkArray[ i ];
+            if (parentIndex == DoubleArrayTrie.EMPTY_CHECK) {
+                nextEmptyArray[ lastEmptyIndex ] = i;
+                prevEmptyArray[ i ] = lastEmptyIndex;
+                lastEmptyIndex = i;
+                continue;
+            }
+            this.mUsedLength = i + 1;
+            if (aDat.mValueArray[ i ] != null) {
+                this.mValueArray[ i ] = aDat.getValue( i );
+                ++this.mSize;
+            }
+            if (i != 0) {
+                int charCode = i - baseArray[ parentIndex ] + 1;
+                if (this.mFirstChildArray[ parentIndex ] == NO_CHAR) {
+                    this.mFirstChildArray[ parentIndex ] = charCode;
+                }
+                else {
+                    this.mSiblingArray[ lastChildIndexes[ parentIndex ] ] = charCode;
+                }
+                lastChildIndexes[ parentIndex ] = i;
+            }
+        }
+        nextEmptyArray[ lastEmptyIndex ] = 0;
+        prevEmptyArray[ 0 ] = lastEmptyIndex;
+        this.linkEmptyIndexes( datArrayLength, capacity );
+    }
+
+    /**
+     * 获取对应节点的数据，如果找不到对应节点或者找到的节点不是数据节点返回null
+     */
+    @SuppressWarnings("unchecked")
+    public T get(CharSequence aKey) {
+        int index = this.findIndex( aKey );
+        return index >= 0 ? ( T )this.mValueArray[ index ] : null;
+    }
+
+    /**
+     * 询问数据是否已经插入
+     */
+    public boolean containsKey(CharSequence aKey) {
+        return this.get( aKey ) != null;
+    }
+
+    /**
+     * 数据个数
+     */
+    public int size() {
+        return this.mSize;
+    }
+
+    /**
+     * <p>插入数据，若aKey原来已经存在，那么就返回原来的数据并且用新的aValue替换这个原来的数据，否则返回null</p>
+     * <p>如果参数aValue为 null, 完全等价于<code>remove(aKey)</code></p>
+     */
+    @SuppressWarnings("unchecked")
+    public T put(CharSequence aKey, T aValue) {
+        if (aValue == null) {
+            return this.remove( aKey );
+        }
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(); i < keyCharLen; ++i) {
+            char nextChar = aKey.charAt( i );
+            int index = this.getChildIndex( parentIndex, nextChar );
+            parentIndex = index >= 0 ? index : this.addChild( parentIndex, nextChar );
+        }
+        //如果是空串就插入到虚根节点上
+        T oldValue = ( T )this.mValueArray[ parentIndex ];
+        this.mValueArray[ parentIndex ] = aValue;
+        if (oldValue == null) {
+            ++this.mSize;
+        }
+        this.mSnapshot = null;
+        return oldValue;
+    }
+
+    /**
+     * 删除数据，返回原来的数据。不再有数据也没有儿子的节点会被释放，释放出的位置以后插入的时候可以重新利用
+     */
+    @SuppressWarnings("unchecked")
+    public T remove(CharSequence aKey) {
+        int keyCharLen = aKey.length();
+        //记录下路径以便从叶子往上释放节点
+        int [] pathIndexes = new int [ keyCharLen + 1 ];
+        int parentIndex = 0;
+        for (int i = 0; i < keyCharLen; ++i) {
+            parentIndex = this.getChildIndex( parentIndex, aKey.charAt( i ) );
+            if (parentIndex < 0) {
+                return null;
+            }
+            pathIndexes[ i + 1 ] = parentIndex;
+        }
+        T oldValue = ( T )this.mValueArray[ parentIndex ];
+        if (oldValue != null) {
+            this.mValueArray[ parentIndex ] = null;
+            --this.mSize;
+            for (int i = keyCharLen; i > 0; --i) {
+                int index = pathIndexes[ i ];
+                if (this.mValueArray[ index ] != null || this.mFirstChildArray[ index ] != NO_CHAR) {
+                    break;
+                }
+                this.removeChild( pathIndexes[ i - 1 ], aKey.charAt( i - 1 ) );
+            }
+            this.mSnapshot = null;
+        }
+        return oldValue;
+    }
+
+    /**
+     * 转换成不变的双数组DAT来使用，返回的DAT是此时刻的一个镜像，意味着后续的修改不会传导给已经生成的DAT，因此可以放心地交给多个读线程并发访问。
+     * 生成镜像需要拷贝一遍数组，因此应该是一批修改完成后再调用
+     */
+    public DoubleArrayTrie<T> toDoubleArrayTrie() {
+        DoubleArrayTrie<T> snapshot = this.mSnapshot;
+        if (snapshot == null) {
+            //丢弃后面所有为空的部分
+            int [] checkArray = this.mCheckArray;
+            int realLength = checkArray.length;
+            while (checkArray[ realLength - 1 ] == DoubleArrayTrie.EMPTY_CHECK) {
+                --realLength;
+            }
+            snapshot = new DoubleArrayTrie<T>( Arrays.copyOf( this.mBaseArray, realLength ), Arrays.copyOf( checkArray, realLength ), Arrays.copyOf( this.mValueArray, realLength ) );
+            this.mSnapshot = snapshot;
+        }
+        return snapshot;
+    }
+
+    private int findIndex(CharSequence aKey) {
+        int parentIndex = 0;
+        for (int i = 0, keyCharLen = aKey.length(); i < keyCharLen && parentIndex >= 0; ++i) {
+            parentIndex = this.getChildIndex( parentIndex, aKey.charAt( i ) );
+        }
+        return parentIndex;
+    }
+
+    private int getChildIndex(int aParentIndex, char aChar) {
+        int parentBase = this.mBaseArray[ aParentIndex ];
+        if (parentBase == LEAF_BASE) {
+            return -1;
+        }
+        int index = parentBase + aChar;
+        return index > 0 && index < this.mCheckArray.length && this.mCheckArray[ index ] == aParentIndex ? index : -1;
+    }
+
+    private int addChild(int aParentIndex, char aChar) {
+        int parentBase = this.mBaseArray[ aParentIndex ];
+        if (parentBase == LEAF_BASE) {
+            parentBase = this.findBase( new char [] { aChar } );
+            this.mBaseArray[ aParentIndex ] = parentBase;
+        }
+        else {
+            int index = parentBase + aChar;
+            this.ensureLength( index + 1 );
+            int ownerIndex = index > 0 ? this.mCheckArray[ index ] : DoubleArrayTrie.EMPTY_CHECK;
+            if (index <= 0) {
+                parentBase = this.relocate( aParentIndex, aChar );
+            }
+            else if (ownerIndex != DoubleArrayTrie.EMPTY_CHECK) {
+                //冲突了，谁的儿子少就搬谁：要么把已有的儿子连同新儿子一起搬到新的base，要么把占位者的父节点的儿子们搬走腾出位置
+                if (this.getChildCount( aParentIndex ) + 1 <= this.getChildCount( ownerIndex )) {
+                    parentBase = this.relocate( aParentIndex, aChar );
+                }
+                else {
+                    int ownerBase = this.mBaseArray[ ownerIndex ];
+                    int newOwnerBase = this.relocate( ownerIndex, -1 );
+                    if (this.mCheckArray[ aParentIndex ] == DoubleArrayTrie.EMPTY_CHECK) {
+                        //本节点正好是占位者的儿子，也跟着搬走了
+                        aParentIndex = newOwnerBase + (aParentIndex - ownerBase);
+                    }
+                }
+            }
+        }
+        int childIndex = parentBase + aChar;
+        this.removeEmptyIndex( childIndex );
+        this.mCheckArray[ childIndex ] = aParentIndex;
+        this.mBaseArray[ childIndex ] = LEAF_BASE;
+        //按字符升序插入到儿子链表中
+        int charCode = aChar + 1;
+        int [] firstChildArray = this.mFirstChildArray;
+        int [] siblingArray = this.mSiblingArray;
+        int nextCharCode = firstChildArray[ aParentIndex ];
+        if (nextCharCode == NO_CHAR || nextCharCode > charCode) {
+            firstChildArray[ aParentIndex ] = charCode;
+        }
+        else {
+            int prevChildIndex = parentBase + nextCharCode - 1;
+            while ((nextCharCode = siblingArray[ prevChildIndex ]) != NO_CHAR && nextCharCode < charCode) {
+                prevChildIndex = parentBase + nextCharCode - 1;
+            }
+            siblingArray[ prevChildIndex ] = charCode;
+        }
+        siblingArray[ childIndex ] = nextCharCode;
+        return childIndex;
+    }
+
+    private void removeChild(int aParentIndex, char aChar) {
+        int parentBase = this.mBaseArray[ aParentIndex ];
+        int childIndex = parentBase + aChar;
+        int charCode = aChar + 1;
+        int [] firstChildArray = this.mFirstChildArray;
+        int [] siblingArray = this.mSiblingArray;
+        if (firstChildArray[ aParentIndex ] == charCode) {
+            firstChildArray[ aParentIndex ] = siblingArray[ childIndex ];
+            if (siblingArray[ childIndex ] == NO_CHAR) {
+                //最后一个儿子没有了，父节点变成叶子
+                this.mBaseArray[ aParentIndex ] = LEAF_BASE;
+            }
+        }
+        else {
+            int prevChildIndex = parentBase + firstChildArray[ aParentIndex ] - 1;
+            while (siblingArray[ prevChildIndex ] != charCode) {
+                prevChildIndex = parentBase + siblingArray[ prevChildIndex ] - 1;
+            }
+            siblingArray[ prevChildIndex ] = siblingArray[ childIndex ];
+        }
+        this.freeIndex( childIndex );
+    }
+
+    private int getChildCount(int aParentIndex) {
+        int parentBase = this.mBaseArray[ aParentIndex ];
+        int childCount = 0;
+        for (int charCode = this.mFirstChildArray[ aParentIndex ]; charCode != NO_CHAR; charCode = this.mSiblingArray[ parentBase + charCode - 1 ]) {
+            ++childCount;
+        }
+        return childCount;
+    }
+
+    /**
+     * 把aParentIndex的所有儿子搬到新的base，aNewChar不为-1的话新base还要为这个新儿子留出位置，返回新的base
+     */
+    private int relocate(int aParentIndex, int aNewChar) {
+        int [] baseArray = this.mBaseArray;
+        int oldBase = baseArray[ aParentIndex ];
+        //已有儿子的字符加上新儿子的字符，升序排好
+        int oldChildCount = this.getChildCount( aParentIndex );
+        char [] childChars = new char [ aNewChar >= 0 ? oldChildCount + 1 : oldChildCount ];
+        int childCharIndex = 0;
+        for (int charCode = this.mFirstChildArray[ aParentIndex ]; charCode != NO_CHAR; charCode = this.mSiblingArray[ oldBase + charCode - 1 ]) {
+            childChars[ childCharIndex++ ] = ( char )(charCode - 1);
+        }
+        if (aNewChar >= 0) {
+            childChars[ childCharIndex ] = ( char )aNewChar;
+            Arrays.sort( childChars );
+        }
+        int newBase = this.findBase( childChars );
+        //findBase可能扩展了数组
+        baseArray = this.mBaseArray;
+        int [] checkArray = this.mCheckArray;
+        for (char nextChar : childChars) {
+            if (nextChar == aNewChar) {
+                continue;
+            }
+            int oldIndex = oldBase + nextChar;
+            int newIndex = newBase + nextChar;
+            this.removeEmptyIndex( newIndex );
+            int childBase = baseArray[ oldIndex ];
+            baseArray[ newIndex ] = childBase;
+            checkArray[ newIndex ] = aParentIndex;
+            this.mValueArray[ newIndex ] = this.mValueArray[ oldIndex ];
+            this.mFirstChildArray[ newIndex ] = this.mFirstChildArray[ oldIndex ];
+            this.mSiblingArray[ newIndex ] = this.mSiblingArray[ oldIndex ];
+            //孙子的check指向搬迁后的新位置
+            for (int charCode = this.mFirstChildArray[ oldIndex ]; charCode != NO_CHAR; charCode = this.mSiblingArray[ childBase + charCode - 1 ]) {
+                checkArray[ childBase + charCode - 1 ] = newIndex;
+            }
+            this.freeIndex( oldIndex );
+        }
+        baseArray[ aParentIndex ] = newBase;
+        return newBase;
+    }
+
+    private int findBase(char [] aSortedChars) {
+        //第一个儿子只可能放在空位上，因此只在空位链表上尝试
+        int firstChar = aSortedChars[ 0 ];
+        int lastChar = aSortedChars[ aSortedChars.length - 1 ];
+        int emptyIndex = this.nextEmptyIndex( 0 );
+        int base = emptyIndex - firstChar;
+        this.ensureLength( base + lastChar + 1 );
+        for (int i = 1, trialCount = 1; i < aSortedChars.length; ++i) {
+            if (this.mCheckArray[ base + aSortedChars[ i ] ] != DoubleArrayTrie.EMPTY_CHECK) {
+                if (++trialCount > MAX_EMPTY_TRIAL) {
+                    return this.findBaseAtTail( aSortedChars );
+                }
+                emptyIndex = this.nextEmptyIndex( emptyIndex );
+                base = emptyIndex - firstChar;
+                this.ensureLength( base + lastChar + 1 );
+                i = 0;
+            }
+        }
+        return base;
+    }
+
+    private int findBaseAtTail(char [] aSortedChars) {
+        //只在最后一个儿子跨度范围内的尾部逐个下标尝试，这里往往有以前搬到尾部的节点留下的空隙；
+        //第一个儿子放到mUsedLength的时候所有儿子都在mUsedLength之后，肯定不冲突，因此最多尝试跨度那么多次
+        int firstChar = aSortedChars[ 0 ];
+        int lastChar = aSortedChars[ aSortedChars.length - 1 ];
+        int usedLength = this.mUsedLength;
+        this.ensureLength( usedLength + lastChar - firstChar + 1 );
+        int [] checkArray = this.mCheckArray;
+        for (int firstIndex = Math.max( 1, usedLength - (lastChar - firstChar) );; ++firstIndex) {
+            int base = firstIndex - firstChar;
+            int i = 0;
+            while (i < aSortedChars.length && checkArray[ base + aSortedChars[ i ] ] == DoubleArrayTrie.EMPTY_CHECK) {
+                ++i;
+            }
+            if (i == aSortedChars.length) {
+                return base;
+            }
+        }
+    }
+
+    private int nextEmptyIndex(int aEmptyIndex) {
+        if (this.mNextEmptyArray[ aEmptyIndex ] == 0) {
+            //已经没有更多空位了，扩展数组，扩展出来的都是空位
+            this.ensureLength( this.mCheckArray.length + 1 );
+        }
+        return this.mNextEmptyArray[ aEmptyIndex ];
+    }
+
+    private void freeIndex(int aIndex) {
+        this.mBaseArray[ aIndex ] = 0;
+        this.mCheckArray[ aIndex ] = DoubleArrayTrie.EMPTY_CHECK;
+        this.mValueArray[ aIndex ] = null;
+        this.mFirstChildArray[ aIndex ] = NO_CHAR;
+        this.mSiblingArray[ aIndex ] = NO_CHAR;
+        //放到空位链表的头部，下次最先尝试
+        int [] nextEmptyArray = this.mNextEmptyArray;
+        int [] prevEmptyArray = this.mPrevEmptyArray;
+        int firstEmptyIndex = nextEmptyArray[ 0 ];
+        nextEmptyArray[ 0 ] = aIndex;
+        prevEmptyArray[ aIndex ] = 0;
+        nextEmptyArray[ aIndex ] = firstEmptyIndex;
+        prevEmptyArray[ firstEmptyIndex ] = aIndex;
+    }
+
+    private void removeEmptyIndex(int aIndex) {
+        if (aIndex >= this.mUsedLength) {
+            this.mUsedLength = aIndex + 1;
+        }
+        int [] nextEmptyArray = this.mNextEmptyArray;
+        int [] prevEmptyArray = this.mPrevEmptyArray;
+        int nextEmptyIndex = nextEmptyArray[ aIndex ];
+        int prevEmptyIndex = prevEmptyArray[ aIndex ];
+        nextEmptyArray[ prevEmptyIndex ] = nextEmptyIndex;
+        prevEmptyArray[ nextEmptyIndex ] = prevEmptyIndex;
+    }
+
+    private void ensureLength(int aLength) {
+        int oldLength = this.mCheckArray.length;
+        if (oldLength < aLength) {
+            int newLength = Math.max( aLength + 1024, oldLength + (oldLength >> 1) );
+            this.mBaseArray = Arrays.copyOf( this.mBaseArray, newLength );
+            this.mCheckArray = Arrays.copyOf( this.mCheckArray, newLength );
+            this.mValueArray = Arrays.copyOf( this.mValueArray, newLength );
+            this.mFirstChildArray = Arrays.copyOf( this.mFirstChildArray, newLength );
+            this.mSiblingArray = Arrays.copyOf( this.mSiblingArray, newLength );
+            this.mNextEmptyArray = Arrays.copyOf( this.mNextEmptyArray, newLength );
+            this.mPrevEmptyArray = Arrays.copyOf( this.mPrevEmptyArray, newLength );
+            Arrays.fill( this.mCheckArray, oldLength, newLength, DoubleArrayTrie.EMPTY_CHECK );
+            this.linkEmptyIndexes( oldLength, newLength );
+        }
+    }
+
+    private void linkEmptyIndexes(int aFrom, int aTo) {
+        //把[aFrom, aTo)之间的新空位按顺序追加到空位链表的尾部
+        int [] nextEmptyArray = this.mNextEmptyArray;
+        int [] prevEmptyArray = this.mPrevEmptyArray;
+        int lastEmptyIndex = prevEmptyArray[ 0 ];
+        for (int i = aFrom; i < aTo; ++i) {
+            nextEmptyArray[ lastEmptyIndex ] = i;
+            prevEmptyArray[ i ] = lastEmptyIndex;
+            lastEmptyIndex = i;
+        }
+        nextEmptyArray[ lastEmptyIndex ] = 0;
+        prevEmptyArray[ 0 ] = lastEmptyIndex;
+    }
+}
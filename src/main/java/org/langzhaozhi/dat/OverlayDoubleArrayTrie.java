@@ -0,0 +1,375 @@
+package org.langzhaozhi.dat;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.langzhaozhi.dat.Trie.TrieNode;
+
+/**
+ * <p>LSM风格的增量DAT：一个很大的不变DAT作为基础，上面叠加一个很小的可变<code>Trie</code>作为增量层，
+ * 记录最近插入的数据以及删除标记(墓碑)。新插入的关键字立即可见，不用每次写都付出构造DAT的代价。</p>
+ * <p>查询时先查增量层，增量层有这个关键字(数据或者墓碑)就以增量层为准，否则才查基础DAT。增量层的数据个数达到阈值后，
+ * 在后台把增量层合并进基础DAT：当前增量层被冻结，新的写入进入一个新的增量层，冻结层通过<code>MutableDoubleArrayTrie</code>
+ * 应用到基础DAT上生成新的DAT并预先构造好AC自动机和前缀匹配，然后替换基础DAT并丢弃冻结层。合并期间查询依次查增量层、冻结层、基础DAT。</p>
+ * <p>多线程并发读写是安全的：查询持有读锁，写入和切换基础DAT持有写锁。注意匹配回调是在持有读锁的时候调用的，回调中不能再写本对象，否则死锁。
+ * 多模式串匹配和前缀匹配时先通知基础DAT中可见的结果，再通知增量层的结果，因此结果的先后顺序同单独一个DAT不一样。
+ * 增量层很小，它的匹配是从每个位置开始直接在Trie上走，因此阈值不宜太大。</p>
+ *
+ * @param <T>
+ */
+public final class OverlayDoubleArrayTrie<T> {
+    public static final int DEFAULT_COMPACT_THRESHOLD = 4096;
+
+    //增量层中的删除标记
+    private static final Object TOMBSTONE = new Object();
+
+    private final int mCompactThreshold;
+    private final Executor mCompactExecutor;
+    private final ReentrantReadWriteLock mLock = new ReentrantReadWriteLock();
+    private DoubleArrayTrie<T> mBaseDat;
+    //增量层的value是T或者TOMBSTONE
+    private Trie<Object> mOverlay = new Trie<Object>();
+    private int mOverlaySize;
+    //正在后台合并的冻结层，没有合并时为null
+    private Trie<Object> mFrozen;
+    private CompletableFuture<DoubleArrayTrie<T>> mCompactFuture;
+    //上次合并失败或者aCompactExecutor拒绝执行后暂停自动合并，否则达到阈值后每次写入都要把整个冻结层放回增量层再失败一次，
+    //直到下一次显式调用compact()
+    private boolean mAutoCompactSuspended;
+
+    public OverlayDoubleArrayTrie(DoubleArrayTrie<T> aBaseDat) {
+        this( aBaseDat, DEFAULT_COMPACT_THRESHOLD, ForkJoinPool.commonPool() );
+    }
+
+    /**
+     * @param aBaseDat 基础DAT
+     * @param aCompactThreshold 增量层的数据个数(包括墓碑)达到此值就在后台合并
+     * @param aCompactExecutor 执行后台合并
+     */
+    public OverlayDoubleArrayTrie(DoubleArrayTrie<T> aBaseDat, int aCompactThreshold, Executor aCompactExecutor) {
+        this.mBaseDat = aBaseDat;
+        this.mCompactThreshold = aCompactThreshold;
+        this.mCompactExecutor = aCompactExecutor;
+    }
+
+    public T exactMatch(CharSequence aKey) {
+        this.mLock.readLock().lock();
+        try {
+            Object overlayValue = this.getOverlayValue( aKey, 0, aKey.length() );
+            return overlayValue != null ? this.toVisibleValue( overlayValue ) : this.mBaseDat.exactMatch( aKey );
+        }
+        finally {
+            this.mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 插入数据，立即可见，返回原来可见的数据。aValue为null等价于<code>remove(aKey)</code>
+     */
+    public T put(CharSequence aKey, T aValue) {
+        return this.write( aKey, aValue != null ? aValue : TOMBSTONE );
+    }
+
+    /**
+     * 删除数据，立即生效，返回原来可见的数据
+     */
+    public T remove(CharSequence aKey) {
+        return this.write( aKey, TOMBSTONE );
+    }
+
+    /**
+     * 当前的基础DAT，不包含增量层中的修改
+     */
+    public DoubleArrayTrie<T> getBaseDat() {
+        this.mLock.readLock().lock();
+        try {
+            return this.mBaseDat;
+        }
+        finally {
+            this.mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 不管有没有达到阈值，都在后台把当前的增量层合并进基础DAT。如果正在合并，返回正在进行的合并。
+     * 上次合并失败后暂停了的自动合并也从这里恢复
+     */
+    public CompletableFuture<DoubleArrayTrie<T>> compact() {
+        this.mLock.writeLock().lock();
+        try {
+            this.mAutoCompactSuspended = false;
+            if (this.mCompactFuture == null) {
+                if (this.mOverlaySize == 0) {
+                    return CompletableFuture.completedFuture( this.mBaseDat );
+                }
+                return this.startCompact();
+            }
+            return this.mCompactFuture;
+        }
+        finally {
+            this.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * AC多模式串匹配，大小写敏感，参见<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>
+     */
+    public void matchCaseSensitive(CharSequence aMatcherText, Hit<T> aHit) {
+        this.mLock.readLock().lock();
+        try {
+            boolean [] whetherContinueHit = { true };
+            this.mBaseDat.asAhoCorasick().matchCaseSensitive( aMatcherText, this.filterBaseHit( aHit, whetherContinueHit ) );
+            for (int i = 0, count = aMatcherText.length(); whetherContinueHit[ 0 ] && i < count; ++i) {
+                whetherContinueHit[ 0 ] = this.prefixBeforeMatchOverlay( aMatcherText, i, aHit );
+            }
+        }
+        finally {
+            this.mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <前缀前匹配prefixBeforeMatch>，大小写敏感，参见<code>DoubleArrayTriePrefixMatcher::prefixBeforeMatchCaseSensitive</code>
+     */
+    public void prefixBeforeMatchCaseSensitive(CharSequence aInputText, Hit<T> aHit) {
+        this.mLock.readLock().lock();
+        try {
+            boolean [] whetherContinueHit = { true };
+            this.mBaseDat.asPrefixMatcher().prefixBeforeMatchCaseSensitive( aInputText, this.filterBaseHit( aHit, whetherContinueHit ) );
+            if (whetherContinueHit[ 0 ]) {
+                this.prefixBeforeMatchOverlay( aInputText, 0, aHit );
+            }
+        }
+        finally {
+            this.mLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * <前缀后匹配prefixAfterMatch>，大小写敏感，参见<code>DoubleArrayTriePrefixMatcher::prefixAfterMatchCaseSensitive</code>
+     */
+    public void prefixAfterMatchCaseSensitive(CharSequence aInputText, Hit<T> aHit) {
+        if (aInputText.length() == 0) {
+            //同DoubleArrayTriePrefixMatcher一样不支持空串
+            return;
+        }
+        this.mLock.readLock().lock();
+        try {
+            boolean [] whetherContinueHit = { true };
+            this.mBaseDat.asPrefixMatcher().prefixAfterMatchCaseSensitive( aInputText, this.filterBaseHit( aHit, whetherContinueHit ) );
+            Trie<Object> [] layers = this.getLayers();
+            for (int i = 0; whetherContinueHit[ 0 ] && i < layers.length; ++i) {
+                TrieNode<Object> branchNode = OverlayDoubleArrayTrie.findNode( layers[ i ], aInputText, 0, aInputText.length() );
+                if (branchNode != null) {
+                    StringBuilder keyBuffer = new StringBuilder( aInputText );
+                    whetherContinueHit[ 0 ] = this.forEachLayerValue( layers, i, branchNode, keyBuffer, aHit );
+                }
+            }
+        }
+        finally {
+            this.mLock.readLock().unlock();
+        }
+    }
+
+    private T write(CharSequence aKey, Object aOverlayValue) {
+        this.mLock.writeLock().lock();
+        try {
+            Object overlayValue = this.getOverlayValue( aKey, 0, aKey.length() );
+            T oldValue = overlayValue != null ? this.toVisibleValue( overlayValue ) : this.mBaseDat.exactMatch( aKey );
+            if (this.mOverlay.put( aKey, aOverlayValue ) == null) {
+                ++this.mOverlaySize;
+            }
+            if (this.mOverlaySize >= this.mCompactThreshold && this.mCompactFuture == null && !this.mAutoCompactSuspended) {
+                this.startCompact();
+            }
+            return oldValue;
+        }
+        finally {
+            this.mLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 持有写锁时调用：冻结当前增量层，在后台合并。返回的CompletableFuture在新的基础DAT切换好之后才完成
+     */
+    private CompletableFuture<DoubleArrayTrie<T>> startCompact() {
+        Trie<Object> frozen = this.mOverlay;
+        DoubleArrayTrie<T> baseDat = this.mBaseDat;
+        this.mFrozen = frozen;
+        this.mOverlay = new Trie<Object>();
+        this.mOverlaySize = 0;
+        CompletableFuture<DoubleArrayTrie<T>> mergeFuture;
+        try {
+            mergeFuture = CompletableFuture.supplyAsync( () -> OverlayDoubleArrayTrie.merge( baseDat, frozen ), this.mCompactExecutor );
+        }
+        catch (RuntimeException e) {
+            //aCompactExecutor拒绝执行(比如已经关闭了)，同合并失败一样处理，否则冻结层留在那里，下次合并时就被覆盖丢失了
+            mergeFuture = new CompletableFuture<DoubleArrayTrie<T>>();
+            mergeFuture.completeExceptionally( e );
+        }
+        CompletableFuture<DoubleArrayTrie<T>> compactFuture = mergeFuture.whenComplete( (aNewBaseDat, aThrowable) -> {
+            this.mLock.writeLock().lock();
+            try {
+                if (aThrowable == null) {
+                    this.mBaseDat = aNewBaseDat;
+                }
+                else {
+                    //合并失败，把冻结层中没有被新增量层覆盖的数据放回增量层，等显式调用compact()时再合并
+                    OverlayDoubleArrayTrie.forEachNode( frozen.mRootTrieNode, new StringBuilder(), (aKey, aStart, aEnd, aValue) -> {
+                        if (this.mOverlay.putIfAbsent( aKey, aValue ) == null) {
+                            ++this.mOverlaySize;
+                        }
+                        return true;
+                    } );
+                    this.mAutoCompactSuspended = true;
+                }
+                this.mFrozen = null;
+                this.mCompactFuture = null;
+                if (aThrowable == null && this.mOverlaySize >= this.mCompactThreshold) {
+                    this.startCompact();
+                }
+            }
+            finally {
+                this.mLock.writeLock().unlock();
+            }
+        } );
+        if (this.mFrozen == frozen) {
+            //aCompactExecutor有可能直接在当前线程中执行完了(或者拒绝执行)，那时冻结层已经清除了
+            this.mCompactFuture = compactFuture;
+        }
+        return compactFuture;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> DoubleArrayTrie<T> merge(DoubleArrayTrie<T> aBaseDat, Trie<Object> aFrozen) {
+        MutableDoubleArrayTrie<T> mutableDat = new MutableDoubleArrayTrie<T>( aBaseDat );
+        OverlayDoubleArrayTrie.forEachNode( aFrozen.mRootTrieNode, new StringBuilder(), (aKey, aStart, aEnd, aValue) -> {
+            if (aValue == TOMBSTONE) {
+                mutableDat.remove( aKey );
+            }
+            else {
+                mutableDat.put( aKey.toString(), ( T )aValue );
+            }
+            return true;
+        } );
+        //预先构造好，切换后查询就不会碰上延迟构造
+        return mutableDat.toDoubleArrayTrie().warmUp();
+    }
+
+    /**
+     * 基础DAT的结果只有在增量层和冻结层都没有这个关键字时才可见
+     */
+    private Hit<T> filterBaseHit(Hit<T> aHit, boolean [] aWhetherContinueHit) {
+        if (this.mOverlaySize == 0 && this.mFrozen == null) {
+            return (aSearchText, aStart, aEnd, aValue) -> (aWhetherContinueHit[ 0 ] = aHit.hit( aSearchText, aStart, aEnd, aValue ));
+        }
+        return (aSearchText, aStart, aEnd, aValue) -> {
+            if (this.getOverlayValue( aSearchText, aStart, aEnd ) != null) {
+                return true;
+            }
+            return aWhetherContinueHit[ 0 ] = aHit.hit( aSearchText, aStart, aEnd, aValue );
+        };
+    }
+
+    /**
+     * 从aStart位置开始在各层上匹配所有是aText前缀的关键字
+     */
+    private boolean prefixBeforeMatchOverlay(CharSequence aText, int aStart, Hit<T> aHit) {
+        Trie<Object> [] layers = this.getLayers();
+        for (int i = 0; i < layers.length; ++i) {
+            TrieNode<Object> searchNode = layers[ i ].mRootTrieNode;
+            for (int j = aStart, count = aText.length(); j < count; ++j) {
+                int childNodeIndex = searchNode.binarySearchChildNodeIndex( aText.charAt( j ) );
+                if (childNodeIndex < 0) {
+                    break;
+                }
+                searchNode = searchNode.mChildrenNodes[ childNodeIndex ];
+                if (searchNode.mValue != null && searchNode.mValue != TOMBSTONE && !OverlayDoubleArrayTrie.isShadowed( layers, i, aText, aStart, j + 1 )) {
+                    if (!aHit.hit( aText, aStart, j + 1, this.toVisibleValue( searchNode.mValue ) )) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean forEachLayerValue(Trie<Object> [] aLayers, int aLayerIndex, TrieNode<Object> aBranchNode, StringBuilder aKeyBuffer, Hit<T> aHit) {
+        return OverlayDoubleArrayTrie.forEachNode( aBranchNode, aKeyBuffer, (aKey, aStart, aEnd, aValue) -> {
+            if (aValue == TOMBSTONE || OverlayDoubleArrayTrie.isShadowed( aLayers, aLayerIndex, aKey, aStart, aEnd )) {
+                return true;
+            }
+            return aHit.hit( aKey, aStart, aEnd, this.toVisibleValue( aValue ) );
+        } );
+    }
+
+    /**
+     * 深度优先遍历aNode分支下的所有数据(包括墓碑)，aKeyBuffer是aNode对应的关键字
+     */
+    private static boolean forEachNode(TrieNode<Object> aNode, StringBuilder aKeyBuffer, Hit<Object> aHit) {
+        if (aNode.mValue != null && !aHit.hit( aKeyBuffer, 0, aKeyBuffer.length(), aNode.mValue )) {
+            return false;
+        }
+        for (int i = 0; i < aNode.mChildCount; ++i) {
+            TrieNode<Object> childNode = aNode.mChildrenNodes[ i ];
+            aKeyBuffer.append( childNode.mChar );
+            boolean whetherContinueHit = OverlayDoubleArrayTrie.forEachNode( childNode, aKeyBuffer, aHit );
+            aKeyBuffer.setLength( aKeyBuffer.length() - 1 );
+            if (!whetherContinueHit) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从上往下第一个有此关键字的层的value(数据或者墓碑)，都没有返回null
+     */
+    private Object getOverlayValue(CharSequence aText, int aStart, int aEnd) {
+        TrieNode<Object> node = OverlayDoubleArrayTrie.findNode( this.mOverlay, aText, aStart, aEnd );
+        if (node != null && node.mValue != null) {
+            return node.mValue;
+        }
+        if (this.mFrozen != null) {
+            node = OverlayDoubleArrayTrie.findNode( this.mFrozen, aText, aStart, aEnd );
+            if (node != null && node.mValue != null) {
+                return node.mValue;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 第aLayerIndex层的关键字是否被更上面的层覆盖了
+     */
+    private static boolean isShadowed(Trie<Object> [] aLayers, int aLayerIndex, CharSequence aText, int aStart, int aEnd) {
+        for (int i = 0; i < aLayerIndex; ++i) {
+            TrieNode<Object> node = OverlayDoubleArrayTrie.findNode( aLayers[ i ], aText, aStart, aEnd );
+            if (node != null && node.mValue != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static TrieNode<Object> findNode(Trie<Object> aTrie, CharSequence aText, int aStart, int aEnd) {
+        TrieNode<Object> searchNode = aTrie.mRootTrieNode;
+        for (int i = aStart; i < aEnd && searchNode != null; ++i) {
+            int childNodeIndex = searchNode.binarySearchChildNodeIndex( aText.charAt( i ) );
+            searchNode = childNodeIndex >= 0 ? searchNode.mChildrenNodes[ childNodeIndex ] : null;
+        }
+        return searchNode;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Trie<Object> [] getLayers() {
+        return this.mFrozen != null ? new Trie [] { this.mOverlay, this.mFrozen } : new Trie [] { this.mOverlay };
+    }
+
+    @SuppressWarnings("unchecked")
+    private T toVisibleValue(Object aOverlayValue) {
+        return aOverlayValue == TOMBSTONE ? null : ( T )aOverlayValue;
+    }
+}
@@ -0,0 +1,39 @@
+package org.langzhaozhi.dat;
+
+import java.io.IOException;
+
+/**
+ * 多模式串替换时给出命中的替换内容，参见<code>DoubleArrayTrieAhoCorasick::replaceCaseSensitive</code>
+ */
+@FunctionalInterface
+public interface Replacer<T> {
+    /**
+     * 把命中[aStart, aEnd)的替换内容追加到aOutput，直接追加而不是返回字符串，因此屏蔽之类的替换不需要为每个命中分配对象。
+     * 什么都不追加就是删除，追加aSearchText.subSequence(aStart, aEnd)的内容就是保留原文
+     *
+     * @param aSearchText 被替换的原文
+     * @param aStart 命中词汇在 aSearchText 中的起始包含位置
+     * @param aEnd 命中词汇在 aSearchText 中的结束不包含位置
+     * @param aValue 自动机中同命中词汇绑定在一起的数据对象
+     * @param aOutput 替换结果输出
+     */
+    public void replace(CharSequence aSearchText, int aStart, int aEnd, T aValue, Appendable aOutput) throws IOException;
+
+    /**
+     * 数据对象本身就是替换内容
+     */
+    public static <T extends CharSequence> Replacer<T> byValue() {
+        return (aSearchText, aStart, aEnd, aValue, aOutput) -> aOutput.append( aValue );
+    }
+
+    /**
+     * 命中的每个字符都替换为aMaskChar，用于敏感词屏蔽
+     */
+    public static <T> Replacer<T> mask(char aMaskChar) {
+        return (aSearchText, aStart, aEnd, aValue, aOutput) -> {
+            for (int i = aStart; i < aEnd; ++i) {
+                aOutput.append( aMaskChar );
+            }
+        };
+    }
+}
@@ -0,0 +1,19 @@
+package org.langzhaozhi.dat;
+
+/**
+ * 流式匹配命中的通知回调，参见<code>DoubleArrayTrieStreamMatcher</code>。同<code>Hit</code>不同的是没有一个完整的匹配字符串，
+ * 位置是从流的开头算起的绝对位置，用long表示，可以超过2G个字符
+ */
+@FunctionalInterface
+public interface StreamHit<T> {
+    /**
+     * 匹配命中词汇后的回调,通过返回true和false来决定是继续匹配(true)还是彻底中止匹配过程(false)
+     *
+     * @param aStart 命中词汇在流中的起始包含位置，0表示流的第一个字符
+     * @param aEnd 命中词汇在流中的结束不包含位置
+     * @param aValue 自动机中同命中词汇绑定在一起的数据对象
+     *
+     * @return 返回true表示继续匹配并可能继续收到通知,返回false表示停止整个匹配过程
+     */
+    public boolean hit(long aStart, long aEnd, T aValue);
+}
@@ -0,0 +1,56 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试编译成DFA的AC：各种稠密深度下的匹配结果及其先后顺序都必须同<code>DoubleArrayTrieAhoCorasick::matchCaseSensitive</code>完全一样，
+ * 文本中有关键字中没有出现过的字符(字符类0)，回调中途要求停止时已经通知的结果也必须一样
+ */
+public class TestAhoCorasickDfa {
+    private static final String KEY_CHARS = "abcd中国";
+    //xy和最大字符\uffff不在任何关键字中
+    private static final String TEXT_CHARS = "abcd中国xy\uffff";
+
+    public static void main(String [] args) {
+        Random random = new Random( 11 );
+        int [] denseDepths = { 0, 1, 2, Integer.MAX_VALUE };
+        long totalHitCount = 0;
+        for (int round = 0; round < 300; ++round) {
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            for (int i = 0, keyCount = 1 + random.nextInt( round % 10 == 0 ? 500 : 30 ); i < keyCount; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) ), i );
+            }
+            DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            List<DoubleArrayTrieAhoCorasickDfa<Integer>> dfas = new ArrayList<DoubleArrayTrieAhoCorasickDfa<Integer>>();
+            for (int nextDenseDepth : denseDepths) {
+                dfas.add( ac.compileDfa( nextDenseDepth ) );
+            }
+            for (int i = 0; i < 20; ++i) {
+                String text = TestDoubleArrayTrieLayout.randomText( random, TEXT_CHARS, random.nextInt( 200 ) );
+                List<String> expectedHits = new ArrayList<String>();
+                ac.matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> expectedHits.add( aStart + "," + aEnd + "=" + aValue ) );
+                totalHitCount += expectedHits.size();
+                for (int j = 0; j < denseDepths.length; ++j) {
+                    List<String> hits = new ArrayList<String>();
+                    dfas.get( j ).matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> hits.add( aStart + "," + aEnd + "=" + aValue ) );
+                    if (!expectedHits.equals( hits )) {
+                        throw new Error( "dfa(" + denseDepths[ j ] + ") error:" + keyValueMap.keySet() + ":" + text + ":" + expectedHits + "!=" + hits );
+                    }
+                    if (!expectedHits.isEmpty()) {
+                        //第stopAt个命中时要求停止
+                        int stopAt = random.nextInt( expectedHits.size() );
+                        List<String> stoppedHits = new ArrayList<String>();
+                        dfas.get( j ).matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> stoppedHits.add( aStart + "," + aEnd + "=" + aValue ) && stoppedHits.size() <= stopAt );
+                        if (!expectedHits.subList( 0, stopAt + 1 ).equals( stoppedHits )) {
+                            throw new Error( "dfa(" + denseDepths[ j ] + ") stop error:" + text + ":" + stoppedHits );
+                        }
+                    }
+                }
+            }
+        }
+        System.out.println( "DFA匹配结果同AC一致，命中总数:" + totalHitCount );
+    }
+}
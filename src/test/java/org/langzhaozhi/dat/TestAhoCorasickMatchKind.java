@@ -0,0 +1,93 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 测试各种命中语义：对随机关键字和文本，用暴力方法从全部命中中按语义挑选互不重叠的命中，必须同<code>matchCaseSensitive(aMatcherText, aMatchKind, aHit)</code>完全一样
+ */
+public class TestAhoCorasickMatchKind {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 17 );
+        for (int round = 0; round < 2000; ++round) {
+            LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 15 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 5 ) );
+                keyValueMap.put( nextKey, "<" + nextKey + ">" );
+            }
+            DoubleArrayTrieAhoCorasick<String> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            String text = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 40 ) );
+            for (MatchKind nextMatchKind : MatchKind.values()) {
+                List<int []> expectedHits = TestAhoCorasickMatchKind.bruteForce( keyValueMap, text, nextMatchKind );
+                List<String> expected = new ArrayList<String>();
+                for (int [] nextHit : expectedHits) {
+                    expected.add( nextHit[ 0 ] + "," + nextHit[ 1 ] + "=" + keyValueMap.get( text.substring( nextHit[ 0 ], nextHit[ 1 ] ) ) );
+                }
+                List<String> hits = new ArrayList<String>();
+                ac.matchCaseSensitive( text, nextMatchKind, (aHitText, aStart, aEnd, aValue) -> hits.add( aStart + "," + aEnd + "=" + aValue ) );
+                if (!expected.equals( hits )) {
+                    throw new Error( nextMatchKind + " error:" + keyValueMap.keySet() + ":" + text + ":" + expected + "!=" + hits );
+                }
+                if (!expected.isEmpty()) {
+                    int stopAt = random.nextInt( expected.size() );
+                    List<String> stoppedHits = new ArrayList<String>();
+                    ac.matchCaseSensitive( text, nextMatchKind, (aHitText, aStart, aEnd, aValue) -> stoppedHits.add( aStart + "," + aEnd + "=" + aValue ) && stoppedHits.size() <= stopAt );
+                    if (!expected.subList( 0, stopAt + 1 ).equals( stoppedHits )) {
+                        throw new Error( nextMatchKind + " stop error:" + text + ":" + stoppedHits );
+                    }
+                }
+            }
+        }
+        System.out.println( "各种命中语义同暴力结果一致" );
+    }
+
+    /**
+     * 暴力方法：每次从上一个命中的结束位置开始，在所有完整落在后面的命中中按语义挑一个
+     */
+    static List<int []> bruteForce(Map<String, ?> aKeyValueMap, String aText, MatchKind aMatchKind) {
+        List<int []> allHits = new ArrayList<int []>();
+        for (int end = 1; end <= aText.length(); ++end) {
+            //标准AC语义的先后顺序：按结束位置，同一结束位置从长到短
+            for (int start = 0; start < end; ++start) {
+                if (aKeyValueMap.containsKey( aText.substring( start, end ) )) {
+                    allHits.add( new int [] { start, end } );
+                }
+            }
+        }
+        if (aMatchKind == MatchKind.STANDARD) {
+            return allHits;
+        }
+        List<int []> selectedHits = new ArrayList<int []>();
+        int position = 0;
+        while (true) {
+            int [] best = null;
+            for (int [] nextHit : allHits) {
+                if (nextHit[ 0 ] < position) {
+                    continue;
+                }
+                if (best == null) {
+                    best = nextHit;
+                }
+                else if (aMatchKind == MatchKind.NON_OVERLAPPING) {
+                    //最早结束，同一结束位置取最长的
+                    if (nextHit[ 1 ] < best[ 1 ] || (nextHit[ 1 ] == best[ 1 ] && nextHit[ 0 ] < best[ 0 ])) {
+                        best = nextHit;
+                    }
+                }
+                else if (nextHit[ 0 ] < best[ 0 ] || (nextHit[ 0 ] == best[ 0 ] && (aMatchKind == MatchKind.LEFTMOST_LONGEST ? nextHit[ 1 ] > best[ 1 ] : nextHit[ 1 ] < best[ 1 ]))) {
+                    best = nextHit;
+                }
+            }
+            if (best == null) {
+                return selectedHits;
+            }
+            selectedHits.add( best );
+            position = best[ 1 ];
+        }
+    }
+}
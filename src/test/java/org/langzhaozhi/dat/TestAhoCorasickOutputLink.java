@@ -0,0 +1,103 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 测试沿输出链通知命中：沿failure链上溯时，每个结束位置上是关键字的后缀按从长到短的顺序通知，
+ * 因此大小写敏感匹配的命中及其先后顺序必须同按结束位置从前到后、按长度从长到短的暴力匹配完全一样，中途停止时已经通知的也一样；
+ * 大小写不敏感时每个结束位置上的(开始,结束)集合一样。嵌套的"a..ab"关键字加上长串的'a'这种failure链很长的情况也要覆盖
+ */
+public class TestAhoCorasickOutputLink {
+    private static final String KEY_CHARS = "aAbB中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 12 );
+        for (int round = 0; round < 2000; ++round) {
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            if (round % 10 == 0) {
+                //嵌套的"a..ab"，每个"a..a"都是另一个的后缀
+                for (int i = 1; i <= 1 + random.nextInt( 16 ); ++i) {
+                    StringBuilder nestedKey = new StringBuilder();
+                    for (int j = 0; j < i; ++j) {
+                        nestedKey.append( 'a' );
+                    }
+                    keyValueMap.putIfAbsent( nestedKey.toString(), keyValueMap.size() );
+                    keyValueMap.putIfAbsent( nestedKey.append( 'b' ).toString(), keyValueMap.size() );
+                }
+            }
+            for (int i = 0, keyCount = 1 + random.nextInt( 30 ); i < keyCount; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 5 ) ), keyValueMap.size() );
+            }
+            DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            String text = round % 10 == 0 ? TestDoubleArrayTrieLayout.randomText( random, "aaaaaaab", random.nextInt( 200 ) ) : TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 60 ) );
+
+            List<String> expectedHits = TestAhoCorasickOutputLink.failureChainHits( keyValueMap, text, false );
+            List<String> hits = new ArrayList<String>();
+            ac.matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> hits.add( aStart + "," + aEnd + "=" + aValue ) );
+            if (!expectedHits.equals( hits )) {
+                throw new Error( "output link error: " + keyValueMap.keySet() + "," + text + "," + expectedHits + "!=" + hits );
+            }
+            if (!expectedHits.isEmpty()) {
+                int stopAt = random.nextInt( expectedHits.size() );
+                List<String> stoppedHits = new ArrayList<String>();
+                ac.matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> stoppedHits.add( aStart + "," + aEnd + "=" + aValue ) && stoppedHits.size() <= stopAt );
+                if (!expectedHits.subList( 0, stopAt + 1 ).equals( stoppedHits )) {
+                    throw new Error( "output link stop error: " + stopAt + "," + stoppedHits );
+                }
+            }
+
+            List<String> expectedInsensitiveHits = TestAhoCorasickOutputLink.failureChainHits( keyValueMap, text, true );
+            List<String> insensitiveHits = new ArrayList<String>();
+            int [] lastEnd = new int [ 1 ];
+            ac.matchCaseInsensitive( text, (aHitText, aStart, aEnd, aValue) -> {
+                if (aEnd < lastEnd[ 0 ]) {
+                    throw new Error( "output link case insensitive error: 结束位置" + aEnd + "在" + lastEnd[ 0 ] + "之后才通知" );
+                }
+                lastEnd[ 0 ] = aEnd;
+                return insensitiveHits.add( aEnd + "," + aStart );
+            } );
+            Collections.sort( expectedInsensitiveHits );
+            Collections.sort( insensitiveHits );
+            if (!expectedInsensitiveHits.equals( insensitiveHits )) {
+                throw new Error( "output link case insensitive error: " + keyValueMap.keySet() + "," + text + "," + expectedInsensitiveHits + "!=" + insensitiveHits );
+            }
+        }
+        System.out.println( "沿输出链通知的命中同沿failure链的完全一样" );
+    }
+
+    /**
+     * 沿failure链上溯的结果：结束位置从前到后，同一结束位置上的后缀从长到短。大小写不敏感时只返回不重复的"结束,开始"
+     */
+    private static List<String> failureChainHits(Map<String, Integer> aKeyValueMap, String aText, boolean aCaseInsensitive) {
+        int maxKeyLength = 0;
+        for (String nextKey : aKeyValueMap.keySet()) {
+            maxKeyLength = Math.max( maxKeyLength, nextKey.length() );
+        }
+        List<String> hits = new ArrayList<String>();
+        for (int end = 1; end <= aText.length(); ++end) {
+            for (int start = Math.max( 0, end - maxKeyLength ); start < end; ++start) {
+                String suffix = aText.substring( start, end );
+                if (!aCaseInsensitive) {
+                    Integer value = aKeyValueMap.get( suffix );
+                    if (value != null) {
+                        hits.add( start + "," + end + "=" + value );
+                    }
+                }
+                else {
+                    for (String nextKey : aKeyValueMap.keySet()) {
+                        if (nextKey.equalsIgnoreCase( suffix )) {
+                            hits.add( end + "," + start );
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        return hits;
+    }
+}
@@ -0,0 +1,166 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试并行分块AC匹配：按文本顺序通知时结果及其先后顺序必须同<code>matchCaseSensitive</code>完全一样，不按顺序时结果集合一样。
+ * 关键字恰好在块边界结束、从块边界开始、跨越块边界，以及关键字比最小块长度还长(块长度由最长关键字决定)的情况都要覆盖。
+ * 按顺序通知时aHit抛出异常或者某块的匹配抛出异常，后面还没开始的块都要取消掉
+ */
+public class TestAhoCorasickParallel {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 15 );
+        ForkJoinPool forkJoinPool = new ForkJoinPool( 4 );
+        try {
+            //短关键字，块长度就是MIN_PARALLEL_CHUNK_LENGTH
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            for (int i = 0; i < 200; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 8 ) ), i );
+            }
+            //安放的关键字同最长关键字一样长，恰好只有最后一个字符进入块内时才需要全部的重叠扫描
+            String plantedKey = "ZZZZZZZZ";
+            keyValueMap.put( plantedKey, -1 );
+            StringBuilder text = new StringBuilder( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 300000 ) );
+            int chunkLength = DoubleArrayTrieAhoCorasick.MIN_PARALLEL_CHUNK_LENGTH;
+            for (int boundary = chunkLength, variant = 0; boundary < text.length(); boundary += chunkLength, ++variant) {
+                //依次是: 恰好在边界结束、越过边界一个字符结束、从边界开始、在边界前一个字符开始
+                int plantedEnd = new int [] { boundary, boundary + 1, boundary + plantedKey.length(), boundary - 1 + plantedKey.length() }[ variant % 4 ];
+                text.replace( plantedEnd - plantedKey.length(), plantedEnd, plantedKey );
+                text.replace( boundary + 1000, boundary + 1000 + plantedKey.length(), plantedKey );
+            }
+            text.replace( 0, plantedKey.length(), plantedKey ).replace( text.length() - plantedKey.length(), text.length(), plantedKey );
+            TestAhoCorasickParallel.verify( keyValueMap, text.toString(), forkJoinPool, random );
+
+            //比MIN_PARALLEL_CHUNK_LENGTH还长的关键字，块长度变成最长关键字长度的16倍
+            String longKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, chunkLength + 5000 ).replace( 'a', 'L' );
+            keyValueMap.put( longKey, -2 );
+            int longChunkLength = longKey.length() << 4;
+            StringBuilder longText = new StringBuilder( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, longChunkLength * 2 + 300000 ) );
+            //第一个边界越过一个字符结束，第二个边界恰好结束，再有一个从第一个边界开始
+            longText.replace( longChunkLength + 1 - longKey.length(), longChunkLength + 1, longKey );
+            longText.replace( longChunkLength * 2 - longKey.length(), longChunkLength * 2, longKey );
+            longText.replace( longChunkLength + 1, longChunkLength + 1 + longKey.length(), longKey );
+            TestAhoCorasickParallel.verify( keyValueMap, longText.toString(), forkJoinPool, random );
+            TestAhoCorasickParallel.verifyCancel( keyValueMap, random );
+        }
+        finally {
+            forkJoinPool.shutdown();
+        }
+    }
+
+    private static void verifyCancel(Map<String, Integer> aKeyValueMap, Random aRandom) {
+        DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( aKeyValueMap ) ).asAhoCorasick();
+        String text = TestDoubleArrayTrieLayout.randomText( aRandom, KEY_CHARS, 4000000 );
+        //只有一个工作线程，分成4块按提交顺序逐块匹配，第一块出错时最多只有第二块已经开始了
+        for (boolean failInText : new boolean [] { false, true }) {
+            ForkJoinPool singleForkJoinPool = new ForkJoinPool( 1 );
+            CountingText countingText = new CountingText( text, failInText ? 100 : -1 );
+            try {
+                ac.matchCaseSensitiveParallel( countingText, (aHitText, aStart, aEnd, aValue) -> {
+                    throw new IllegalStateException( "hit" );
+                }, true, singleForkJoinPool );
+                throw new Error( "parallel cancel error: 异常没有抛出来" );
+            }
+            catch (RuntimeException e) {
+                //aHit抛出的异常原样抛出，块内的异常由join重新抛出
+            }
+            singleForkJoinPool.shutdown();
+            try {
+                singleForkJoinPool.awaitTermination( 1, TimeUnit.MINUTES );
+            }
+            catch (InterruptedException e) {
+                throw new Error( e );
+            }
+            if (countingText.mReadCount.get() >= text.length() / 4 * 3) {
+                throw new Error( "parallel cancel error: 出错后后面的块没有取消, failInText=" + failInText + ", 读取字符数" + countingText.mReadCount.get() );
+            }
+        }
+    }
+
+    /**
+     * 统计读取了多少个字符，读到aFailIndex时抛出异常
+     */
+    private static final class CountingText implements CharSequence {
+        private final String mText;
+        private final int mFailIndex;
+        final AtomicLong mReadCount = new AtomicLong();
+
+        CountingText(String aText, int aFailIndex) {
+            this.mText = aText;
+            this.mFailIndex = aFailIndex;
+        }
+
+        @Override
+        public int length() {
+            return this.mText.length();
+        }
+
+        @Override
+        public char charAt(int aIndex) {
+            if (aIndex == this.mFailIndex) {
+                throw new IllegalStateException( "text" );
+            }
+            this.mReadCount.incrementAndGet();
+            return this.mText.charAt( aIndex );
+        }
+
+        @Override
+        public CharSequence subSequence(int aStart, int aEnd) {
+            return this.mText.subSequence( aStart, aEnd );
+        }
+    }
+
+    private static void verify(Map<String, Integer> aKeyValueMap, String aText, ForkJoinPool aForkJoinPool, Random aRandom) {
+        DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( aKeyValueMap ) ).asAhoCorasick();
+        List<String> expectedHits = new ArrayList<String>();
+        ac.matchCaseSensitive( aText, (aHitText, aStart, aEnd, aValue) -> expectedHits.add( aStart + "," + aEnd + "=" + aValue ) );
+        int planted = 0;
+        for (String nextHit : expectedHits) {
+            if (nextHit.endsWith( "=-1" ) || nextHit.endsWith( "=-2" )) {
+                ++planted;
+            }
+        }
+        List<String> orderedHits = new ArrayList<String>();
+        ac.matchCaseSensitiveParallel( aText, (aHitText, aStart, aEnd, aValue) -> orderedHits.add( aStart + "," + aEnd + "=" + aValue ), true, aForkJoinPool );
+        if (!expectedHits.equals( orderedHits )) {
+            throw new Error( "parallel ordered error: 命中个数" + expectedHits.size() + "," + orderedHits.size() + TestAhoCorasickParallel.firstDifference( expectedHits, orderedHits ) );
+        }
+        ConcurrentLinkedQueue<String> unorderedHitQueue = new ConcurrentLinkedQueue<String>();
+        ac.matchCaseSensitiveParallel( aText, (aHitText, aStart, aEnd, aValue) -> unorderedHitQueue.add( aStart + "," + aEnd + "=" + aValue ), false, aForkJoinPool );
+        List<String> sortedExpectedHits = new ArrayList<String>( expectedHits );
+        List<String> unorderedHits = new ArrayList<String>( unorderedHitQueue );
+        Collections.sort( sortedExpectedHits );
+        Collections.sort( unorderedHits );
+        if (!sortedExpectedHits.equals( unorderedHits )) {
+            throw new Error( "parallel unordered error: 命中个数" + sortedExpectedHits.size() + "," + unorderedHits.size() + TestAhoCorasickParallel.firstDifference( sortedExpectedHits, unorderedHits ) );
+        }
+        //按顺序通知时中途停止，已经通知的就是前面那些
+        int stopAt = aRandom.nextInt( expectedHits.size() );
+        List<String> stoppedHits = new ArrayList<String>();
+        ac.matchCaseSensitiveParallel( aText, (aHitText, aStart, aEnd, aValue) -> stoppedHits.add( aStart + "," + aEnd + "=" + aValue ) && stoppedHits.size() <= stopAt, true, aForkJoinPool );
+        if (!expectedHits.subList( 0, stopAt + 1 ).equals( stoppedHits )) {
+            throw new Error( "parallel ordered stop error:" + stopAt + "," + stoppedHits.size() );
+        }
+        System.out.println( "文本长度:" + aText.length() + ", 命中个数:" + expectedHits.size() + ", 边界处安放的命中:" + planted );
+    }
+
+    private static String firstDifference(List<String> aExpected, List<String> aActual) {
+        for (int i = 0; i < Math.min( aExpected.size(), aActual.size() ); ++i) {
+            if (!aExpected.get( i ).equals( aActual.get( i ) )) {
+                return ", 第" + i + "个不同:" + aExpected.get( i ) + "!=" + aActual.get( i );
+            }
+        }
+        return "";
+    }
+}
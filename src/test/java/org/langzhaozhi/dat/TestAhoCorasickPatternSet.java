@@ -0,0 +1,92 @@
+package org.langzhaozhi.dat;
+
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 测试不回调的匹配：对随机关键字和文本，<code>containsAny</code>、<code>countMatches</code>和<code>matchedPatternSet</code>必须同暴力找出的全部命中一致，
+ * 模式串编号经<code>getPatternValue</code>映射回数据后必须正好是出现过的关键字
+ */
+public class TestAhoCorasickPatternSet {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 19 );
+        for (int round = 0; round < 2000; ++round) {
+            //关键字个数有时超过64，让long数组跨越多个元素
+            LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( round % 2 == 0 ? 15 : 150 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 4 ) );
+                keyValueMap.put( nextKey, "<" + nextKey + ">" );
+            }
+            DoubleArrayTrieAhoCorasick<String> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            int patternCount = ac.getPatternCount();
+            if (patternCount != keyValueMap.size()) {
+                throw new Error( "getPatternCount error:" + patternCount + "!=" + keyValueMap.size() );
+            }
+            //数据各不相同，因此可以由数据反查编号
+            Map<String, Integer> valueToPatternId = new HashMap<String, Integer>();
+            for (int patternId = 0; patternId < patternCount; ++patternId) {
+                String patternValue = ac.getPatternValue( patternId );
+                if (patternValue == null || valueToPatternId.put( patternValue, patternId ) != null) {
+                    throw new Error( "getPatternValue error:" + patternId + "=" + patternValue );
+                }
+            }
+            if (!valueToPatternId.keySet().equals( new HashSet<String>( keyValueMap.values() ) )) {
+                throw new Error( "getPatternValue error:" + valueToPatternId.keySet() + "!=" + keyValueMap.values() );
+            }
+
+            BitSet accumulatedExpected = new BitSet();
+            BitSet accumulated = new BitSet();
+            for (int textIndex = 0; textIndex < 2; ++textIndex) {
+                String text = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 40 ) );
+                List<int []> allHits = TestAhoCorasickMatchKind.bruteForce( keyValueMap, text, MatchKind.STANDARD );
+                BitSet expected = new BitSet();
+                for (int [] nextHit : allHits) {
+                    expected.set( valueToPatternId.get( keyValueMap.get( text.substring( nextHit[ 0 ], nextHit[ 1 ] ) ) ) );
+                }
+                if (ac.containsAny( text ) == allHits.isEmpty()) {
+                    throw new Error( "containsAny error:" + keyValueMap.keySet() + ":" + text );
+                }
+                if (ac.countMatches( text ) != allHits.size()) {
+                    throw new Error( "countMatches error:" + keyValueMap.keySet() + ":" + text + ":" + ac.countMatches( text ) + "!=" + allHits.size() );
+                }
+                BitSet fresh = new BitSet();
+                ac.matchedPatternSet( text, fresh );
+                if (!expected.equals( fresh )) {
+                    throw new Error( "matchedPatternSet error:" + keyValueMap.keySet() + ":" + text + ":" + expected + "!=" + fresh );
+                }
+                long [] patternBits = new long [ (patternCount + 63) >>> 6 ];
+                ac.matchedPatternSet( text, patternBits );
+                if (!expected.equals( BitSet.valueOf( patternBits ) )) {
+                    throw new Error( "matchedPatternSet(long[]) error:" + keyValueMap.keySet() + ":" + text + ":" + expected + "!=" + BitSet.valueOf( patternBits ) );
+                }
+                //不clear()，累积两个文本的结果
+                accumulatedExpected.or( expected );
+                ac.matchedPatternSet( text, accumulated );
+                if (!accumulatedExpected.equals( accumulated )) {
+                    throw new Error( "matchedPatternSet accumulate error:" + keyValueMap.keySet() + ":" + text + ":" + accumulatedExpected + "!=" + accumulated );
+                }
+            }
+
+            if (patternCount > 64) {
+                boolean shortRejected = false;
+                try {
+                    ac.matchedPatternSet( "", new long [ ((patternCount + 63) >>> 6) - 1 ] );
+                }
+                catch (Error e) {
+                    shortRejected = true;
+                }
+                if (!shortRejected) {
+                    throw new Error( "matchedPatternSet(long[]) error: 长度不够的long数组居然可以" );
+                }
+            }
+        }
+        System.out.println( "不回调的匹配同暴力结果一致" );
+    }
+}
@@ -0,0 +1,87 @@
+package org.langzhaozhi.dat;
+
+import java.nio.BufferOverflowException;
+import java.nio.CharBuffer;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试多模式串替换：按暴力方法挑出的互不重叠命中拼出期望结果，String、StringBuilder、CharBuffer三种输出都必须完全一样
+ */
+public class TestAhoCorasickReplace {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 18 );
+        MatchKind [] replaceMatchKinds = { MatchKind.NON_OVERLAPPING, MatchKind.LEFTMOST_FIRST, MatchKind.LEFTMOST_LONGEST };
+        @SuppressWarnings("unchecked")
+        Replacer<String> [] replacers = new Replacer [] { Replacer.<String> byValue(), Replacer.<String> mask( '*' ), (aSearchText, aStart, aEnd, aValue, aOutput) -> {
+            //删除
+        }, (aSearchText, aStart, aEnd, aValue, aOutput) -> aOutput.append( aSearchText, aStart, aEnd ) };
+        for (int round = 0; round < 2000; ++round) {
+            LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 10 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 4 ) );
+                keyValueMap.put( nextKey, "<" + nextKey + ">" );
+            }
+            DoubleArrayTrieAhoCorasick<String> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            String text = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 30 ) );
+            for (MatchKind nextMatchKind : replaceMatchKinds) {
+                List<int []> hits = TestAhoCorasickMatchKind.bruteForce( keyValueMap, text, nextMatchKind );
+                for (int r = 0; r < replacers.length; ++r) {
+                    StringBuilder expected = new StringBuilder();
+                    int position = 0;
+                    for (int [] nextHit : hits) {
+                        String hitKey = text.substring( nextHit[ 0 ], nextHit[ 1 ] );
+                        expected.append( text, position, nextHit[ 0 ] );
+                        expected.append( r == 0 ? keyValueMap.get( hitKey ) : r == 1 ? hitKey.replaceAll( ".", "*" ) : r == 2 ? "" : hitKey );
+                        position = nextHit[ 1 ];
+                    }
+                    expected.append( text, position, text.length() );
+
+                    String replaced = ac.replaceCaseSensitive( text, nextMatchKind, replacers[ r ] );
+                    if (!expected.toString().equals( replaced ) || (hits.isEmpty() && replaced != text)) {
+                        throw new Error( nextMatchKind + " replace error:" + keyValueMap.keySet() + ":" + text + ":" + expected + "!=" + replaced );
+                    }
+                    if (nextMatchKind == MatchKind.LEFTMOST_LONGEST && !replaced.equals( ac.replaceCaseSensitive( text, replacers[ r ] ) )) {
+                        throw new Error( "default replace error:" + text );
+                    }
+                    //StringBuilder: 追加在原有内容之后
+                    StringBuilder builderOutput = new StringBuilder( "前缀" );
+                    if (ac.replaceCaseSensitive( text, nextMatchKind, replacers[ r ], builderOutput ) == hits.isEmpty() || !builderOutput.toString().equals( "前缀" + expected )) {
+                        throw new Error( nextMatchKind + " StringBuilder replace error:" + text + ":" + builderOutput );
+                    }
+                    //CharBuffer: 写在当前位置
+                    CharBuffer bufferOutput = CharBuffer.allocate( expected.length() + 3 );
+                    bufferOutput.put( "前缀" );
+                    if (ac.replaceCaseSensitive( text, nextMatchKind, replacers[ r ], bufferOutput ) == hits.isEmpty() || bufferOutput.position() != expected.length() + 2 || !(( CharBuffer )bufferOutput.flip()).toString().equals( "前缀" + expected )) {
+                        throw new Error( nextMatchKind + " CharBuffer replace error:" + text + ":" + bufferOutput );
+                    }
+                    if (expected.length() > 0) {
+                        try {
+                            ac.replaceCaseSensitive( text, nextMatchKind, replacers[ r ], CharBuffer.allocate( expected.length() - 1 ) );
+                            throw new Error( "CharBuffer replace error: 空间不够却没有异常" );
+                        }
+                        catch (BufferOverflowException e) {
+                            //正确
+                        }
+                    }
+                }
+            }
+        }
+        LinkedHashMap<String, String> singleKeyMap = new LinkedHashMap<String, String>();
+        singleKeyMap.put( "a", "b" );
+        boolean standardRejected = false;
+        try {
+            DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( singleKeyMap ) ).asAhoCorasick().replaceCaseSensitive( "aaa", MatchKind.STANDARD, Replacer.<String> byValue() );
+        }
+        catch (Error e) {
+            standardRejected = true;
+        }
+        if (!standardRejected) {
+            throw new Error( "replace error: STANDARD语义居然可以替换" );
+        }
+        System.out.println( "替换结果同暴力结果一致" );
+    }
+}
@@ -0,0 +1,112 @@
+package org.langzhaozhi.dat;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 测试批量匹配：每个文档的命中区间必须同单独对这个文档<code>matchCaseSensitive</code>的结果完全一样，
+ * 覆盖0个文档、只有一个分区、多个分区，以及执行器拒绝执行和分区匹配出错时异常抛给调用者
+ */
+public class TestBatchHits {
+    private static final String KEY_CHARS = "abc中国";
+
+    public static void main(String [] args) {
+        Random random = new Random( 16 );
+        LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 100; ++i) {
+            keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 5 ) ), i );
+        }
+        DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+        ExecutorService executor = Executors.newFixedThreadPool( 3 );
+        try {
+            TestBatchHits.verify( ac, Collections.<String> emptyList(), ac.matchCaseSensitiveBatch( Collections.<String> emptyList(), executor ) );
+            for (int nextDocumentCount : new int [] { 1, 10, DoubleArrayTrieBatchHits.MIN_PARTITION_DOCUMENT_COUNT, DoubleArrayTrieBatchHits.MIN_PARTITION_DOCUMENT_COUNT * 8 + 7 }) {
+                List<String> documents = new ArrayList<String>();
+                for (int i = 0; i < nextDocumentCount; ++i) {
+                    //有空文档和没有命中的文档
+                    documents.add( random.nextInt( 10 ) == 0 ? "" : TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 60 ) ) );
+                }
+                TestBatchHits.verify( ac, documents, ac.matchCaseSensitiveBatch( documents, executor ) );
+                TestBatchHits.verify( ac, documents, ac.matchCaseSensitiveBatch( documents ) );
+            }
+
+            //多个分区时执行器拒绝执行
+            List<String> documents = new ArrayList<String>();
+            for (int i = 0; i < DoubleArrayTrieBatchHits.MIN_PARTITION_DOCUMENT_COUNT * 8; ++i) {
+                documents.add( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 20 ) );
+            }
+            try {
+                ac.matchCaseSensitiveBatch( documents, (aRunnable) -> {
+                    throw new RejectedExecutionException( "模拟执行器已关闭" );
+                } );
+                throw new Error( "batch error: 执行器拒绝执行却没有异常" );
+            }
+            catch (RejectedExecutionException e) {
+                //正确
+            }
+            //某个分区匹配时出错
+            List<String> failingDocuments = new AbstractList<String>() {
+                @Override
+                public String get(int aIndex) {
+                    if (aIndex == documents.size() - 1) {
+                        throw new IllegalStateException( "模拟文档读取出错" );
+                    }
+                    return documents.get( aIndex );
+                }
+
+                @Override
+                public int size() {
+                    return documents.size();
+                }
+            };
+            try {
+                ac.matchCaseSensitiveBatch( failingDocuments, executor );
+                throw new Error( "batch error: 分区出错却没有异常" );
+            }
+            catch (CompletionException e) {
+                if (!(e.getCause() instanceof IllegalStateException)) {
+                    throw new Error( "batch error: 异常原因不对", e );
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        System.out.println( "批量匹配结果同逐个文档匹配一致" );
+    }
+
+    private static void verify(DoubleArrayTrieAhoCorasick<Integer> aAhoCorasick, List<String> aDocuments, DoubleArrayTrieBatchHits<Integer> aBatchHits) {
+        if (aBatchHits.getDocumentCount() != aDocuments.size()) {
+            throw new Error( "batch error: 文档个数不对" );
+        }
+        int totalHitCount = 0;
+        for (int d = 0; d < aDocuments.size(); ++d) {
+            String document = aDocuments.get( d );
+            List<String> expectedHits = new ArrayList<String>();
+            aAhoCorasick.matchCaseSensitive( document, (aHitText, aStart, aEnd, aValue) -> expectedHits.add( aStart + "," + aEnd + "=" + aValue ) );
+            List<String> hits = new ArrayList<String>();
+            for (int i = aBatchHits.getHitOffset( d ), iend = i + aBatchHits.getHitCount( d ); i < iend; ++i) {
+                hits.add( aBatchHits.getStart( i ) + "," + aBatchHits.getEnd( i ) + "=" + aBatchHits.getValue( i ) );
+            }
+            List<String> forEachHits = new ArrayList<String>();
+            aBatchHits.forEachHit( d, document, (aHitText, aStart, aEnd, aValue) -> forEachHits.add( aHitText.subSequence( aStart, aEnd ) + "@" + aStart + "," + aEnd + "=" + aValue ) );
+            List<String> expectedForEachHits = new ArrayList<String>();
+            aAhoCorasick.matchCaseSensitive( document, (aHitText, aStart, aEnd, aValue) -> expectedForEachHits.add( aHitText.subSequence( aStart, aEnd ) + "@" + aStart + "," + aEnd + "=" + aValue ) );
+            if (!expectedHits.equals( hits ) || !expectedForEachHits.equals( forEachHits )) {
+                throw new Error( "batch error: 文档" + d + ":" + document + ":" + expectedHits + "!=" + hits );
+            }
+            totalHitCount += expectedHits.size();
+        }
+        if (aBatchHits.getTotalHitCount() != totalHitCount) {
+            throw new Error( "batch error: 命中总数不对" );
+        }
+    }
+}
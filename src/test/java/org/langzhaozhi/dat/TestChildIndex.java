@@ -0,0 +1,71 @@
+package org.langzhaozhi.dat;
+
+import java.nio.IntBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试父子关系索引：对随机关键字，每个节点在CSR区间中的儿子必须同从头到尾扫描mCheck找出来的完全一样(按下标升序，也就是按字符升序)，
+ * 空位和叶子的区间为空，<code>getChildIndex()</code>只建立一次
+ */
+public class TestChildIndex {
+    private static final String KEY_CHARS = "abcdAB中国人民";
+
+    public static void main(String [] args) {
+        Random random = new Random( 21 );
+        for (int round = 0; round < 300; ++round) {
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            for (int i = 0, keyCount = 1 + random.nextInt( round % 10 == 0 ? 3000 : 50 ); i < keyCount; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 7 ) ), i );
+            }
+            DoubleArrayTrie<Integer> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+            ChildIndex childIndex = dat.getChildIndex();
+            if (childIndex != dat.getChildIndex()) {
+                throw new Error( "child index error: 建立了不止一次" );
+            }
+            TestChildIndex.verify( dat, childIndex );
+            TestChildIndex.verify( dat, ChildIndex.build( IntBuffer.wrap( dat.mCheckArray ) ) );
+        }
+        System.out.println( "父子关系索引同逐个扫描mCheck的结果一样" );
+    }
+
+    private static void verify(DoubleArrayTrie<Integer> aDat, ChildIndex aChildIndex) {
+        int [] checkArray = aDat.mCheckArray;
+        int datArrayLength = checkArray.length;
+        //朴素地从头到尾扫描mCheck，按父节点把儿子收集起来，下标是升序的
+        @SuppressWarnings("unchecked")
+        List<Integer> [] expectedChildren = new List [ datArrayLength ];
+        int childCount = 0;
+        for (int i = 1; i < datArrayLength; ++i) {
+            int parentIndex = checkArray[ i ];
+            if (parentIndex != DoubleArrayTrie.EMPTY_CHECK) {
+                if (expectedChildren[ parentIndex ] == null) {
+                    expectedChildren[ parentIndex ] = new ArrayList<Integer>();
+                }
+                expectedChildren[ parentIndex ].add( i );
+                ++childCount;
+            }
+        }
+        int [] childStartArray = aChildIndex.mChildStartArray;
+        int [] childArray = aChildIndex.mChildArray;
+        if (childStartArray.length != datArrayLength + 1 || childStartArray[ 0 ] != 0 || childStartArray[ datArrayLength ] != childArray.length || childCount != childArray.length) {
+            throw new Error( "child index error: 区间数组长度、首尾或者儿子总数不对" );
+        }
+        for (int parentIndex = 0; parentIndex < datArrayLength; ++parentIndex) {
+            List<Integer> children = new ArrayList<Integer>();
+            for (int childPosition = childStartArray[ parentIndex ]; childPosition < childStartArray[ parentIndex + 1 ]; ++childPosition) {
+                int childIndex = childArray[ childPosition ];
+                if (!children.isEmpty() && aDat.getChar( childIndex ) <= aDat.getChar( children.get( children.size() - 1 ) )) {
+                    throw new Error( "child index error: " + parentIndex + "的儿子不是按字符升序" );
+                }
+                children.add( childIndex );
+            }
+            if (!children.equals( expectedChildren[ parentIndex ] == null ? Collections.emptyList() : expectedChildren[ parentIndex ] )) {
+                throw new Error( "child index error: " + parentIndex + "的儿子" + children + "!=" + expectedChildren[ parentIndex ] );
+            }
+        }
+    }
+}
@@ -0,0 +1,134 @@
+package org.langzhaozhi.dat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试平行数组布局：对随机关键字，每个被占用的位置都满足base[check[i]] + 字符 == i，只有被占用的位置才有数据；
+ * 沿base/check还原出的关键字集合就是原来的关键字集合；持久化再加载后base、check、value三个数组完全一样。
+ * 其他测试共用的随机数据也在这里生成
+ */
+public class TestDoubleArrayTrieLayout {
+    private static final String KEY_CHARS = "abcd中国人民";
+
+    public static void main(String [] args) throws Throwable {
+        Random random = new Random( 1 );
+        for (int round = 0; round < 200; ++round) {
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            for (int i = 0, keyCount = 1 + random.nextInt( round % 10 == 0 ? 5000 : 100 ); i < keyCount; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 8 ) ), i );
+            }
+            DoubleArrayTrie<Integer> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+            TestDoubleArrayTrieLayout.verifyLayout( dat, keyValueMap );
+
+            File datFile = File.createTempFile( "testlayoutdat", ".bin" );
+            try {
+                DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( dat, datFile, (aValue) -> {
+                    ByteBuffer buf = ByteBuffer.allocate( 4 );
+                    buf.putInt( aValue ).flip();
+                    return buf;
+                } );
+                DoubleArrayTrie<Integer> loadedDat = DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( datFile, (aByteBuffer) -> aByteBuffer.getInt() );
+                if (!Arrays.equals( dat.mBaseArray, loadedDat.mBaseArray ) || !Arrays.equals( dat.mCheckArray, loadedDat.mCheckArray )) {
+                    throw new Error( "layout round trip error: base或者check数组不一样" );
+                }
+                Object [] valueArray = TestDoubleArrayTrieLayout.valueArray( dat );
+                Object [] loadedValueArray = TestDoubleArrayTrieLayout.valueArray( loadedDat );
+                for (int i = 0; i < valueArray.length; ++i) {
+                    if (valueArray[ i ] == null ? loadedValueArray[ i ] != null : !valueArray[ i ].equals( loadedValueArray[ i ] )) {
+                        throw new Error( "layout round trip error: 位置" + i + "的数据不一样" );
+                    }
+                }
+                TestDoubleArrayTrieLayout.verifyLayout( loadedDat, keyValueMap );
+            }
+            finally {
+                datFile.delete();
+            }
+        }
+        System.out.println( "平行数组布局同关键字一致，持久化前后一样" );
+    }
+
+    private static void verifyLayout(DoubleArrayTrie<Integer> aDat, Map<String, Integer> aKeyValueMap) {
+        int [] baseArray = aDat.mBaseArray;
+        int [] checkArray = aDat.mCheckArray;
+        Object [] valueArray = TestDoubleArrayTrieLayout.valueArray( aDat );
+        int valueCount = 0;
+        for (int i = 1; i < checkArray.length; ++i) {
+            int parentIndex = checkArray[ i ];
+            if (parentIndex == DoubleArrayTrie.EMPTY_CHECK) {
+                if (valueArray[ i ] != null) {
+                    throw new Error( "layout error: 空位" + i + "居然有数据" );
+                }
+            }
+            else if (parentIndex < 0 || parentIndex >= checkArray.length || parentIndex == i || baseArray[ parentIndex ] + aDat.getChar( i ) != i) {
+                throw new Error( "layout error: 位置" + i + "的父节点" + parentIndex + "不对" );
+            }
+            else if (valueArray[ i ] != null) {
+                ++valueCount;
+            }
+        }
+        if (valueCount != aKeyValueMap.size() || valueArray[ 0 ] != null) {
+            throw new Error( "layout error: 数据个数" + valueCount + "!=" + aKeyValueMap.size() );
+        }
+        for (Map.Entry<String, Integer> nextEntry : aKeyValueMap.entrySet()) {
+            if (!nextEntry.getValue().equals( aDat.exactMatch( nextEntry.getKey() ) )) {
+                throw new Error( "layout error: 精确匹配" + nextEntry.getKey() + "=" + aDat.exactMatch( nextEntry.getKey() ) );
+            }
+        }
+        //沿check上溯还原出全部关键字
+        for (boolean basedTrie : new boolean [] { false, true }) {
+            List<String> keys = new ArrayList<String>();
+            Hit<Integer> keyHit = (aHitText, aStart, aEnd, aValue) -> {
+                String key = aHitText.subSequence( aStart, aEnd ).toString();
+                if (!aValue.equals( aKeyValueMap.get( key ) )) {
+                    throw new Error( "layout error: 遍历到的" + key + "=" + aValue );
+                }
+                return keys.add( key );
+            };
+            if (basedTrie) {
+                aDat.forEachBasedTrie( true, keyHit );
+            }
+            else {
+                aDat.forEachFast( true, keyHit );
+            }
+            List<String> expectedKeys = new ArrayList<String>( aKeyValueMap.keySet() );
+            Collections.sort( expectedKeys );
+            Collections.sort( keys );
+            if (!expectedKeys.equals( keys )) {
+                throw new Error( "layout error: 遍历还原的关键字不一样" );
+            }
+        }
+    }
+
+    private static Object [] valueArray(DoubleArrayTrie<?> aDat) {
+        //通过通配类型取，不会被强制转换成具体的T []
+        return aDat.mValueArray;
+    }
+
+    static <T> PairString<T> [] toPairs(Map<String, T> aKeyValueMap) {
+        @SuppressWarnings("unchecked")
+        PairString<T> [] pairs = new PairString [ aKeyValueMap.size() ];
+        int i = 0;
+        for (Map.Entry<String, T> nextEntry : aKeyValueMap.entrySet()) {
+            pairs[ i++ ] = new PairString<T>( nextEntry.getKey(), nextEntry.getValue() );
+        }
+        return pairs;
+    }
+
+    static String randomText(Random aRandom, String aChars, int aLength) {
+        StringBuilder text = new StringBuilder( aLength );
+        for (int i = 0; i < aLength; ++i) {
+            text.append( aChars.charAt( aRandom.nextInt( aChars.length() ) ) );
+        }
+        return text.toString();
+    }
+}
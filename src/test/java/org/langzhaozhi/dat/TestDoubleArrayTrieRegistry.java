@@ -0,0 +1,114 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试DAT注册表：发布新版本、租用归还后旧版本恰好退役一次、加载失败保留当前版本，以及并发租用归还的同时不停重新加载
+ */
+public class TestDoubleArrayTrieRegistry {
+    public static void main(String [] args) throws Throwable {
+        AtomicInteger loadCount = new AtomicInteger();
+        AtomicBoolean failLoad = new AtomicBoolean();
+        ConcurrentHashMap<DoubleArrayTrie<Integer>, AtomicInteger> retiredCounts = new ConcurrentHashMap<DoubleArrayTrie<Integer>, AtomicInteger>();
+        try (DoubleArrayTrieRegistry<Integer> registry = new DoubleArrayTrieRegistry<Integer>( () -> {
+            if (failLoad.get()) {
+                throw new IllegalStateException( "模拟加载失败" );
+            }
+            return TestDoubleArrayTrieRegistry.makeVersion( loadCount.getAndIncrement() );
+        }, (aRetiredDat) -> retiredCounts.computeIfAbsent( aRetiredDat, (aDat) -> new AtomicInteger() ).incrementAndGet() )) {
+            DoubleArrayTrie<Integer> version0 = registry.get();
+            if (version0.exactMatch( "version" ) != 0 || version0.mAhoCorasick == null) {
+                throw new Error( "registry error: 第一个版本不对或者没有预先构造AC" );
+            }
+
+            //租用着旧版本时发布新版本：旧版本要等归还后才退役
+            DoubleArrayTrieRegistry.Lease<Integer> lease0 = registry.acquire();
+            DoubleArrayTrie<Integer> version1 = registry.reload().get();
+            if (registry.get() != version1 || version1.exactMatch( "version" ) != 1 || lease0.get() != version0) {
+                throw new Error( "registry error: 新版本没有发布" );
+            }
+            if (retiredCounts.containsKey( version0 )) {
+                throw new Error( "registry error: 还在租用的旧版本退役了" );
+            }
+            lease0.close();
+            lease0.close();
+            if (retiredCounts.get( version0 ).get() != 1) {
+                throw new Error( "registry error: 旧版本归还后没有恰好退役一次" );
+            }
+
+            //加载失败：当前版本不变，也不退役
+            failLoad.set( true );
+            try {
+                registry.reload().get();
+                throw new Error( "registry error: 加载失败居然成功了" );
+            }
+            catch (ExecutionException e) {
+                if (!(e.getCause() instanceof IllegalStateException)) {
+                    throw new Error( "registry error: 失败原因不对", e );
+                }
+            }
+            failLoad.set( false );
+            if (registry.get() != version1 || retiredCounts.containsKey( version1 )) {
+                throw new Error( "registry error: 加载失败后当前版本变了" );
+            }
+
+            //没有读者租用时发布，旧版本立即退役
+            registry.reload().get();
+            if (retiredCounts.get( version1 ).get() != 1) {
+                throw new Error( "registry error: 没人租用的旧版本没有立即退役" );
+            }
+
+            //并发：读者不停地租用归还，持有期间版本不能退役，同时不停地重新加载
+            AtomicBoolean stop = new AtomicBoolean();
+            AtomicInteger errorCount = new AtomicInteger();
+            List<Thread> readers = new ArrayList<Thread>();
+            for (int i = 0; i < 8; ++i) {
+                Thread reader = new Thread( () -> {
+                    while (!stop.get()) {
+                        try (DoubleArrayTrieRegistry.Lease<Integer> lease = registry.acquire()) {
+                            DoubleArrayTrie<Integer> dat = lease.get();
+                            if (retiredCounts.containsKey( dat ) || dat.exactMatch( "version" ) == null) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                    }
+                } );
+                reader.start();
+                readers.add( reader );
+            }
+            for (int i = 0; i < 200; ++i) {
+                registry.reload().get();
+            }
+            stop.set( true );
+            for (Thread nextReader : readers) {
+                nextReader.join();
+            }
+            if (errorCount.get() != 0) {
+                throw new Error( "registry error: 读者用到了已经退役的版本:" + errorCount.get() );
+            }
+            DoubleArrayTrie<Integer> current = registry.get();
+            if (retiredCounts.containsKey( current ) || retiredCounts.size() != loadCount.get() - 1) {
+                throw new Error( "registry error: 退役的版本个数不对:" + retiredCounts.size() + "," + loadCount.get() );
+            }
+            for (AtomicInteger nextCount : retiredCounts.values()) {
+                if (nextCount.get() != 1) {
+                    throw new Error( "registry error: 有版本退役了不止一次" );
+                }
+            }
+            System.out.println( "加载版本数:" + loadCount.get() + ", 退役版本数:" + retiredCounts.size() );
+        }
+    }
+
+    private static DoubleArrayTrie<Integer> makeVersion(int aVersion) {
+        @SuppressWarnings("unchecked")
+        PairString<Integer> [] pairs = new PairString [] { new PairString<Integer>( "version", aVersion ), new PairString<Integer>( "v" + aVersion, aVersion ) };
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( pairs );
+    }
+}
@@ -0,0 +1,197 @@
+package org.langzhaozhi.dat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试各种构造和加载方式：同一组随机数据，各种方式得到的DAT的精确匹配、前缀前匹配、前缀后匹配的结果都必须同<code>makeDoubleArrayTrie</code>构造的完全一致
+ */
+public class TestDoubleArrayTrieVariants {
+    private static final String KEY_CHARS = "abcdAB中国人民";
+
+    public static void main(String [] args) throws Throwable {
+        Random random = new Random( 4 );
+        LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+        while (keyValueMap.size() < 20000) {
+            String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) );
+            keyValueMap.putIfAbsent( nextKey, nextKey + "#" + keyValueMap.size() );
+        }
+        String [] probes = new String [ 2000 ];
+        for (int i = 0; i < probes.length; ++i) {
+            probes[ i ] = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 8 ) );
+        }
+        DoubleArrayTrie<String> referenceDat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+        TestDoubleArrayTrieVariants.verifyKeys( referenceDat, keyValueMap, "reference" );
+
+        //延迟加载value：结果同整体加载的一样，第二次取到的是同一个对象
+        File datFile = File.createTempFile( "testvariantsdat", ".bin" );
+        datFile.deleteOnExit();
+        DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( referenceDat, datFile, TestDoubleArrayTrieVariants::serialize );
+        DoubleArrayTrie<String> lazyDat = DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( datFile, TestDoubleArrayTrieVariants::deserialize, true );
+        TestDoubleArrayTrieVariants.verifyKeys( lazyDat, keyValueMap, "lazy" );
+        TestDoubleArrayTrieVariants.verifySame( referenceDat, lazyDat, probes, "lazy" );
+        for (String nextKey : keyValueMap.keySet()) {
+            if (lazyDat.exactMatch( nextKey ) != lazyDat.exactMatch( nextKey )) {
+                throw new Error( "lazy value cache error:" + nextKey );
+            }
+        }
+        TestDoubleArrayTrieVariants.verifySame( referenceDat, DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( datFile, TestDoubleArrayTrieVariants::deserialize, false ), probes, "eager" );
+
+        //限制空位尝试次数的快速构造：数组布局不同，结果一样
+        for (int nextEmptyTrialLimit : new int [] { 1, 4, 16 }) {
+            DoubleArrayTrie<String> fastDat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ), nextEmptyTrialLimit );
+            TestDoubleArrayTrieVariants.verifyKeys( fastDat, keyValueMap, "fast" + nextEmptyTrialLimit );
+            TestDoubleArrayTrieVariants.verifySame( referenceDat, fastDat, probes, "fast" + nextEmptyTrialLimit );
+        }
+        boolean negativeRejected = false;
+        try {
+            DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ), -1 );
+        }
+        catch (Error e) {
+            negativeRejected = true;
+        }
+        if (!negativeRejected) {
+            throw new Error( "fast error: 空位尝试次数为负居然也构造成功了" );
+        }
+
+        //并行构造：每段至少MIN_PARTITION_KEY_COUNT个数据，数据少时只有一段，多时才真正分段拼接，两种都要测
+        ForkJoinPool forkJoinPool = new ForkJoinPool( 4 );
+        try {
+            TestDoubleArrayTrieVariants.verifySame( referenceDat, DoubleArrayTrieMaker.makeDoubleArrayTrieParallel( TestDoubleArrayTrieLayout.toPairs( keyValueMap ), DoubleArrayTrieMaker.UNLIMITED_EMPTY_TRIAL, forkJoinPool ), probes, "parallel" );
+            LinkedHashMap<String, String> bigKeyValueMap = new LinkedHashMap<String, String>();
+            while (bigKeyValueMap.size() < 100000) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 9 ) );
+                bigKeyValueMap.putIfAbsent( nextKey, nextKey + "#" + bigKeyValueMap.size() );
+            }
+            DoubleArrayTrie<String> bigReferenceDat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( bigKeyValueMap ) );
+            for (int nextEmptyTrialLimit : new int [] { DoubleArrayTrieMaker.UNLIMITED_EMPTY_TRIAL, 16 }) {
+                DoubleArrayTrie<String> parallelDat = DoubleArrayTrieMaker.makeDoubleArrayTrieParallel( TestDoubleArrayTrieLayout.toPairs( bigKeyValueMap ), nextEmptyTrialLimit, forkJoinPool );
+                TestDoubleArrayTrieVariants.verifyKeys( parallelDat, bigKeyValueMap, "parallel" );
+                TestDoubleArrayTrieVariants.verifySame( bigReferenceDat, parallelDat, probes, "parallel" + nextEmptyTrialLimit );
+            }
+        }
+        finally {
+            forkJoinPool.shutdown();
+        }
+
+        //流式构造到文件：输入必须排好序，结果同内存中构造再持久化的一样
+        PairString<String> [] sortedPairs = TestDoubleArrayTrieLayout.toPairs( keyValueMap );
+        Arrays.sort( sortedPairs );
+        File streamDatFile = File.createTempFile( "testvariantsstreamdat", ".bin" );
+        streamDatFile.deleteOnExit();
+        DoubleArrayTrieMaker.makeDoubleArrayTrieToFile( Arrays.asList( sortedPairs ).iterator(), streamDatFile, TestDoubleArrayTrieVariants::serialize );
+        DoubleArrayTrie<String> streamDat = DoubleArrayTrieMaker.deserializeDoubleArrayTrieFromFile( streamDatFile, TestDoubleArrayTrieVariants::deserialize );
+        TestDoubleArrayTrieVariants.verifyKeys( streamDat, keyValueMap, "stream" );
+        TestDoubleArrayTrieVariants.verifySame( referenceDat, streamDat, probes, "stream" );
+        MappedDoubleArrayTrie<String> mappedStreamDat = DoubleArrayTrieMaker.mapDoubleArrayTrieFromFile( streamDatFile, TestDoubleArrayTrieVariants::deserialize, true );
+        for (String nextProbe : probes) {
+            String expected = referenceDat.exactMatch( nextProbe );
+            String actual = mappedStreamDat.exactMatch( nextProbe );
+            if (expected == null ? actual != null : !expected.equals( actual )) {
+                throw new Error( "mapped stream exactMatch error:" + nextProbe );
+            }
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> referenceDat.asPrefixMatcher().prefixBeforeMatchCaseSensitive( nextProbe, aHit ), (aHit) -> mappedStreamDat.prefixBeforeMatchCaseSensitive( nextProbe, aHit ), "mapped stream prefixBefore " + nextProbe );
+        }
+        PairString<String> swappedPair = sortedPairs[ 100 ];
+        sortedPairs[ 100 ] = sortedPairs[ 101 ];
+        sortedPairs[ 101 ] = swappedPair;
+        boolean unsortedRejected = false;
+        try {
+            DoubleArrayTrieMaker.makeDoubleArrayTrieToFile( Arrays.asList( sortedPairs ).iterator(), streamDatFile, TestDoubleArrayTrieVariants::serialize );
+        }
+        catch (Error e) {
+            unsortedRejected = true;
+        }
+        if (!unsortedRejected) {
+            throw new Error( "stream maker error: 没有排序的数据居然也构造成功了" );
+        }
+
+        //大小写折叠构造：结果同先把关键字和输入都折叠再普通构造和匹配的一样，折叠后相同的关键字保留先出现的
+        LinkedHashMap<String, String> foldedKeyValueMap = new LinkedHashMap<String, String>();
+        for (Map.Entry<String, String> nextEntry : keyValueMap.entrySet()) {
+            foldedKeyValueMap.putIfAbsent( CaseFolding.fold( nextEntry.getKey() ), nextEntry.getValue() );
+        }
+        DoubleArrayTrie<String> foldedReferenceDat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( foldedKeyValueMap ) );
+        DoubleArrayTrie<String> caseFoldedDat = DoubleArrayTrieMaker.makeDoubleArrayTrieCaseFolded( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+        for (String nextProbe : probes) {
+            String foldedProbe = CaseFolding.fold( nextProbe );
+            String expected = foldedReferenceDat.exactMatch( foldedProbe );
+            String actual = caseFoldedDat.exactMatchCaseFolded( nextProbe );
+            if (expected == null ? actual != null : !expected.equals( actual )) {
+                throw new Error( "case folded exactMatch error:" + nextProbe + ":" + expected + "!=" + actual );
+            }
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> foldedReferenceDat.asPrefixMatcher().prefixBeforeMatchCaseSensitive( foldedProbe, aHit ), (aHit) -> caseFoldedDat.asPrefixMatcher().prefixBeforeMatchCaseFolded( nextProbe, aHit ), "case folded prefixBefore " + nextProbe );
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> foldedReferenceDat.asPrefixMatcher().prefixAfterMatchCaseSensitive( foldedProbe, aHit ), (aHit) -> caseFoldedDat.asPrefixMatcher().prefixAfterMatchCaseFolded( nextProbe, aHit ), "case folded prefixAfter " + nextProbe );
+        }
+        for (int i = 0; i < 200; ++i) {
+            String text = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 50 );
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> foldedReferenceDat.asAhoCorasick().matchCaseSensitive( CaseFolding.fold( text ), aHit ), (aHit) -> caseFoldedDat.asAhoCorasick().matchCaseFolded( text, aHit ), "case folded AC " + text );
+        }
+        System.out.println( "各种构造和加载方式结果一致，数据个数:" + keyValueMap.size() );
+    }
+
+    /**
+     * 全部关键字精确匹配到自己的数据
+     */
+    private static void verifyKeys(DoubleArrayTrie<String> aDat, Map<String, String> aKeyValueMap, String aName) {
+        for (Map.Entry<String, String> nextEntry : aKeyValueMap.entrySet()) {
+            if (!nextEntry.getValue().equals( aDat.exactMatch( nextEntry.getKey() ) )) {
+                throw new Error( aName + " exactMatch error:" + nextEntry.getKey() );
+            }
+        }
+    }
+
+    /**
+     * 对每个探测串比较精确匹配、前缀前匹配、前缀后匹配的结果
+     */
+    private static void verifySame(DoubleArrayTrie<String> aReferenceDat, DoubleArrayTrie<String> aDat, String [] aProbes, String aName) {
+        for (String nextProbe : aProbes) {
+            String expected = aReferenceDat.exactMatch( nextProbe );
+            String actual = aDat.exactMatch( nextProbe );
+            if (expected == null ? actual != null : !expected.equals( actual )) {
+                throw new Error( aName + " exactMatch error:" + nextProbe + ":" + expected + "!=" + actual );
+            }
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> aReferenceDat.asPrefixMatcher().prefixBeforeMatchCaseSensitive( nextProbe, aHit ), (aHit) -> aDat.asPrefixMatcher().prefixBeforeMatchCaseSensitive( nextProbe, aHit ), aName + " prefixBefore " + nextProbe );
+            TestDoubleArrayTrieVariants.verifySameHits( (aHit) -> aReferenceDat.asPrefixMatcher().prefixAfterMatchCaseSensitive( nextProbe, aHit ), (aHit) -> aDat.asPrefixMatcher().prefixAfterMatchCaseSensitive( nextProbe, aHit ), aName + " prefixAfter " + nextProbe );
+        }
+    }
+
+    private static void verifySameHits(Consumer<Hit<String>> aExpectedMatch, Consumer<Hit<String>> aActualMatch, String aName) {
+        String expected = TestDoubleArrayTrieVariants.collectHits( aExpectedMatch );
+        String actual = TestDoubleArrayTrieVariants.collectHits( aActualMatch );
+        if (!expected.equals( actual )) {
+            throw new Error( aName + " error:" + expected + " != " + actual );
+        }
+    }
+
+    /**
+     * 命中的位置和数据依次拼成一个串
+     */
+    static String collectHits(Consumer<Hit<String>> aMatch) {
+        StringBuilder hits = new StringBuilder();
+        aMatch.accept( (aHitText, aStart, aEnd, aValue) -> {
+            hits.append( aStart ).append( ',' ).append( aEnd ).append( '=' ).append( aValue ).append( ';' );
+            return true;
+        } );
+        return hits.toString();
+    }
+
+    private static ByteBuffer serialize(String aValue) {
+        return ByteBuffer.wrap( aValue.getBytes( StandardCharsets.UTF_8 ) );
+    }
+
+    private static String deserialize(ByteBuffer aByteBuffer) {
+        byte [] bytes = new byte [ aByteBuffer.remaining() ];
+        aByteBuffer.get( bytes );
+        return new String( bytes, StandardCharsets.UTF_8 );
+    }
+}
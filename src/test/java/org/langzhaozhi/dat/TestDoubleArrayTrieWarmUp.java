@@ -0,0 +1,98 @@
+package org.langzhaozhi.dat;
+
+import java.util.LinkedHashMap;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 测试延迟构造的缓存：16个线程同时第一次调用<code>asAhoCorasick()</code>和<code>getChildIndex()</code>必须拿到同一个实例，
+ * <code>warmUp(aExecutor)</code>完成后结果就是DAT本身，并且构造好的缓存就是之后调用拿到的实例
+ */
+public class TestDoubleArrayTrieWarmUp {
+    private static final String KEY_CHARS = "abc中";
+
+    private static final int THREAD_COUNT = 16;
+
+    public static void main(String [] args) throws Exception {
+        Random random = new Random( 22 );
+        ExecutorService executor = Executors.newFixedThreadPool( THREAD_COUNT );
+        try {
+            for (int round = 0; round < 200; ++round) {
+                DoubleArrayTrie<String> dat = TestDoubleArrayTrieWarmUp.randomDat( random );
+                Object [] acArray = new Object [ THREAD_COUNT ];
+                Object [] childIndexArray = new Object [ THREAD_COUNT ];
+                CountDownLatch startLatch = new CountDownLatch( 1 );
+                CountDownLatch doneLatch = new CountDownLatch( THREAD_COUNT );
+                for (int i = 0; i < THREAD_COUNT; ++i) {
+                    int threadIndex = i;
+                    executor.execute( () -> {
+                        try {
+                            startLatch.await();
+                            //一半线程先要AC，另一半先要父子关系索引，让两个锁的竞争交错
+                            if (threadIndex % 2 == 0) {
+                                acArray[ threadIndex ] = dat.asAhoCorasick();
+                                childIndexArray[ threadIndex ] = dat.getChildIndex();
+                            }
+                            else {
+                                childIndexArray[ threadIndex ] = dat.getChildIndex();
+                                acArray[ threadIndex ] = dat.asAhoCorasick();
+                            }
+                        }
+                        catch (InterruptedException e) {
+                            Thread.currentThread().interrupt();
+                        }
+                        finally {
+                            doneLatch.countDown();
+                        }
+                    } );
+                }
+                startLatch.countDown();
+                if (!doneLatch.await( 60, TimeUnit.SECONDS )) {
+                    throw new Error( "并发构造超时" );
+                }
+                for (int i = 0; i < THREAD_COUNT; ++i) {
+                    if (acArray[ i ] == null || acArray[ i ] != acArray[ 0 ] || acArray[ i ] != dat.asAhoCorasick()) {
+                        throw new Error( "asAhoCorasick error: 线程" + i + "拿到的不是同一个实例" );
+                    }
+                    if (childIndexArray[ i ] == null || childIndexArray[ i ] != childIndexArray[ 0 ] || childIndexArray[ i ] != dat.getChildIndex()) {
+                        throw new Error( "getChildIndex error: 线程" + i + "拿到的不是同一个实例" );
+                    }
+                }
+            }
+
+            for (int round = 0; round < 50; ++round) {
+                DoubleArrayTrie<String> dat = TestDoubleArrayTrieWarmUp.randomDat( random );
+                DoubleArrayTrie<String> warmedDat = dat.warmUp( executor ).get( 60, TimeUnit.SECONDS );
+                if (warmedDat != dat) {
+                    throw new Error( "warmUp(aExecutor) error: 结果不是DAT本身" );
+                }
+                //已经构造好了，不加锁直接读到的就是之前构造的实例
+                DoubleArrayTrieAhoCorasick<String> warmedAc = dat.mAhoCorasick;
+                if (warmedAc == null || dat.asAhoCorasick() != warmedAc) {
+                    throw new Error( "warmUp(aExecutor) error: AC自动机没有构造好" );
+                }
+                int [] patternCount = { 0 };
+                dat.forEachFast( false, (aText, aStart, aEnd, aValue) -> ++patternCount[ 0 ] > 0 );
+                if (warmedAc.getPatternCount() != patternCount[ 0 ]) {
+                    throw new Error( "warmUp(aExecutor) error: 模式串编号表不对" );
+                }
+            }
+        }
+        finally {
+            executor.shutdown();
+        }
+        System.out.println( "并发第一次调用拿到同一个实例，warmUp构造好全部缓存" );
+    }
+
+    private static DoubleArrayTrie<String> randomDat(Random aRandom) {
+        LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+        for (int i = 0, keyCount = 1 + aRandom.nextInt( 2000 ); i < keyCount; ++i) {
+            String nextKey = TestDoubleArrayTrieLayout.randomText( aRandom, KEY_CHARS, 1 + aRandom.nextInt( 8 ) );
+            keyValueMap.put( nextKey, nextKey );
+        }
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+    }
+}
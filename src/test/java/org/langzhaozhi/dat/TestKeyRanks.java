@@ -0,0 +1,82 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * 测试按字典序的序号：对随机关键字，用TreeMap作对照，<code>select(rank(k)) == k</code>，不是关键字时<code>rank</code>同
+ * <code>Collections.binarySearch</code>一样返回(-(插入位置) - 1)，<code>countWithPrefix</code>同<code>subMap().size()</code>一样，
+ * 越界的<code>select</code>要抛出Error
+ */
+public class TestKeyRanks {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 25 );
+        for (int round = 0; round < 1000; ++round) {
+            TreeMap<String, String> keyValueMap = new TreeMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 100 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) );
+                keyValueMap.put( nextKey, nextKey );
+            }
+            DoubleArrayTrie<String> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+            List<String> sortedKeys = new ArrayList<String>( keyValueMap.keySet() );
+            for (int ordinal = 0; ordinal < sortedKeys.size(); ++ordinal) {
+                String key = sortedKeys.get( ordinal );
+                if (dat.rank( key ) != ordinal) {
+                    throw new Error( "rank error:" + key + ":" + dat.rank( key ) + "!=" + ordinal );
+                }
+                if (!key.equals( dat.select( ordinal ) )) {
+                    throw new Error( "select error:" + ordinal + ":" + dat.select( ordinal ) + "!=" + key );
+                }
+            }
+            for (int probeIndex = 0; probeIndex < 50; ++probeIndex) {
+                //关键字的前缀、关键字加一个字符、随机串，有些带上关键字中没有的字符，还有空串
+                String probe;
+                switch (probeIndex % 4) {
+                    case 0: {
+                        String key = sortedKeys.get( random.nextInt( sortedKeys.size() ) );
+                        probe = key.substring( 0, random.nextInt( key.length() + 1 ) );
+                        break;
+                    }
+                    case 1:
+                        probe = sortedKeys.get( random.nextInt( sortedKeys.size() ) ) + "a`z中".charAt( random.nextInt( 4 ) );
+                        break;
+                    case 2:
+                        probe = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) );
+                        break;
+                    default:
+                        probe = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 3 ) ) + "`z".charAt( random.nextInt( 2 ) );
+                        break;
+                }
+                int expectedRank = Collections.binarySearch( sortedKeys, probe );
+                if (dat.rank( probe ) != expectedRank) {
+                    throw new Error( "rank error:" + sortedKeys + ":" + probe + ":" + dat.rank( probe ) + "!=" + expectedRank );
+                }
+                int expectedCount = keyValueMap.subMap( probe, probe + Character.MAX_VALUE ).size();
+                if (dat.countWithPrefix( probe ) != expectedCount) {
+                    throw new Error( "countWithPrefix error:" + sortedKeys + ":" + probe + ":" + dat.countWithPrefix( probe ) + "!=" + expectedCount );
+                }
+            }
+            if (dat.countWithPrefix( "" ) != sortedKeys.size()) {
+                throw new Error( "countWithPrefix error: 空串应该是全部数据的个数" );
+            }
+            for (int badOrdinal : new int [] { -1, sortedKeys.size(), Integer.MAX_VALUE, Integer.MIN_VALUE }) {
+                boolean rejected = false;
+                try {
+                    dat.select( badOrdinal );
+                }
+                catch (Error e) {
+                    rejected = true;
+                }
+                if (!rejected) {
+                    throw new Error( "select error: 越界的序号" + badOrdinal + "居然没有抛出Error" );
+                }
+            }
+        }
+        System.out.println( "字典序序号同TreeMap结果一致" );
+    }
+}
@@ -0,0 +1,179 @@
+package org.langzhaozhi.dat;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Random;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试内存映象方式加载的DAT，结果必须同堆上的DAT完全一致
+ */
+public class TestMappedDoubleArrayTrie {
+    public static void main(String [] args) throws Throwable {
+        String [] keys = {
+            "he", "she", "his", "hers", "中国", "中国人", "中华人民共和国", "人民"
+        };
+        @SuppressWarnings("unchecked")
+        PairString<Integer> [] pairs = new PairString [ keys.length ];
+        for (int i = 0; i < keys.length; ++i) {
+            pairs[ i ] = new PairString<Integer>( keys[ i ], i );
+        }
+        DoubleArrayTrie<Integer> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( pairs );
+
+        File datFile = File.createTempFile( "testmappeddat", ".bin" );
+        datFile.deleteOnExit();
+        DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( dat, datFile, (aValue) -> {
+            ByteBuffer buf = ByteBuffer.allocate( 4 );
+            buf.putInt( aValue ).flip();
+            return buf;
+        } );
+        MappedDoubleArrayTrie<Integer> mappedDat = DoubleArrayTrieMaker.mapDoubleArrayTrieFromFile( datFile, (aByteBuffer) -> aByteBuffer.getInt(), true );
+
+        for (int i = 0; i < keys.length; ++i) {
+            if (mappedDat.exactMatch( keys[ i ] ) != i) {
+                throw new Error( "mapped dat error:" + keys[ i ] );
+            }
+        }
+        if (mappedDat.exactMatch( "中" ) != null || mappedDat.exactMatch( "hershe" ) != null) {
+            throw new Error( "mapped dat error: 不存在的关键字居然匹配到了" );
+        }
+        String text = "ushers在中华人民共和国";
+        StringBuilder expected = new StringBuilder();
+        StringBuilder actual = new StringBuilder();
+        dat.asAhoCorasick().matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> {
+            expected.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+            return true;
+        } );
+        mappedDat.matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> {
+            actual.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+            return true;
+        } );
+        if (!expected.toString().equals( actual.toString() )) {
+            throw new Error( "mapped dat AC error:" + expected + " != " + actual );
+        }
+
+        //同时持久化AC状态数据，加载后不用再构造failure表，结果必须完全一致
+        File acDatFile = File.createTempFile( "testmappedacdat", ".bin" );
+        acDatFile.deleteOnExit();
+        DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( dat, acDatFile, (aValue) -> {
+            ByteBuffer buf = ByteBuffer.allocate( 4 );
+            buf.putInt( aValue ).flip();
+            return buf;
+        }, true );
+        StringBuilder mappedAcActual = new StringBuilder();
+        DoubleArrayTrieMaker.<Integer> mapDoubleArrayTrieFromFile( acDatFile, (aByteBuffer) -> aByteBuffer.getInt(), true ).matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> {
+            mappedAcActual.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+            return true;
+        } );
+        StringBuilder loadedAcActual = new StringBuilder();
+        DoubleArrayTrieMaker.<Integer> deserializeDoubleArrayTrieFromFile( acDatFile, (aByteBuffer) -> aByteBuffer.getInt() ).asAhoCorasick().matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> {
+            loadedAcActual.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+            return true;
+        } );
+        if (!expected.toString().equals( mappedAcActual.toString() ) || !expected.toString().equals( loadedAcActual.toString() )) {
+            throw new Error( "persisted AC error:" + expected + " != " + mappedAcActual + " / " + loadedAcActual );
+        }
+
+        TestMappedDoubleArrayTrie.verifyPrefixMatch( new Random( 2 ) );
+
+        //value数据块和偏移表分段映象：段长取8字节，长短不一的value必然有跨越段边界的，偏移表每段只有一个偏移，取出来必须同原value一样；
+        //关键字个数不同时DAT数组长度有奇有偶，偏移表在文件中都必须是8字节对齐的
+        ValueDeserializer<String> stringDeserializer = (aByteBuffer) -> {
+            byte [] bytes = new byte [ aByteBuffer.remaining() ];
+            aByteBuffer.get( bytes );
+            return new String( bytes, StandardCharsets.UTF_8 );
+        };
+        boolean [] datArrayLengthParities = new boolean [ 2 ];
+        for (int keyCount = 1; keyCount <= keys.length; ++keyCount) {
+            @SuppressWarnings("unchecked")
+            PairString<String> [] stringPairs = new PairString [ keyCount ];
+            for (int i = 0; i < keyCount; ++i) {
+                stringPairs[ i ] = new PairString<String>( keys[ i ], keys[ i ] + i );
+            }
+            File segmentDatFile = File.createTempFile( "testsegmentdat", ".bin" );
+            segmentDatFile.deleteOnExit();
+            DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( DoubleArrayTrieMaker.makeDoubleArrayTrie( stringPairs ), segmentDatFile, (aValue) -> ByteBuffer.wrap( aValue.getBytes( StandardCharsets.UTF_8 ) ) );
+            DoubleArrayTrieFile.Sections segmentSections = DoubleArrayTrieFile.map( segmentDatFile, true, 3 );
+            if (segmentSections.mValueBlobSegments.length < (keyCount == keys.length ? 2 : 1) || segmentSections.mValueOffsetSegments.length != keyCount + 1) {
+                throw new Error( "segment mapped dat error: 没有分段:" + keyCount + ":" + segmentSections.mValueBlobSegments.length + ":" + segmentSections.mValueOffsetSegments.length );
+            }
+            //没有AC状态数据时偏移表就在文件末尾
+            if ((segmentDatFile.length() - ((keyCount + 1) << 3)) % 8 != 0) {
+                throw new Error( "segment mapped dat error: 偏移表没有8字节对齐, DAT数组长度:" + segmentSections.mDatArrayLength );
+            }
+            datArrayLengthParities[ segmentSections.mDatArrayLength & 1 ] = true;
+            MappedDoubleArrayTrie<String> segmentDat = new MappedDoubleArrayTrie<String>( segmentSections, stringDeserializer );
+            for (int i = 0; i < keyCount; ++i) {
+                if (!(keys[ i ] + i).equals( segmentDat.exactMatch( keys[ i ] ) )) {
+                    throw new Error( "segment mapped dat error:" + keys[ i ] + "=" + segmentDat.exactMatch( keys[ i ] ) );
+                }
+            }
+        }
+        if (!datArrayLengthParities[ 0 ] || !datArrayLengthParities[ 1 ]) {
+            throw new Error( "segment mapped dat error: DAT数组长度没有覆盖奇偶两种情况" );
+        }
+        System.out.println( "AC匹配结果:" + actual );
+    }
+
+    /**
+     * 前缀前匹配和前缀后匹配，大小写敏感和非敏感，通知的结果及其先后顺序都必须同堆上的DAT一样，回调中途要求停止时也一样
+     */
+    private static void verifyPrefixMatch(Random aRandom) throws Throwable {
+        LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+        for (int i = 0; i < 300; ++i) {
+            keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( aRandom, "abAB中", 1 + aRandom.nextInt( 5 ) ), i );
+        }
+        DoubleArrayTrie<Integer> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+        File datFile = File.createTempFile( "testmappedprefixdat", ".bin" );
+        datFile.deleteOnExit();
+        DoubleArrayTrieMaker.serializeDoubleArrayTrieToFile( dat, datFile, (aValue) -> {
+            ByteBuffer buf = ByteBuffer.allocate( 4 );
+            buf.putInt( aValue ).flip();
+            return buf;
+        } );
+        MappedDoubleArrayTrie<Integer> mappedDat = DoubleArrayTrieMaker.mapDoubleArrayTrieFromFile( datFile, (aByteBuffer) -> aByteBuffer.getInt(), true );
+        DoubleArrayTriePrefixMatcher<Integer> prefixMatcher = dat.asPrefixMatcher();
+        for (int round = 0; round < 1000; ++round) {
+            String input = TestDoubleArrayTrieLayout.randomText( aRandom, "abAB中", aRandom.nextInt( 6 ) );
+            int stopAt = aRandom.nextInt( 4 ) == 0 ? aRandom.nextInt( 3 ) : Integer.MAX_VALUE;
+            for (int kind = 0; kind < 4; ++kind) {
+                StringBuilder expected = new StringBuilder();
+                StringBuilder actual = new StringBuilder();
+                int [] expectedCount = new int [ 1 ];
+                int [] actualCount = new int [ 1 ];
+                Hit<Integer> expectedHit = (aHitText, aStart, aEnd, aValue) -> {
+                    expected.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+                    return ++expectedCount[ 0 ] <= stopAt;
+                };
+                Hit<Integer> actualHit = (aHitText, aStart, aEnd, aValue) -> {
+                    actual.append( aHitText.subSequence( aStart, aEnd ) ).append( '=' ).append( aValue ).append( ';' );
+                    return ++actualCount[ 0 ] <= stopAt;
+                };
+                switch (kind) {
+                    case 0:
+                        prefixMatcher.prefixBeforeMatchCaseSensitive( input, expectedHit );
+                        mappedDat.prefixBeforeMatchCaseSensitive( input, actualHit );
+                        break;
+                    case 1:
+                        prefixMatcher.prefixBeforeMatchCaseInsensitive( input, expectedHit );
+                        mappedDat.prefixBeforeMatchCaseInsensitive( input, actualHit );
+                        break;
+                    case 2:
+                        prefixMatcher.prefixAfterMatchCaseSensitive( input, expectedHit );
+                        mappedDat.prefixAfterMatchCaseSensitive( input, actualHit );
+                        break;
+                    default:
+                        prefixMatcher.prefixAfterMatchCaseInsensitive( input, expectedHit );
+                        mappedDat.prefixAfterMatchCaseInsensitive( input, actualHit );
+                        break;
+                }
+                if (!expected.toString().equals( actual.toString() )) {
+                    throw new Error( "mapped dat prefix match error: kind=" + kind + ", input=" + input + ", " + expected + " != " + actual );
+                }
+            }
+        }
+    }
+}
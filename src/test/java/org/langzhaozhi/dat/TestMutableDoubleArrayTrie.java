@@ -0,0 +1,72 @@
+package org.langzhaozhi.dat;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试可修改的DAT，随机插入删除后的镜像必须同HashMap的结果完全一致，而且之前生成的镜像不受后来修改的影响
+ */
+public class TestMutableDoubleArrayTrie {
+    public static void main(String [] args) throws Throwable {
+        String [] keys = {
+            "he", "she", "his", "hers", "中国", "中国人", "中华人民共和国", "人民"
+        };
+        @SuppressWarnings("unchecked")
+        PairString<Integer> [] pairs = new PairString [ keys.length ];
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < keys.length; ++i) {
+            pairs[ i ] = new PairString<Integer>( keys[ i ], i );
+            expected.put( keys[ i ], i );
+        }
+        MutableDoubleArrayTrie<Integer> mutableDat = new MutableDoubleArrayTrie<Integer>( DoubleArrayTrieMaker.makeDoubleArrayTrie( pairs ) );
+        DoubleArrayTrie<Integer> oldSnapshot = mutableDat.toDoubleArrayTrie();
+
+        Random random = new Random( 0 );
+        for (int i = 0; i < 20000; ++i) {
+            StringBuilder key = new StringBuilder();
+            for (int j = 0, keyCharLen = 1 + random.nextInt( 4 ); j < keyCharLen; ++j) {
+                key.append( random.nextBoolean() ? ( char )('a' + random.nextInt( 8 )) : ( char )('中' + random.nextInt( 100 )) );
+            }
+            String nextKey = key.toString();
+            Integer expectedOldValue;
+            Integer oldValue;
+            if (random.nextInt( 3 ) == 0) {
+                expectedOldValue = expected.remove( nextKey );
+                oldValue = mutableDat.remove( nextKey );
+            }
+            else {
+                expectedOldValue = expected.put( nextKey, i );
+                oldValue = mutableDat.put( nextKey, i );
+            }
+            if (oldValue == null ? expectedOldValue != null : !oldValue.equals( expectedOldValue )) {
+                throw new Error( "mutable dat error:" + nextKey );
+            }
+        }
+        DoubleArrayTrie<Integer> snapshot = mutableDat.toDoubleArrayTrie();
+        if (mutableDat.size() != expected.size()) {
+            throw new Error( "mutable dat size error:" + mutableDat.size() + " != " + expected.size() );
+        }
+        for (Map.Entry<String, Integer> nextEntry : expected.entrySet()) {
+            if (!nextEntry.getValue().equals( snapshot.exactMatch( nextEntry.getKey() ) )) {
+                throw new Error( "mutable dat snapshot error:" + nextEntry.getKey() );
+            }
+        }
+        HashMap<String, Integer> actual = new HashMap<String, Integer>();
+        snapshot.forEachFast( true, (aHitText, aStart, aEnd, aValue) -> {
+            actual.put( aHitText.subSequence( aStart, aEnd ).toString(), aValue );
+            return true;
+        } );
+        if (!actual.equals( expected )) {
+            throw new Error( "mutable dat forEach error" );
+        }
+        for (int i = 0; i < keys.length; ++i) {
+            if (oldSnapshot.exactMatch( keys[ i ] ) != i) {
+                throw new Error( "old snapshot changed:" + keys[ i ] );
+            }
+        }
+        System.out.println( "数据个数:" + snapshot.getDatArrayLength() + "," + mutableDat.size() );
+    }
+}
@@ -0,0 +1,263 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.langzhaozhi.util.PairString;
+
+/**
+ * 测试增量DAT：随机插入删除合并，精确匹配、多模式串匹配、前缀前匹配、前缀后匹配都必须同HashMap的结果一致，
+ * 合并是手工执行的，因此会出现增量层、冻结层、基础DAT三层同时存在的情况；合并被拒绝执行后所有写入依然可见，
+ * 而且在下一次显式调用compact()之前写入不再触发合并；
+ * 后台合并的同时并发读写
+ */
+public class TestOverlayDoubleArrayTrie {
+    private static final String KEY_CHARS = "abc中国";
+
+    public static void main(String [] args) throws Throwable {
+        Random random = new Random( 10 );
+        HashMap<String, Integer> expected = new HashMap<String, Integer>();
+        for (int i = 0; i < 300; ++i) {
+            expected.put( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 4 ) ), i );
+        }
+        //合并任务先排队，什么时候执行由测试决定
+        ArrayDeque<Runnable> pendingTasks = new ArrayDeque<Runnable>();
+        AtomicBoolean rejectTasks = new AtomicBoolean();
+        AtomicInteger executeCount = new AtomicInteger();
+        OverlayDoubleArrayTrie<Integer> overlayDat = new OverlayDoubleArrayTrie<Integer>( TestOverlayDoubleArrayTrie.makeDat( expected ), 40, (aRunnable) -> {
+            executeCount.incrementAndGet();
+            if (rejectTasks.get()) {
+                throw new RejectedExecutionException( "模拟合并线程池已关闭" );
+            }
+            pendingTasks.add( aRunnable );
+        } );
+        int threeLayerCount = 0;
+        int rejectedCount = 0;
+        int suspendedWriteCount = 0;
+        //写入触发的合并被拒绝后暂停自动合并，直到显式调用compact()
+        boolean autoCompactSuspended = false;
+        for (int i = 0; i < 6000; ++i) {
+            String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 4 ) );
+            //有排队的合并就有冻结层，这次写入进的是新的增量层，加上基础DAT就是三层
+            boolean threeLayers = !pendingTasks.isEmpty();
+            Integer expectedOldValue;
+            Integer oldValue;
+            int executeCountBeforeWrite = executeCount.get();
+            if (random.nextInt( 3 ) == 0) {
+                expectedOldValue = expected.remove( nextKey );
+                oldValue = overlayDat.remove( nextKey );
+            }
+            else {
+                expectedOldValue = expected.put( nextKey, 1000 + i );
+                oldValue = overlayDat.put( nextKey, 1000 + i );
+            }
+            if (executeCount.get() != executeCountBeforeWrite) {
+                if (autoCompactSuspended) {
+                    throw new Error( "overlay dat error: 合并被拒绝后写入又触发了合并" );
+                }
+                autoCompactSuspended = rejectTasks.get();
+            }
+            else if (autoCompactSuspended) {
+                ++suspendedWriteCount;
+            }
+            if (oldValue == null ? expectedOldValue != null : !oldValue.equals( expectedOldValue )) {
+                throw new Error( "overlay dat write error:" + nextKey + ":" + expectedOldValue + "!=" + oldValue );
+            }
+            if (threeLayers) {
+                ++threeLayerCount;
+                TestOverlayDoubleArrayTrie.verify( overlayDat, expected, random );
+            }
+            int action = random.nextInt( 50 );
+            if (action == 0 && !pendingTasks.isEmpty()) {
+                pendingTasks.poll().run();
+            }
+            else if (action == 1) {
+                overlayDat.compact();
+                autoCompactSuspended = false;
+            }
+            else if (action == 2) {
+                //一段时间内拒绝执行合并
+                rejectTasks.set( !rejectTasks.get() );
+            }
+            else if (action == 3 && rejectTasks.get() && pendingTasks.isEmpty()) {
+                CompletableFuture<DoubleArrayTrie<Integer>> rejectedFuture = overlayDat.compact();
+                if (rejectedFuture.isDone() && rejectedFuture.isCompletedExceptionally()) {
+                    ++rejectedCount;
+                }
+                autoCompactSuspended = false;
+            }
+            if (i % 20 == 0) {
+                TestOverlayDoubleArrayTrie.verify( overlayDat, expected, random );
+            }
+        }
+        rejectTasks.set( false );
+        while (!pendingTasks.isEmpty()) {
+            pendingTasks.poll().run();
+        }
+        overlayDat.compact();
+        while (!pendingTasks.isEmpty()) {
+            pendingTasks.poll().run();
+        }
+        TestOverlayDoubleArrayTrie.verify( overlayDat, expected, random );
+        TestOverlayDoubleArrayTrie.verifyBaseDat( overlayDat.getBaseDat(), expected );
+        if (threeLayerCount == 0 || rejectedCount == 0 || suspendedWriteCount == 0) {
+            throw new Error( "overlay dat test error: 没有覆盖到三层同时存在、合并被拒绝或者暂停自动合并的情况:" + threeLayerCount + "," + rejectedCount + "," + suspendedWriteCount );
+        }
+
+        TestOverlayDoubleArrayTrie.testConcurrentCompact( random );
+        System.out.println( "数据个数:" + expected.size() + ", 三层同时存在的次数:" + threeLayerCount + ", 合并被拒绝的次数:" + rejectedCount );
+    }
+
+    /**
+     * 后台线程不停地合并，写线程只插入新关键字，读线程检查已经插入完成的关键字都可见，基础数据的前缀后匹配结果不变
+     */
+    private static void testConcurrentCompact(Random aRandom) throws Throwable {
+        HashMap<String, Integer> baseKeys = new HashMap<String, Integer>();
+        for (int i = 0; i < 500; ++i) {
+            baseKeys.put( "base" + i, i );
+        }
+        ExecutorService compactExecutor = Executors.newSingleThreadExecutor();
+        try {
+            OverlayDoubleArrayTrie<Integer> overlayDat = new OverlayDoubleArrayTrie<Integer>( TestOverlayDoubleArrayTrie.makeDat( baseKeys ), 100, compactExecutor );
+            AtomicInteger writtenCount = new AtomicInteger();
+            AtomicInteger errorCount = new AtomicInteger();
+            AtomicBoolean stop = new AtomicBoolean();
+            List<Thread> readers = new ArrayList<Thread>();
+            for (int i = 0; i < 4; ++i) {
+                long seed = aRandom.nextLong();
+                Thread reader = new Thread( () -> {
+                    Random random = new Random( seed );
+                    while (!stop.get()) {
+                        int count = writtenCount.get();
+                        if (count > 0) {
+                            int keyIndex = random.nextInt( count );
+                            Integer value = overlayDat.exactMatch( "new" + keyIndex );
+                            if (value == null || value != keyIndex) {
+                                errorCount.incrementAndGet();
+                            }
+                        }
+                        int [] baseHitCount = { 0 };
+                        overlayDat.prefixAfterMatchCaseSensitive( "base", (aHitText, aStart, aEnd, aValue) -> {
+                            ++baseHitCount[ 0 ];
+                            return true;
+                        } );
+                        if (baseHitCount[ 0 ] != baseKeys.size()) {
+                            errorCount.incrementAndGet();
+                        }
+                    }
+                } );
+                reader.start();
+                readers.add( reader );
+            }
+            for (int i = 0; i < 3000; ++i) {
+                overlayDat.put( "new" + i, i );
+                writtenCount.set( i + 1 );
+            }
+            overlayDat.compact().get();
+            stop.set( true );
+            for (Thread nextReader : readers) {
+                nextReader.join();
+            }
+            if (errorCount.get() != 0) {
+                throw new Error( "overlay dat concurrent error:" + errorCount.get() );
+            }
+            for (int i = 0; i < 3000; ++i) {
+                if (overlayDat.exactMatch( "new" + i ) != i) {
+                    throw new Error( "overlay dat concurrent error:new" + i );
+                }
+            }
+        }
+        finally {
+            compactExecutor.shutdown();
+        }
+    }
+
+    private static void verify(OverlayDoubleArrayTrie<Integer> aOverlayDat, Map<String, Integer> aExpected, Random aRandom) {
+        for (int i = 0; i < 50; ++i) {
+            String key = TestDoubleArrayTrieLayout.randomText( aRandom, KEY_CHARS, 1 + aRandom.nextInt( 4 ) );
+            Integer expectedValue = aExpected.get( key );
+            Integer value = aOverlayDat.exactMatch( key );
+            if (value == null ? expectedValue != null : !value.equals( expectedValue )) {
+                throw new Error( "overlay dat exactMatch error:" + key + ":" + expectedValue + "!=" + value );
+            }
+        }
+        String text = TestDoubleArrayTrieLayout.randomText( aRandom, KEY_CHARS, 30 );
+        List<String> expectedHits = new ArrayList<String>();
+        for (int start = 0; start < text.length(); ++start) {
+            for (int end = start + 1; end <= text.length() && end - start <= 4; ++end) {
+                Integer value = aExpected.get( text.substring( start, end ) );
+                if (value != null) {
+                    expectedHits.add( start + "," + end + "=" + value );
+                }
+            }
+        }
+        TestOverlayDoubleArrayTrie.verifyHits( expectedHits, (aHit) -> aOverlayDat.matchCaseSensitive( text, aHit ), "matchCaseSensitive " + text );
+        List<String> expectedBeforeHits = new ArrayList<String>();
+        for (String nextHit : expectedHits) {
+            if (nextHit.startsWith( "0," )) {
+                expectedBeforeHits.add( nextHit );
+            }
+        }
+        TestOverlayDoubleArrayTrie.verifyHits( expectedBeforeHits, (aHit) -> aOverlayDat.prefixBeforeMatchCaseSensitive( text, aHit ), "prefixBefore " + text );
+        String prefix = TestDoubleArrayTrieLayout.randomText( aRandom, KEY_CHARS, 1 + aRandom.nextInt( 2 ) );
+        List<String> expectedAfterHits = new ArrayList<String>();
+        for (Map.Entry<String, Integer> nextEntry : aExpected.entrySet()) {
+            if (nextEntry.getKey().startsWith( prefix )) {
+                expectedAfterHits.add( nextEntry.getKey() + "=" + nextEntry.getValue() );
+            }
+        }
+        List<String> afterHits = new ArrayList<String>();
+        aOverlayDat.prefixAfterMatchCaseSensitive( prefix, (aHitText, aStart, aEnd, aValue) -> afterHits.add( aHitText.subSequence( aStart, aEnd ) + "=" + aValue ) );
+        Collections.sort( expectedAfterHits );
+        Collections.sort( afterHits );
+        if (!expectedAfterHits.equals( afterHits )) {
+            throw new Error( "overlay dat prefixAfter error:" + prefix + ":" + expectedAfterHits + "!=" + afterHits );
+        }
+    }
+
+    private static void verifyHits(List<String> aExpectedHits, Consumer<Hit<Integer>> aMatch, String aName) {
+        List<String> hits = new ArrayList<String>();
+        aMatch.accept( (aHitText, aStart, aEnd, aValue) -> hits.add( aStart + "," + aEnd + "=" + aValue ) );
+        Collections.sort( aExpectedHits );
+        Collections.sort( hits );
+        if (!aExpectedHits.equals( hits )) {
+            throw new Error( "overlay dat " + aName + " error:" + aExpectedHits + "!=" + hits );
+        }
+    }
+
+    /**
+     * 全部合并后基础DAT本身就是全部数据
+     */
+    private static void verifyBaseDat(DoubleArrayTrie<Integer> aBaseDat, Map<String, Integer> aExpected) {
+        HashMap<String, Integer> actual = new HashMap<String, Integer>();
+        aBaseDat.forEachFast( true, (aHitText, aStart, aEnd, aValue) -> {
+            actual.put( aHitText.subSequence( aStart, aEnd ).toString(), aValue );
+            return true;
+        } );
+        if (!actual.equals( aExpected )) {
+            throw new Error( "overlay dat compacted base error" );
+        }
+    }
+
+    private static DoubleArrayTrie<Integer> makeDat(Map<String, Integer> aKeyValueMap) {
+        @SuppressWarnings("unchecked")
+        PairString<Integer> [] pairs = new PairString [ aKeyValueMap.size() ];
+        int i = 0;
+        for (Map.Entry<String, Integer> nextEntry : aKeyValueMap.entrySet()) {
+            pairs[ i++ ] = new PairString<Integer>( nextEntry.getKey(), nextEntry.getValue() );
+        }
+        return DoubleArrayTrieMaker.makeDoubleArrayTrie( pairs );
+    }
+}
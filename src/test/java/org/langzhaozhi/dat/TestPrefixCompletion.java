@@ -0,0 +1,126 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * 测试分页输入提示：对随机关键字和前缀，按页大小1、2、7用<code>complete</code>一页页取完，拼起来必须同不分页的
+ * <code>prefixAfterMatchCaseSensitive</code>以及TreeMap按字典序取出的结果完全一样，不重复不遗漏；
+ * 还要测aMaxDepth截断、回调返回false后续取，以及别的前缀的续取标记或者失效的续取标记要抛出Error
+ */
+public class TestPrefixCompletion {
+    private static final String KEY_CHARS = "abc中";
+
+    private static final int [] PAGE_SIZES = { 1, 2, 7 };
+
+    public static void main(String [] args) {
+        Random random = new Random( 23 );
+        for (int round = 0; round < 1000; ++round) {
+            TreeMap<String, String> keyValueMap = new TreeMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 60 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) );
+                keyValueMap.put( nextKey, "<" + nextKey + ">" );
+            }
+            DoubleArrayTrie<String> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+            DoubleArrayTriePrefixMatcher<String> prefixMatcher = dat.asPrefixMatcher();
+            List<String> keys = new ArrayList<String>( keyValueMap.keySet() );
+            for (int prefixIndex = 0; prefixIndex < 10; ++prefixIndex) {
+                //一半前缀本身就是关键字或者关键字的前缀，另一半随机，多半不存在
+                String prefix;
+                if (prefixIndex % 2 == 0) {
+                    String key = keys.get( random.nextInt( keys.size() ) );
+                    prefix = key.substring( 0, 1 + random.nextInt( key.length() ) );
+                }
+                else {
+                    prefix = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 3 ) );
+                }
+                int maxDepth = random.nextInt( 3 ) == 0 ? random.nextInt( 4 ) : Integer.MAX_VALUE;
+                List<String> expected = new ArrayList<String>();
+                for (String nextKey : keyValueMap.subMap( prefix, prefix + Character.MAX_VALUE ).keySet()) {
+                    if (nextKey.startsWith( prefix ) && nextKey.length() - prefix.length() <= maxDepth) {
+                        expected.add( nextKey + "=" + keyValueMap.get( nextKey ) );
+                    }
+                }
+                if (maxDepth == Integer.MAX_VALUE) {
+                    List<String> unpaged = new ArrayList<String>();
+                    prefixMatcher.prefixAfterMatchCaseSensitive( prefix, (aHitText, aStart, aEnd, aValue) -> unpaged.add( aHitText.subSequence( aStart, aEnd ) + "=" + aValue ) );
+                    if (!expected.equals( unpaged )) {
+                        throw new Error( "prefixAfterMatchCaseSensitive error:" + prefix + ":" + expected + "!=" + unpaged );
+                    }
+                }
+                for (int pageSize : PAGE_SIZES) {
+                    List<String> paged = new ArrayList<String>();
+                    int token = DoubleArrayTriePrefixMatcher.COMPLETION_START;
+                    for (int pageCount = 0; token != DoubleArrayTriePrefixMatcher.COMPLETION_END; ++pageCount) {
+                        if (pageCount > expected.size()) {
+                            throw new Error( "complete error: 取不完:" + prefix + ":" + pageSize + ":" + paged );
+                        }
+                        int pageStart = paged.size();
+                        token = prefixMatcher.complete( prefix, token, pageSize, maxDepth, (aHitText, aStart, aEnd, aValue) -> paged.add( aHitText.subSequence( aStart, aEnd ) + "=" + aValue ) );
+                        if (paged.size() - pageStart > pageSize) {
+                            throw new Error( "complete error: 一页超过了" + pageSize + ":" + prefix + ":" + paged );
+                        }
+                    }
+                    if (!expected.equals( paged )) {
+                        throw new Error( "complete error:" + prefix + ":" + pageSize + ":" + maxDepth + ":" + expected + "!=" + paged );
+                    }
+                }
+                //回调随机返回false，从返回的续取标记继续，拼起来也一样
+                List<String> stopped = new ArrayList<String>();
+                for (int token = DoubleArrayTriePrefixMatcher.COMPLETION_START; token != DoubleArrayTriePrefixMatcher.COMPLETION_END;) {
+                    if (stopped.size() > expected.size()) {
+                        throw new Error( "complete stop error: 取不完:" + prefix + ":" + stopped );
+                    }
+                    token = prefixMatcher.complete( prefix, token, 7, maxDepth, (aHitText, aStart, aEnd, aValue) -> stopped.add( aHitText.subSequence( aStart, aEnd ) + "=" + aValue ) && random.nextInt( 3 ) != 0 );
+                }
+                if (!expected.equals( stopped )) {
+                    throw new Error( "complete stop error:" + prefix + ":" + expected + "!=" + stopped );
+                }
+            }
+            TestPrefixCompletion.checkBadTokens( dat, keyValueMap );
+        }
+        System.out.println( "分页输入提示同不分页的结果一致" );
+    }
+
+    /**
+     * 取某个前缀第一页的续取标记拿去续取不以它开头的另一个前缀，以及指向空位置或者越界的续取标记，都要抛出Error
+     */
+    private static void checkBadTokens(DoubleArrayTrie<String> aDat, TreeMap<String, String> aKeyValueMap) {
+        DoubleArrayTriePrefixMatcher<String> prefixMatcher = aDat.asPrefixMatcher();
+        List<Integer> badTokens = new ArrayList<Integer>();
+        String firstKey = aKeyValueMap.firstKey();
+        String otherPrefix = null;
+        for (String nextKey : aKeyValueMap.keySet()) {
+            if (nextKey.charAt( 0 ) != firstKey.charAt( 0 )) {
+                otherPrefix = nextKey.substring( 0, 1 );
+                break;
+            }
+        }
+        if (otherPrefix != null) {
+            badTokens.add( prefixMatcher.complete( firstKey, DoubleArrayTriePrefixMatcher.COMPLETION_START, 1, Integer.MAX_VALUE, (aHitText, aStart, aEnd, aValue) -> true ) );
+        }
+        int [] checkArray = aDat.mCheckArray;
+        for (int i = 1; i < checkArray.length; ++i) {
+            if (checkArray[ i ] == DoubleArrayTrie.EMPTY_CHECK) {
+                badTokens.add( i );
+                break;
+            }
+        }
+        badTokens.add( checkArray.length );
+        for (int badToken : badTokens) {
+            String prefix = otherPrefix != null ? otherPrefix : firstKey;
+            boolean rejected = false;
+            try {
+                prefixMatcher.complete( prefix, badToken, 7, Integer.MAX_VALUE, (aHitText, aStart, aEnd, aValue) -> true );
+            }
+            catch (Error e) {
+                rejected = true;
+            }
+            if (!rejected) {
+                throw new Error( "complete error: 续取标记" + badToken + "同前缀" + prefix + "不匹配，居然没有抛出Error" );
+            }
+        }
+    }
+}
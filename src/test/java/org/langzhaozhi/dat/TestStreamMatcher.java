@@ -0,0 +1,127 @@
+package org.langzhaozhi.dat;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * 测试流式AC匹配：把文本随机切成块，分别通过char[]、堆上的CharBuffer、直接缓冲区CharBuffer、CharSequence、Reader喂进去，
+ * 命中的绝对位置及其先后顺序必须同对整个文本一次<code>matchCaseSensitive</code>完全一样，跨越块边界的关键字也要匹配到；
+ * 回调要求停止后位置停在命中的结束位置，之后再喂都被忽略
+ */
+public class TestStreamMatcher {
+    private static final String KEY_CHARS = "abc中国";
+    private static final int FEED_MODE_COUNT = 5;
+
+    public static void main(String [] args) throws IOException {
+        Random random = new Random( 14 );
+        long totalHitCount = 0;
+        for (int round = 0; round < 300; ++round) {
+            LinkedHashMap<String, Integer> keyValueMap = new LinkedHashMap<String, Integer>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 40 ); i < keyCount; ++i) {
+                keyValueMap.putIfAbsent( TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 8 ) ), i );
+            }
+            DoubleArrayTrieAhoCorasick<Integer> ac = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) ).asAhoCorasick();
+            String text = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 500 ) );
+            List<String> expectedHits = new ArrayList<String>();
+            ac.matchCaseSensitive( text, (aHitText, aStart, aEnd, aValue) -> expectedHits.add( aStart + "," + aEnd + "=" + aValue ) );
+            totalHitCount += expectedHits.size();
+            for (int feedMode = 0; feedMode < FEED_MODE_COUNT; ++feedMode) {
+                List<String> hits = new ArrayList<String>();
+                DoubleArrayTrieStreamMatcher<Integer> streamMatcher = ac.newStreamMatcher( (aStart, aEnd, aValue) -> hits.add( aStart + "," + aEnd + "=" + aValue ) );
+                //同一个匹配器reset后再用一次，结果也要一样
+                for (int repeat = 0; repeat < 2; ++repeat) {
+                    hits.clear();
+                    streamMatcher.reset();
+                    if (!TestStreamMatcher.feed( streamMatcher, text, feedMode, random )) {
+                        throw new Error( "stream matcher error: 没有要求停止却停止了" );
+                    }
+                    if (!expectedHits.equals( hits ) || streamMatcher.getPosition() != text.length()) {
+                        throw new Error( "stream matcher feed mode " + feedMode + " error:" + text + ":" + expectedHits + "!=" + hits + ", position " + streamMatcher.getPosition() );
+                    }
+                }
+                if (!expectedHits.isEmpty()) {
+                    int stopAt = random.nextInt( expectedHits.size() );
+                    List<String> stoppedHits = new ArrayList<String>();
+                    long [] stopEnd = { -1 };
+                    DoubleArrayTrieStreamMatcher<Integer> stoppingMatcher = ac.newStreamMatcher( (aStart, aEnd, aValue) -> {
+                        stoppedHits.add( aStart + "," + aEnd + "=" + aValue );
+                        stopEnd[ 0 ] = aEnd;
+                        return stoppedHits.size() <= stopAt;
+                    } );
+                    if (TestStreamMatcher.feed( stoppingMatcher, text, feedMode, random )) {
+                        throw new Error( "stream matcher error: 要求停止了却没有停止" );
+                    }
+                    if (!expectedHits.subList( 0, stopAt + 1 ).equals( stoppedHits ) || stoppingMatcher.getPosition() != stopEnd[ 0 ]) {
+                        throw new Error( "stream matcher stop error:" + text + ":" + stoppedHits + ", position " + stoppingMatcher.getPosition() + "!=" + stopEnd[ 0 ] );
+                    }
+                    if (stoppingMatcher.feed( text ) || stoppingMatcher.getPosition() != stopEnd[ 0 ] || stoppedHits.size() != stopAt + 1) {
+                        throw new Error( "stream matcher error: 停止后再喂没有被忽略" );
+                    }
+                }
+            }
+        }
+        System.out.println( "流式匹配结果同整体匹配一致，命中总数:" + totalHitCount );
+    }
+
+    /**
+     * 把aText随机切块，按aFeedMode指定的方式喂进去
+     */
+    private static boolean feed(DoubleArrayTrieStreamMatcher<Integer> aStreamMatcher, String aText, int aFeedMode, Random aRandom) throws IOException {
+        if (aFeedMode == 4) {
+            //每次只读出随机几个字符的Reader
+            return aStreamMatcher.feed( new Reader() {
+                private int mPosition;
+
+                @Override
+                public int read(char [] aBuffer, int aOffset, int aLength) {
+                    if (this.mPosition == aText.length()) {
+                        return -1;
+                    }
+                    int readLength = Math.min( Math.min( aLength, 1 + aRandom.nextInt( 7 ) ), aText.length() - this.mPosition );
+                    aText.getChars( this.mPosition, this.mPosition + readLength, aBuffer, aOffset );
+                    this.mPosition += readLength;
+                    return readLength;
+                }
+
+                @Override
+                public void close() {
+                }
+            } );
+        }
+        boolean whetherContinueHit = true;
+        for (int from = 0, to; whetherContinueHit && from < aText.length(); from = to) {
+            to = Math.min( aText.length(), from + aRandom.nextInt( 10 ) );
+            String chunk = aText.substring( from, to );
+            if (aFeedMode == 0) {
+                //块放在一个更大数组的中间
+                char [] chars = new char [ chunk.length() + 6 ];
+                chunk.getChars( 0, chunk.length(), chars, 3 );
+                whetherContinueHit = aStreamMatcher.feed( chars, 3, chunk.length() );
+            }
+            else if (aFeedMode == 1) {
+                //arrayOffset不为0的堆上CharBuffer
+                CharBuffer charBuffer = CharBuffer.wrap( ("xy" + chunk).toCharArray() );
+                charBuffer.position( 2 );
+                whetherContinueHit = aStreamMatcher.feed( charBuffer.slice() );
+            }
+            else if (aFeedMode == 2) {
+                CharBuffer charBuffer = ByteBuffer.allocateDirect( chunk.length() << 1 ).asCharBuffer();
+                charBuffer.put( chunk ).flip();
+                whetherContinueHit = aStreamMatcher.feed( charBuffer );
+                if (whetherContinueHit && charBuffer.hasRemaining()) {
+                    throw new Error( "stream matcher error: 直接缓冲区没有喂完" );
+                }
+            }
+            else {
+                whetherContinueHit = aStreamMatcher.feed( chunk );
+            }
+        }
+        return whetherContinueHit;
+    }
+}
@@ -0,0 +1,111 @@
+package org.langzhaozhi.dat;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * 测试带权重的Top-K输入提示：对随机关键字和权重，<code>topK</code>必须同把前缀下全部数据按权重降序排序后取前K个完全一样，
+ * 包括空前缀、本身就是关键字的前缀、不存在的前缀、K超过子树数据个数以及K为0；权重有相同时只比较权重序列
+ */
+public class TestTopKCompleter {
+    private static final String KEY_CHARS = "abc中";
+
+    public static void main(String [] args) {
+        Random random = new Random( 24 );
+        for (int round = 0; round < 1000; ++round) {
+            //数据就是关键字本身，权重另外放，一半轮次权重各不相同，另一半只有几档，会有相同权重
+            boolean distinctScore = round % 2 == 0;
+            LinkedHashMap<String, String> keyValueMap = new LinkedHashMap<String, String>();
+            for (int i = 0, keyCount = 1 + random.nextInt( 80 ); i < keyCount; ++i) {
+                String nextKey = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, 1 + random.nextInt( 6 ) );
+                keyValueMap.put( nextKey, nextKey );
+            }
+            List<Integer> scores = new ArrayList<Integer>();
+            for (int i = 0; i < keyValueMap.size(); ++i) {
+                scores.add( distinctScore ? i : i % 4 );
+            }
+            Collections.shuffle( scores, random );
+            Map<String, Integer> scoreMap = new HashMap<String, Integer>();
+            for (String nextKey : keyValueMap.keySet()) {
+                scoreMap.put( nextKey, scores.get( scoreMap.size() ) );
+            }
+            DoubleArrayTrie<String> dat = DoubleArrayTrieMaker.makeDoubleArrayTrie( TestDoubleArrayTrieLayout.toPairs( keyValueMap ) );
+            DoubleArrayTrieTopKCompleter<String> completer = dat.asPrefixMatcher().newTopKCompleter( scoreMap::get );
+            List<String> keys = new ArrayList<String>( keyValueMap.keySet() );
+            for (int prefixIndex = 0; prefixIndex < 10; ++prefixIndex) {
+                String prefix;
+                switch (prefixIndex % 4) {
+                    case 0:
+                        prefix = "";
+                        break;
+                    case 1:
+                        prefix = keys.get( random.nextInt( keys.size() ) );
+                        break;
+                    case 2: {
+                        String key = keys.get( random.nextInt( keys.size() ) );
+                        prefix = key.substring( 0, 1 + random.nextInt( key.length() ) );
+                        break;
+                    }
+                    default:
+                        //"xy"不在关键字字符中，肯定不存在
+                        prefix = TestDoubleArrayTrieLayout.randomText( random, KEY_CHARS, random.nextInt( 3 ) ) + "xy";
+                        break;
+                }
+                List<String> sorted = new ArrayList<String>();
+                for (String nextKey : keys) {
+                    if (nextKey.startsWith( prefix )) {
+                        sorted.add( nextKey );
+                    }
+                }
+                sorted.sort( (aLeft, aRight) -> Integer.compare( scoreMap.get( aRight ), scoreMap.get( aLeft ) ) );
+                int [] kArray = { 0, 1, 1 + random.nextInt( 5 ), sorted.size(), sorted.size() + 1 + random.nextInt( 10 ) };
+                for (int k : kArray) {
+                    List<String> expected = sorted.subList( 0, Math.min( k, sorted.size() ) );
+                    List<String> hits = new ArrayList<String>();
+                    int hitCount = completer.topK( prefix, k, (aHitText, aStart, aEnd, aValue) -> {
+                        String hitKey = aHitText.subSequence( aStart, aEnd ).toString();
+                        if (!hitKey.equals( aValue )) {
+                            throw new Error( "topK error: 关键字" + hitKey + "同数据" + aValue + "不一致" );
+                        }
+                        return hits.add( hitKey );
+                    } );
+                    if (hitCount != hits.size()) {
+                        throw new Error( "topK error: 返回" + hitCount + "但通知了" + hits.size() );
+                    }
+                    if (distinctScore) {
+                        if (!expected.equals( hits )) {
+                            throw new Error( "topK error:" + prefix + ":" + k + ":" + expected + "!=" + hits );
+                        }
+                    }
+                    else {
+                        List<Integer> expectedScores = new ArrayList<Integer>();
+                        List<Integer> hitScores = new ArrayList<Integer>();
+                        for (String nextKey : expected) {
+                            expectedScores.add( scoreMap.get( nextKey ) );
+                        }
+                        for (String nextKey : hits) {
+                            hitScores.add( scoreMap.get( nextKey ) );
+                        }
+                        if (!expectedScores.equals( hitScores ) || hits.stream().distinct().count() != hits.size() || !sorted.containsAll( hits )) {
+                            throw new Error( "topK error:" + prefix + ":" + k + ":" + expected + "!=" + hits );
+                        }
+                    }
+                }
+                if (sorted.size() > 1) {
+                    //回调返回false提前结束，已经通知的那个也算数
+                    List<String> stoppedHits = new ArrayList<String>();
+                    int stoppedCount = completer.topK( prefix, sorted.size(), (aHitText, aStart, aEnd, aValue) -> stoppedHits.add( aValue ) && stoppedHits.size() < 2 );
+                    if (stoppedCount != 2 || stoppedHits.size() != 2) {
+                        throw new Error( "topK stop error:" + prefix + ":" + stoppedCount + ":" + stoppedHits );
+                    }
+                }
+            }
+        }
+        System.out.println( "Top-K输入提示同排序结果一致" );
+    }
+}